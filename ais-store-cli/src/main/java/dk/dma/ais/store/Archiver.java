@@ -21,10 +21,12 @@ import dk.dma.ais.packet.AisPacketOutputSinks;
 import dk.dma.ais.reader.AisReaderGroup;
 import dk.dma.ais.reader.AisReaders;
 import dk.dma.ais.store.cli.baseclients.AisStoreDaemon;
+import dk.dma.ais.store.write.CassandraBatchedStagedWriter;
+import dk.dma.ais.store.write.CassandraBatchedStagedWriter.WriteMode;
 import dk.dma.ais.store.write.DefaultAisStoreWriter;
+import dk.dma.ais.store.write.ShardedAisStoreWriter;
 import dk.dma.commons.management.ManagedAttribute;
 import dk.dma.commons.management.ManagedResource;
-import dk.dma.commons.service.AbstractBatchedStage;
 import dk.dma.commons.service.io.MessageToFileService;
 import dk.dma.db.cassandra.CassandraConnection;
 import org.slf4j.Logger;
@@ -52,21 +54,54 @@ public class Archiver extends AisStoreDaemon {
     @Parameter(names = "-batchSize", description = "The number of messages to write to Cassandra at a time")
     int batchSize = 1000;
 
+    @Parameter(names = "-partitionedWrites", description = "Group writes by partition and send them as unlogged batches to replicas instead of as one logged batch")
+    boolean partitionedWrites;
+
+    @Parameter(names = "-maxInFlight", description = "The maximum number of concurrent write requests when using -partitionedWrites")
+    int maxInFlight = CassandraBatchedStagedWriter.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+    @Parameter(names = "-maxInFlightBatches", description = "The number of batches that may be written to Cassandra concurrently (1 waits for each batch)")
+    int maxInFlightBatches = 1;
+
+    @Parameter(names = "-cell10", description = "Also write packets to packets_area_cell10")
+    boolean cell10;
+
+    @Parameter(names = "-cell01", description = "Also write packets to packets_area_cell01 (cells of 0.1 degree)")
+    boolean cell01;
+
+    @Parameter(names = "-mmsiType", description = "Also write packets to packets_mmsi_type (by MMSI and message type)")
+    boolean mmsiType;
+
+    @Parameter(names = "-track", description = "Also write positions to packets_track (decoded positions for past tracks)")
+    boolean track;
+
+    @Parameter(names = "-binaryAisData", description = "Write packets to the aisdata_bin column in compact binary form instead of to aisdata")
+    boolean binaryAisData;
+
+    @Parameter(names = "-references", description = "Only write packets to packets_time, packets_mmsi and the area tables refer to them")
+    boolean references;
+
+    @Parameter(names = "-cellStatistics", description = "Count the packets written to each cell in packets_area_cell_stats, used by area queries to choose between cell1 and cell10")
+    boolean cellStatistics;
+
+    @Parameter(names = "-writerThreads", description = "The number of threads writing to Cassandra, packets are sharded by MMSI")
+    int writerThreads = 1;
+
     /** The stage that is responsible for writing the package */
-    volatile AbstractBatchedStage<AisPacket> mainStage;
+    volatile ShardedAisStoreWriter mainStage;
 
     @Parameter(description = "A list of AIS sources (sourceName=host:port,host:port sourceName=host:port ...")
     List<String> sources;
 
     @ManagedAttribute
     public long getNumberOfProcessedPackages() {
-        AbstractBatchedStage<AisPacket> mainStage = this.mainStage;
+        ShardedAisStoreWriter mainStage = this.mainStage;
         return mainStage == null ? 0 : mainStage.getNumberOfMessagesProcessed();
     }
 
     @ManagedAttribute
     public int getNumberOfOutstandingPackets() {
-        AbstractBatchedStage<AisPacket> mainStage = this.mainStage;
+        ShardedAisStoreWriter mainStage = this.mainStage;
         return mainStage == null ? 0 : mainStage.getSize();
     }
 
@@ -82,18 +117,31 @@ public class Archiver extends AisStoreDaemon {
         // setup an AisReader for each source
         AisReaderGroup g = AisReaders.createGroup("AisStoreArchiver", sources);
 
-        // Start a stage that will write each packet to cassandra
-        final AbstractBatchedStage<AisPacket> cassandra = mainStage = start(new DefaultAisStoreWriter(con, batchSize) {
-            @Override
-            public void onFailure(List<AisPacket> messages, Throwable cause) {
-                LOG.error("Could not write batch to cassandra", cause);
-                for (AisPacket p : messages) {
-                    if (!backupService.getInputQueue().offer(p)) {
-                        System.err.println("Could not persist packet!");
+        // Start the stages that will write each packet to cassandra
+        final ShardedAisStoreWriter cassandra = mainStage = start(new ShardedAisStoreWriter(writerThreads, (shard, metrics) -> {
+            DefaultAisStoreWriter writer = new DefaultAisStoreWriter(con, batchSize, metrics) {
+                @Override
+                public void onFailure(List<AisPacket> messages, Throwable cause) {
+                    LOG.error("Could not write batch to cassandra", cause);
+                    for (AisPacket p : messages) {
+                        if (!backupService.getInputQueue().offer(p)) {
+                            System.err.println("Could not persist packet!");
+                        }
                     }
                 }
-            }
-        });
+            };
+            writer.setWriteMode(partitionedWrites ? WriteMode.PARTITIONED : WriteMode.LOGGED_BATCH);
+            writer.setMaxInFlightRequests(maxInFlight);
+            writer.setMaxInFlightBatches(maxInFlightBatches);
+            writer.setCell10Enabled(cell10);
+            writer.setCell01Enabled(cell01);
+            writer.setMmsiTypeEnabled(mmsiType);
+            writer.setTrackEnabled(track);
+            writer.setBinaryAisDataEnabled(binaryAisData);
+            writer.setReferencesEnabled(references);
+            writer.setCellStatisticsEnabled(cellStatistics);
+            return writer;
+        }));
 
         // Start the thread that will read each file from the backup queue
         start(new FileImportService(this));
@@ -101,7 +149,7 @@ public class Archiver extends AisStoreDaemon {
 
         g.stream().subscribe(aisPacket -> {
             // We use offer because we do not want to block receiving
-            if (!cassandra.getInputQueue().offer(aisPacket)) {
+            if (!cassandra.offer(aisPacket)) {
                 if (!backupService.getInputQueue().offer(aisPacket)) {
                     System.err.println("Could not persist packet");
                 }
@@ -71,6 +71,27 @@ public class FileExport extends AisStoreCommandLineTool {
     Integer fetchSize = 3000;
     
 
+    @Parameter(names = "-prefetchPages", description = "number of pages fetched ahead of the packets being written")
+    Integer prefetchPages = 2;
+
+    @Parameter(names = "-maxConcurrentQueries", description = "number of per-cell or per-MMSI queries sent concurrently")
+    Integer maxConcurrentQueries = 32;
+
+    @Parameter(names = "-cell10", description = "allow area queries to read packets_area_cell10")
+    Boolean cell10 = false;
+
+    @Parameter(names = "-cell01", description = "read small areas from packets_area_cell01")
+    Boolean cell01 = false;
+
+    @Parameter(names = "-cellStatistics", description = "use packets_area_cell_stats to choose between cell1 and cell10 per cell (with -cell10)")
+    Boolean cellStatistics = false;
+
+    @Parameter(names = "-mmsiType", description = "read only the message types required by -filter from packets_mmsi_type when exporting by MMSI")
+    Boolean mmsiType = false;
+
+    @Parameter(names = "-parallelism", description = "number of time blocks fetched concurrently when exporting by time")
+    Integer parallelism = 1;
+
     @Parameter(names = "-dryrun", description = "generate the cqlsh commands only")
     Boolean dryrun = false;
     
@@ -78,19 +99,37 @@ public class FileExport extends AisStoreCommandLineTool {
     /** {@inheritDoc} */
     @Override
     protected void run(Injector injector) throws Exception {
+        // The MMSI numbers and message types required by the filter limit what is read
+        FilterPushdown pushdown = filter == null ? null : FilterPushdown.analyze(filter);
+        int[] filterMmsis = pushdown == null ? null : pushdown.getMmsi();
+        int[] filterMessageTypes = pushdown == null ? null : pushdown.getMessageTypes();
+
         AisStoreQueryBuilder b;
         if (!mmsis.isEmpty()) {
             b = AisStoreQueryBuilder.forMmsi(ArrayUtils.toPrimitive(mmsis.toArray(new Integer[0])));  
             b.setFetchSize(fetchSize);
+        } else if (area == null && filterMmsis != null && filterMmsis.length > 0) {
+            b = AisStoreQueryBuilder.forMmsi(filterMmsis);
+            b.setFetchSize(fetchSize);
         } else if (area != null) {            
             BoundingBox bbox = findBoundingBox(area);
             b = AisStoreQueryBuilder.forArea(bbox);
             b.setFetchSize(fetchSize);
+            b.setCell10Enabled(cell10);
+            b.setCell01Enabled(cell01);
+            b.setCellStatisticsEnabled(cellStatistics);
         } else {
             b = AisStoreQueryBuilder.forTime();
             b.setFetchSize(fetchSize);
+            b.setParallelism(parallelism);
         }
         
+        if (mmsiType && b.mmsi != null && filterMessageTypes != null && filterMessageTypes.length > 0) {
+            b.setMessageTypes(filterMessageTypes);
+        }
+
+        b.setPrefetchPages(prefetchPages);
+        b.setMaxConcurrentQueries(maxConcurrentQueries);
         b.setInterval(DateTimeUtil.toInterval(interval));
         
         if (dryrun) {
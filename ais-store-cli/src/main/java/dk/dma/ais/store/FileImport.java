@@ -20,6 +20,8 @@ import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.reader.AisReader;
 import dk.dma.ais.reader.AisReaders;
 import dk.dma.ais.store.cli.baseclients.AisStoreCommandLineTool;
+import dk.dma.ais.store.write.CassandraBatchedStagedWriter;
+import dk.dma.ais.store.write.CassandraBatchedStagedWriter.WriteMode;
 import dk.dma.ais.store.write.DefaultAisStoreWriter;
 import dk.dma.commons.service.AbstractBatchedStage;
 import dk.dma.db.cassandra.CassandraConnection;
@@ -43,6 +45,36 @@ public class FileImport extends AisStoreCommandLineTool {
     @Parameter(names = "-batchSize", description = "The number of messages to write to cassandra at a time")
     int batchSize = 3000;
 
+    @Parameter(names = "-partitionedWrites", description = "Group writes by partition and send them as unlogged batches to replicas instead of as one logged batch")
+    boolean partitionedWrites;
+
+    @Parameter(names = "-maxInFlight", description = "The maximum number of concurrent write requests when using -partitionedWrites")
+    int maxInFlight = CassandraBatchedStagedWriter.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+    @Parameter(names = "-maxInFlightBatches", description = "The number of batches that may be written to Cassandra concurrently (1 waits for each batch)")
+    int maxInFlightBatches = 1;
+
+    @Parameter(names = "-cell10", description = "Also write packets to packets_area_cell10")
+    boolean cell10;
+
+    @Parameter(names = "-cell01", description = "Also write packets to packets_area_cell01 (cells of 0.1 degree)")
+    boolean cell01;
+
+    @Parameter(names = "-mmsiType", description = "Also write packets to packets_mmsi_type (by MMSI and message type)")
+    boolean mmsiType;
+
+    @Parameter(names = "-track", description = "Also write positions to packets_track (decoded positions for past tracks)")
+    boolean track;
+
+    @Parameter(names = "-binaryAisData", description = "Write packets to the aisdata_bin column in compact binary form instead of to aisdata")
+    boolean binaryAisData;
+
+    @Parameter(names = "-references", description = "Only write packets to packets_time, packets_mmsi and the area tables refer to them")
+    boolean references;
+
+    @Parameter(names = "-cellStatistics", description = "Count the packets written to each cell in packets_area_cell_stats, used by area queries to choose between cell1 and cell10")
+    boolean cellStatistics;
+
     @Parameter(names = {"-import", "-input", "-i"}, description = "Path to directory with files to import", required = true)
     String path;
     
@@ -69,12 +101,23 @@ public class FileImport extends AisStoreCommandLineTool {
         final AtomicInteger acceptedCount = new AtomicInteger();
         final long start = System.currentTimeMillis();
 
-        final AbstractBatchedStage<AisPacket> cassandra = start(new DefaultAisStoreWriter(con, batchSize) {
+        final DefaultAisStoreWriter writer = new DefaultAisStoreWriter(con, batchSize) {
             public void onFailure(List<AisPacket> messages, Throwable cause) {
                 LOG.error("Could not write batch to cassandra", cause);
                 shutdown();
             }
-        });
+        };
+        writer.setWriteMode(partitionedWrites ? WriteMode.PARTITIONED : WriteMode.LOGGED_BATCH);
+        writer.setMaxInFlightRequests(maxInFlight);
+        writer.setMaxInFlightBatches(maxInFlightBatches);
+        writer.setCell10Enabled(cell10);
+        writer.setCell01Enabled(cell01);
+        writer.setMmsiTypeEnabled(mmsiType);
+        writer.setTrackEnabled(track);
+        writer.setBinaryAisDataEnabled(binaryAisData);
+        writer.setReferencesEnabled(references);
+        writer.setCellStatisticsEnabled(cellStatistics);
+        final AbstractBatchedStage<AisPacket> cassandra = start(writer);
       
         AisReader reader = AisReaders.createDirectoryReader(path, glob, recursive);
         
@@ -98,7 +98,7 @@ class FileImportService extends AbstractExecutionThreadService {
                                         archiver.sleepUnlessShutdown(60, TimeUnit.SECONDS);
                                     }
                                     // Wait until there is plenty of room in the queue
-                                    while (isRunning() && archiver.getNumberOfOutstandingPackets() > archiver.batchSize) {
+                                    while (isRunning() && archiver.getNumberOfOutstandingPackets() > archiver.batchSize * archiver.writerThreads) {
                                         archiver.sleepUnlessShutdown(1, TimeUnit.SECONDS);
                                     }
                                 }
@@ -120,9 +120,9 @@ class FileImportService extends AbstractExecutionThreadService {
                 // we might be overloaded so sleep for a bit if we cannot write the packet
                 while (isRunning()) {
                     int q = archiver.getNumberOfOutstandingPackets();
-                    if (q > 10 * archiver.batchSize) {
+                    if (q > 10 * archiver.batchSize * archiver.writerThreads) { // the queues of all shards
                         LOG.info("Write queue to Cassandra is to busy size=" + q + ", sleeping for a bit");
-                    } else if (archiver.mainStage.getInputQueue().offer(packet)) {
+                    } else if (archiver.mainStage.offer(packet)) {
                         break;
                     } else {
                         LOG.info("Write queue to Cassandra was full size=" + q + ", sleeping for a bit");
@@ -19,26 +19,45 @@ import com.google.inject.Injector;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.reader.AisReader;
 import dk.dma.ais.reader.AisReaders;
+import dk.dma.ais.store.AisStoreSchema.Table;
 import dk.dma.ais.store.importer.ImportConfigGenerator;
+import dk.dma.ais.store.importer.PacketsAreaCell01SSTableWriter;
 import dk.dma.ais.store.importer.PacketsAreaCell10SSTableWriter;
 import dk.dma.ais.store.importer.PacketsAreaCell1SSTableWriter;
 import dk.dma.ais.store.importer.PacketsAreaUnknownSSTableWriter;
 import dk.dma.ais.store.importer.PacketsMmsiSSTableWriter;
 import dk.dma.ais.store.importer.PacketsTimeSSTableWriter;
+import dk.dma.ais.store.importer.PacketsTrackSSTableWriter;
+import dk.dma.ais.store.importer.SSTableWriter;
 import dk.dma.commons.app.AbstractCommandLineTool;
 import org.apache.cassandra.config.KSMetaData;
 import org.apache.cassandra.config.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Jens Tuxen
@@ -76,8 +95,38 @@ public class FileSSTableConverter extends AbstractCommandLineTool {
     @Parameter(names = "-compressor", description = "LZ4Compressor, DeflateCompressor")
     String compressor = "LZ4Compressor";
     
-    @Parameter(names = "-bufferSize", description = "buffer size in mb (roughly the size of each flush to sstable, beware of heap usage, 128m ~ 1g heap")
-    int bufferSize = 128;
+    @Parameter(names = "-bufferSize", description = "buffer size in mb per table writer (roughly the size of each flush to sstable, beware of heap usage, 128m ~ 1g heap")
+    int bufferSize = SSTableWriter.DEFAULT_BUFFER_SIZE_MB;
+
+    @Parameter(names = "-cell01", description = "Also write packets_area_cell01 (cells of 0.1 degree)")
+    boolean cell01;
+
+    @Parameter(names = "-track", description = "Also write packets_track (decoded positions for past tracks)")
+    boolean track;
+
+    @Parameter(names = "-digest64", description = "Write the 64-bit digests as bigint, must be set if the keyspace the sstables are loaded into has \"digest bigint\" columns")
+    boolean digest64;
+
+    @Parameter(names = "-timeBlock", description = "The duration of the time blocks of a table as <table>=<seconds>, must match table_metadata of the keyspace the sstables are loaded into (can be repeated)")
+    List<String> timeBlocks = new ArrayList<>();
+
+    @Parameter(names = "-workers", description = "Number of worker processes converting files in parallel, each worker writes to its own subdirectory (worker-N) of the output path and reads its files once per table unless -singlePass is set")
+    int workers = 1;
+
+    @Parameter(names = "-workerHeap", description = "Maximum heap of each worker process, e.g. 4g (JVM default if not set), must fit the -bufferSize of the tables written by the worker")
+    String workerHeap;
+
+    @Parameter(names = "-inputFiles", description = "File listing the files to import, one per line, instead of all files in the input directory")
+    String inputFiles;
+
+    @Parameter(names = "-singlePass", description = "Read the input once and pipe the packets to one writer process per table, instead of reading the input once per table")
+    boolean singlePass;
+
+    @Parameter(names = "-tableHeap", description = "Maximum heap of each writer process with -singlePass, e.g. 2g (JVM default if not set)")
+    String tableHeap;
+
+    @Parameter(names = "-table", description = "Only write the specified table, used by the writer processes of -singlePass (an input of - reads packets from standard input)")
+    String table;
 
     static {
         org.apache.cassandra.config.Config.setClientMode(true);
@@ -87,49 +136,269 @@ public class FileSSTableConverter extends AbstractCommandLineTool {
     @Override
     protected void run(Injector injector) throws Exception {
         
-        //bootstrap a valid cassandra.yaml config file into the inDirectory
-        ImportConfigGenerator.generate(inDirectory);
+        for (String timeBlock : timeBlocks) {
+            String[] tableAndSeconds = timeBlock.split("=");
+            AisStoreSchema.Table table = tableAndSeconds.length == 2 ? AisStoreSchema.Table.forName(tableAndSeconds[0].trim()) : null;
+            if (table == null) {
+                throw new IllegalArgumentException("Invalid time block " + timeBlock + ", must be <table>=<seconds>");
+            }
+            AisStoreSchema.setTimeBlockDuration(table, Duration.ofSeconds(Long.parseLong(tableAndSeconds[1].trim())));
+        }
+
+        if (workers > 1) {
+            boolean succeeded = convertInParallel();
+            shutdown();
+            System.exit(succeeded ? 0 : 1);
+        }
+
+        //bootstrap a valid cassandra.yaml config file into the inDirectory, unless already done by the parent process
+        if (!Files.exists(Paths.get(inDirectory, "cassandra.yaml"))) {
+            ImportConfigGenerator.generate(inDirectory);
+        }
         Properties props = System.getProperties();
         props.setProperty("cassandra.config", Paths.get("file://", inDirectory, "cassandra.yaml").toString());
 
-        Arrays.asList(
-            new PacketsTimeSSTableWriter(inDirectory, keyspace),
-            new PacketsMmsiSSTableWriter(inDirectory, keyspace),
-            new PacketsAreaCell1SSTableWriter(inDirectory, keyspace),
-            new PacketsAreaCell10SSTableWriter(inDirectory, keyspace),
-            new PacketsAreaUnknownSSTableWriter(inDirectory, keyspace)
-        ).forEach(sstableWriter -> {
-            try {
-                LOG.info("Streaming AIS packets to " + sstableWriter.table());
-                streamAllAisPacketsTo(sstableWriter);
-                sstableWriter.close();
-                clearKeyspaceDefinition();
-            } catch (IOException e) {
-                LOG.error(e.getMessage(), e);
-            } catch (InterruptedException e) {
-                LOG.error(e.getMessage(), e);
+        boolean failed = false;
+        if (singlePass) {
+            failed = !convertInOnePass();
+        } else {
+            for (SSTableWriter sstableWriter : createSSTableWriters(inDirectory)) {
+                try {
+                    LOG.info("Streaming AIS packets to " + sstableWriter.table());
+                    streamAllAisPacketsTo(sstableWriter);
+                    sstableWriter.close();
+                    clearKeyspaceDefinition();
+                } catch (IOException | InterruptedException e) {
+                    LOG.error(e.getMessage(), e);
+                    failed = true;
+                }
             }
-        });
+        }
 
         shutdown();
-        System.exit(0);
+        System.exit(failed ? 1 : 0);
+    }
+
+
+    /** Returns the tables to write. */
+    List<Table> tables() {
+        if (table != null) {
+            Table t = Table.forName(table);
+            if (t == null) {
+                throw new IllegalArgumentException("Unknown table " + table);
+            }
+            return Collections.singletonList(t);
+        }
+        List<Table> tables = new ArrayList<>(Arrays.asList(Table.TABLE_PACKETS_TIME, Table.TABLE_PACKETS_MMSI,
+                Table.TABLE_PACKETS_AREA_CELL1, Table.TABLE_PACKETS_AREA_CELL10, Table.TABLE_PACKETS_AREA_UNKNOWN));
+        if (cell01) {
+            tables.add(Table.TABLE_PACKETS_AREA_CELL01);
+        }
+        if (track) {
+            tables.add(Table.TABLE_PACKETS_TRACK);
+        }
+        return tables;
+    }
+
+    private List<SSTableWriter> createSSTableWriters(String outputDir) {
+        List<SSTableWriter> sstableWriters = new ArrayList<>();
+        for (Table t : tables()) {
+            SSTableWriter w = createSSTableWriter(t, outputDir);
+            w.setBufferSizeInMB(bufferSize);
+            w.setDigest64(digest64);
+            sstableWriters.add(w);
+        }
+        return sstableWriters;
+    }
+
+    private SSTableWriter createSSTableWriter(Table t, String outputDir) {
+        switch (t) {
+        case TABLE_PACKETS_TIME:
+            return new PacketsTimeSSTableWriter(outputDir, keyspace);
+        case TABLE_PACKETS_MMSI:
+            return new PacketsMmsiSSTableWriter(outputDir, keyspace);
+        case TABLE_PACKETS_AREA_CELL1:
+            return new PacketsAreaCell1SSTableWriter(outputDir, keyspace);
+        case TABLE_PACKETS_AREA_CELL10:
+            return new PacketsAreaCell10SSTableWriter(outputDir, keyspace);
+        case TABLE_PACKETS_AREA_CELL01:
+            return new PacketsAreaCell01SSTableWriter(outputDir, keyspace);
+        case TABLE_PACKETS_AREA_UNKNOWN:
+            return new PacketsAreaUnknownSSTableWriter(outputDir, keyspace);
+        case TABLE_PACKETS_TRACK:
+            return new PacketsTrackSSTableWriter(outputDir, keyspace);
+        default:
+            throw new IllegalArgumentException("No sstable writer for " + t);
+        }
+    }
+
+    /**
+     * Reads the input once and pipes the raw packets to one writer process per table. cassandra-all cannot hold the
+     * schema of several tables of a keyspace in one JVM, so each table is written by a separate converter process
+     * reading from its standard input. The pipes are bounded, so reading runs at the pace of the slowest table.
+     *
+     * @return true if all tables were written
+     */
+    private boolean convertInOnePass() throws IOException, InterruptedException {
+        List<TableProcess> processes = new ArrayList<>();
+        try {
+            for (Table t : tables()) {
+                LOG.info("Starting writer process of " + t);
+                processes.add(new TableProcess(t, new ProcessBuilder(tableCommand(t)).redirectOutput(Redirect.INHERIT)
+                        .redirectError(Redirect.INHERIT).start()));
+            }
+            streamAllAisPacketsTo(packet -> processes.forEach(p -> p.write(packet)));
+            boolean succeeded = true;
+            for (TableProcess p : processes) {
+                succeeded &= p.finish();
+            }
+            return succeeded;
+        } finally {
+            processes.forEach(p -> p.process.destroy()); // only if reading failed
+        }
+    }
+
+    /** Returns the command line of a process writing the specified table, reading packets from standard input. */
+    List<String> tableCommand(Table t) {
+        List<String> command = javaCommand(tableHeap);
+        command.addAll(Arrays.asList("-output", inDirectory, "-input", "-", "-table", t.toString()));
+        addCommonOptions(command);
+        return command;
     }
 
+    /** Returns the command line starting a converter in a new JVM with the specified maximum heap, if any. */
+    private static List<String> javaCommand(String maxHeap) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (maxHeap != null) {
+            command.add("-Xmx" + maxHeap);
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), FileSSTableConverter.class.getName()));
+        return command;
+    }
+
+    /** Adds the options that apply to both workers and writer processes. */
+    private void addCommonOptions(List<String> command) {
+        command.addAll(Arrays.asList("-keyspace", keyspace, "-bufferSize", String.valueOf(bufferSize)));
+        if (tag != null) {
+            command.addAll(Arrays.asList("-tag", tag));
+        }
+        if (digest64) {
+            command.add("-digest64");
+        }
+        for (String timeBlock : timeBlocks) {
+            command.addAll(Arrays.asList("-timeBlock", timeBlock));
+        }
+    }
+
+    /**
+     * Splits the input files between a number of workers. Each worker is a separate converter process, writing one
+     * table at a time to its own output directory, as writers cannot share the keyspace schema of cassandra-all in one
+     * JVM. Like a single converter, each worker reads its files once per table, unless -singlePass is set.
+     *
+     * @return true if all workers succeeded
+     */
+    private boolean convertInParallel() throws IOException, InterruptedException {
+        List<List<Path>> filesPerWorker = splitInputFiles(findInputFiles(), workers);
+
+        Map<Integer, Process> processes = new LinkedHashMap<>();
+        for (int i = 0; i < filesPerWorker.size(); i++) {
+            List<Path> files = filesPerWorker.get(i);
+            if (!files.isEmpty()) {
+                Path outputDir = Files.createDirectories(Paths.get(inDirectory, "worker-" + i));
+                Path fileList = Files.write(outputDir.resolve("input-files.txt"),
+                        files.stream().map(Path::toString).collect(Collectors.toList()));
+                LOG.info("Starting worker " + i + " converting " + files.size() + " files to " + outputDir);
+                processes.put(i, new ProcessBuilder(workerCommand(outputDir, fileList)).inheritIO().start());
+            }
+        }
+
+        boolean succeeded = true;
+        for (Map.Entry<Integer, Process> e : processes.entrySet()) {
+            int exitValue = e.getValue().waitFor();
+            if (exitValue != 0) {
+                LOG.error("Worker " + e.getKey() + " failed with exit value " + exitValue);
+                succeeded = false;
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Returns the command line of a worker converting the files listed in the specified file. JVM options of this
+     * process are not passed on, as debug or JMX ports would clash between the workers, only -workerHeap is.
+     */
+    List<String> workerCommand(Path outputDir, Path fileList) {
+        List<String> command = javaCommand(workerHeap);
+        command.addAll(Arrays.asList("-output", outputDir.toString(), "-input", path, "-inputFiles", fileList.toString()));
+        addCommonOptions(command);
+        if (verbose) {
+            command.add("-verbose");
+        }
+        if (cell01) {
+            command.add("-cell01");
+        }
+        if (track) {
+            command.add("-track");
+        }
+        if (table != null) {
+            command.addAll(Arrays.asList("-table", table));
+        }
+        if (singlePass) {
+            command.add("-singlePass");
+            if (tableHeap != null) {
+                command.addAll(Arrays.asList("-tableHeap", tableHeap));
+            }
+        }
+        return command;
+    }
+
+    /** Finds all files in the input directory matching the glob pattern. */
+    private List<Path> findInputFiles() throws IOException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        try (Stream<Path> s = recursive ? Files.walk(Paths.get(path)) : Files.list(Paths.get(path))) {
+            return s.filter(Files::isRegularFile).filter(p -> matcher.matches(p.getFileName())).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Splits the files into the specified number of groups of roughly the same total size. The files are sorted by
+     * path, which is time order for files named by date, and each group gets a contiguous run of them.
+     */
+    static List<List<Path>> splitInputFiles(List<Path> files, int groups) throws IOException {
+        List<Path> sorted = new ArrayList<>(files);
+        Collections.sort(sorted);
+        long[] sizes = new long[sorted.size()];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = Files.size(sorted.get(i));
+            total += sizes[i];
+        }
+
+        List<List<Path>> result = new ArrayList<>();
+        for (int i = 0; i < groups; i++) {
+            result.add(new ArrayList<>());
+        }
+        long before = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            // the group containing the middle of the file
+            int group = total == 0 ? i * groups / sizes.length : (int) ((before + sizes[i] / 2) * groups / total);
+            result.get(Math.min(group, groups - 1)).add(sorted.get(i));
+            before += sizes[i];
+        }
+        return result;
+    }
 
     private void streamAllAisPacketsTo(Consumer<AisPacket> consumer) throws IOException, InterruptedException {
         final AtomicLong acceptedCount = new AtomicLong();
         final AtomicLong[] numberOfPacketsProcessedSinceLastOutput = {new AtomicLong()};
         final Instant[] timeOfLastOutput = {Instant.now()};
 
-        AisReader reader = AisReaders.createDirectoryReader(path, glob, recursive);
-
-        if (tag != null) {
-            reader.setSourceId(tag);
-        }
+        List<Consumer<AisPacket>> handlers = new ArrayList<>();
 
         // print stats if verbose
         if (verbose) {
-            reader.registerPacketHandler(packet -> {
+            handlers.add(packet -> {
                 if (numberOfPacketsProcessedSinceLastOutput[0].incrementAndGet() % 1000000 == 0) {
                     Instant now = Instant.now();
                     Duration timeSinceLastOutput = Duration.between(timeOfLastOutput[0], now);
@@ -143,12 +412,31 @@ public class FileSSTableConverter extends AbstractCommandLineTool {
         }
 
         //add "accepted" counter
-        reader.registerPacketHandler(p -> acceptedCount.incrementAndGet());
-        reader.registerPacketHandler(consumer);
+        handlers.add(p -> acceptedCount.incrementAndGet());
+        handlers.add(consumer);
 
+        if ("-".equals(path)) {
+            read(AisReaders.createReaderFromInputStream(System.in), handlers);
+            LOG.info("Finished processing standard input, " + acceptedCount + " packets was converted");
+        } else if (inputFiles == null) {
+            read(AisReaders.createDirectoryReader(path, glob, recursive), handlers);
+            LOG.info("Finished processing directory, " + acceptedCount + " packets was converted from " + path);
+        } else {
+            List<String> files = Files.readAllLines(Paths.get(inputFiles));
+            for (String file : files) {
+                read(AisReaders.createReaderFromFile(file), handlers);
+            }
+            LOG.info("Finished processing " + files.size() + " files, " + acceptedCount + " packets was converted from " + inputFiles);
+        }
+    }
+
+    private void read(AisReader reader, List<Consumer<AisPacket>> handlers) throws InterruptedException {
+        if (tag != null) {
+            reader.setSourceId(tag);
+        }
+        handlers.forEach(reader::registerPacketHandler);
         reader.start();
         reader.join();
-        LOG.info("Finished processing directory, " + acceptedCount + " packets was converted from " + path);
     }
 
     private void clearKeyspaceDefinition() {
@@ -157,6 +445,53 @@ public class FileSSTableConverter extends AbstractCommandLineTool {
         Schema.instance.clearKeyspaceDefinition(ksm);
     }
 
+    /** A process writing one table, fed with the raw packets through its standard input. */
+    private static final class TableProcess {
+
+        final Table table;
+
+        final Process process;
+
+        /** The standard input of the process, the pipe blocks when the process falls behind. */
+        private final Writer in;
+
+        /** Set if the process stopped reading, the remaining packets are not written to it. */
+        private boolean broken;
+
+        TableProcess(Table table, Process process) {
+            this.table = table;
+            this.process = process;
+            this.in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()), 1 << 16);
+        }
+
+        void write(AisPacket packet) {
+            if (!broken) {
+                try {
+                    in.write(packet.getStringMessage());
+                    in.write("\r\n");
+                } catch (IOException e) {
+                    LOG.error("Failed to pipe packet to the writer process of " + table + ": " + e.getMessage());
+                    broken = true;
+                }
+            }
+        }
+
+        /** Closes the input of the process and waits for it to finish, returns whether the table was written. */
+        boolean finish() throws InterruptedException {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close the input of the writer process of " + table + ": " + e.getMessage());
+                broken = true;
+            }
+            int exitValue = process.waitFor();
+            if (exitValue != 0) {
+                LOG.error("Writer process of " + table + " failed with exit value " + exitValue);
+            }
+            return exitValue == 0 && !broken;
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         new FileSSTableConverter().execute(args);
     }
@@ -0,0 +1,152 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.ais.store.AisStoreSchema.Table;
+
+public class FileSSTableConverterTest {
+
+    Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("FileSSTableConverterTest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) s::iterator) {
+                Files.delete(p);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    Path file(String name, int size) throws IOException {
+        return Files.write(dir.resolve(name), new byte[size]);
+    }
+
+    @Test
+    public void testSplitKeepsTimeOrder() throws Exception {
+        List<Path> files = new ArrayList<>();
+        for (int day = 8; day >= 1; day--) {
+            files.add(file("2015-01-0" + day + ".txt", 100));
+        }
+        List<List<Path>> groups = FileSSTableConverter.splitInputFiles(files, 4);
+        assertEquals(4, groups.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Arrays.asList(dir.resolve("2015-01-0" + (2 * i + 1) + ".txt"),
+                    dir.resolve("2015-01-0" + (2 * i + 2) + ".txt")), groups.get(i));
+        }
+    }
+
+    @Test
+    public void testSplitBalancesSize() throws Exception {
+        Path a = file("a", 300);
+        Path b = file("b", 100);
+        Path c = file("c", 100);
+        Path d = file("d", 100);
+        List<List<Path>> groups = FileSSTableConverter.splitInputFiles(Arrays.asList(d, c, b, a), 2);
+        assertEquals(Arrays.asList(a), groups.get(0));
+        assertEquals(Arrays.asList(b, c, d), groups.get(1));
+    }
+
+    @Test
+    public void testSplitFewerFilesThanGroups() throws Exception {
+        Path a = file("a", 100);
+        Path b = file("b", 100);
+        List<List<Path>> groups = FileSSTableConverter.splitInputFiles(Arrays.asList(b, a), 4);
+        assertEquals(4, groups.size());
+        List<Path> all = new ArrayList<>();
+        groups.forEach(all::addAll);
+        assertEquals(Arrays.asList(a, b), all);
+        assertTrue(groups.stream().allMatch(g -> g.size() <= 1));
+    }
+
+    @Test
+    public void testSplitEmptyFiles() throws Exception {
+        Path a = file("a", 0);
+        Path b = file("b", 0);
+        List<List<Path>> groups = FileSSTableConverter.splitInputFiles(Arrays.asList(a, b), 2);
+        assertEquals(Arrays.asList(a), groups.get(0));
+        assertEquals(Arrays.asList(b), groups.get(1));
+    }
+
+    @Test
+    public void testTables() {
+        FileSSTableConverter converter = new FileSSTableConverter();
+        assertEquals(Arrays.asList(Table.TABLE_PACKETS_TIME, Table.TABLE_PACKETS_MMSI, Table.TABLE_PACKETS_AREA_CELL1,
+                Table.TABLE_PACKETS_AREA_CELL10, Table.TABLE_PACKETS_AREA_UNKNOWN), converter.tables());
+        converter.track = true;
+        assertEquals(Table.TABLE_PACKETS_TRACK, converter.tables().get(5));
+        converter.table = Table.TABLE_PACKETS_MMSI.toString();
+        assertEquals(Arrays.asList(Table.TABLE_PACKETS_MMSI), converter.tables());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownTable() {
+        FileSSTableConverter converter = new FileSSTableConverter();
+        converter.table = "packets_foo";
+        converter.tables();
+    }
+
+    @Test
+    public void testTableCommand() {
+        FileSSTableConverter converter = new FileSSTableConverter();
+        converter.inDirectory = dir.toString();
+        converter.path = "/archive";
+        converter.tableHeap = "2g";
+        converter.digest64 = true;
+        converter.timeBlocks.add("packets_time=600");
+        List<String> command = converter.tableCommand(Table.TABLE_PACKETS_AREA_CELL1);
+        String line = String.join(" ", command);
+        assertTrue(command.contains("-Xmx2g"));
+        assertTrue(line.contains(FileSSTableConverter.class.getName() + " -output " + dir + " -input - -table packets_area_cell1"));
+        assertTrue(line.contains("-digest64"));
+        assertTrue(line.contains("-timeBlock packets_time=600"));
+        assertFalse(line.contains("/archive"));
+    }
+
+    @Test
+    public void testWorkerCommand() {
+        FileSSTableConverter converter = new FileSSTableConverter();
+        converter.path = "/archive";
+        converter.workerHeap = "4g";
+        converter.bufferSize = 64;
+        List<String> command = converter.workerCommand(dir.resolve("worker-0"), dir.resolve("worker-0/input-files.txt"));
+        String line = String.join(" ", command);
+        assertEquals(1, command.stream().filter(o -> o.startsWith("-X") || o.startsWith("-agentlib")).count());
+        assertTrue(command.contains("-Xmx4g"));
+        assertTrue(line.contains("-input /archive -inputFiles " + dir.resolve("worker-0/input-files.txt")));
+        assertTrue(line.contains("-bufferSize 64"));
+    }
+}
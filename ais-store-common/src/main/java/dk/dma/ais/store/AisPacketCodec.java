@@ -0,0 +1,372 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes the raw messages of packets in the compact binary format of the aisdata_bin column.
+ * <p>
+ * A raw message is one or more lines separated by CRLF. Each line is an NMEA sentence optionally preceded by a tag
+ * block. Sentences and tag blocks are split into comma-separated fields which are stored as follows:
+ * <ul>
+ * <li>Common sentence headers such as {@code !AIVDM} are stored as a single byte.</li>
+ * <li>Decimal numbers, such as the timestamps of tag blocks and proprietary sentences, are stored as varints.</li>
+ * <li>Payloads in 6-bit ASCII armoring are packed, 4 characters in 3 bytes.</li>
+ * <li>Checksums are left out if they are valid, and recomputed when decoding.</li>
+ * <li>Anything else is stored as is.</li>
+ * </ul>
+ * Encoding is lossless, messages are decoded to exactly the same string. Messages that cannot be encoded this way, or
+ * would not be smaller, are stored as is behind a single format byte.
+ */
+public final class AisPacketCodec {
+
+    /** The format of a message stored as is (UTF-8). */
+    static final int FORMAT_RAW = 0;
+
+    /** The format of a message stored in compact form. */
+    static final int FORMAT_COMPACT = 1;
+
+    /** The line has a tag block. */
+    private static final int LINE_TAG_BLOCK = 1;
+
+    /** The checksum of the tag block was valid and has been left out. */
+    private static final int LINE_TAG_BLOCK_CHECKSUM = 2;
+
+    /** The checksum of the sentence was valid and has been left out. */
+    private static final int LINE_CHECKSUM = 4;
+
+    /** A field of ASCII characters, the header holds the length. */
+    private static final int FIELD_STRING = 0;
+
+    /** A field with a decimal number, the header holds the value. */
+    private static final int FIELD_NUMBER = 1;
+
+    /** A field in 6-bit ASCII armoring, the header holds the number of characters. */
+    private static final int FIELD_ARMORED = 2;
+
+    /** A tag block field {@code k:number}, the header holds the number and is followed by the key. */
+    private static final int FIELD_KEYED_NUMBER = 3;
+
+    /** Marks a sentence header that is not in {@link #HEADERS}. */
+    private static final int HEADER_OTHER = 0xFF;
+
+    /** Sentence headers stored as their index. Must only ever be appended to. */
+    private static final String[] HEADERS = { "!AIVDM", "!AIVDO", "$PGHP", "!BSVDM", "!BSVDO", "!ABVDM", "!ABVDO",
+            "!ANVDM", "!ANVDO", "!SAVDM", "!SAVDO" };
+
+    /** The maximum number of digits of a field stored as a number, so the header does not overflow. */
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    /** The minimum length of a field stored in 6-bit armoring, shorter fields do not get smaller. */
+    private static final int MIN_ARMORED_LENGTH = 4;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private AisPacketCodec() {}
+
+    /**
+     * Encodes the specified raw message.
+     *
+     * @param rawMessage
+     *            the raw message of a packet
+     * @return the encoded message
+     */
+    public static byte[] encode(String rawMessage) {
+        Output out = new Output(rawMessage.length());
+        out.write(FORMAT_COMPACT);
+        if (encodeCompact(rawMessage, out) && out.size < rawMessage.length() + 1) {
+            byte[] encoded = out.toByteArray();
+            if (rawMessage.equals(decode(ByteBuffer.wrap(encoded)))) {
+                return encoded;
+            }
+        }
+        byte[] raw = rawMessage.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[raw.length + 1];
+        encoded[0] = FORMAT_RAW;
+        System.arraycopy(raw, 0, encoded, 1, raw.length);
+        return encoded;
+    }
+
+    /**
+     * Decodes a message encoded with {@link #encode(String)}. The position of the buffer is not changed.
+     *
+     * @param encoded
+     *            the encoded message
+     * @return the raw message
+     * @throws IllegalArgumentException
+     *             if the message is not in a known format
+     */
+    public static String decode(ByteBuffer encoded) {
+        ByteBuffer in = encoded.duplicate();
+        int format = in.get();
+        if (format == FORMAT_RAW) {
+            return StandardCharsets.UTF_8.decode(in).toString();
+        } else if (format != FORMAT_COMPACT) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        StringBuilder sb = new StringBuilder(in.remaining() * 2);
+        long lines = readVarint(in);
+        for (long i = 0; i < lines; i++) {
+            if (i > 0) {
+                sb.append("\r\n");
+            }
+            decodeLine(in, sb);
+        }
+        return sb.toString();
+    }
+
+    private static boolean encodeCompact(String rawMessage, Output out) {
+        for (int i = 0; i < rawMessage.length(); i++) {
+            if (rawMessage.charAt(i) >= 128) {
+                return false;
+            }
+        }
+        String[] lines = rawMessage.split("\r\n", -1);
+        out.writeVarint(lines.length);
+        for (String line : lines) {
+            int flags = 0;
+            int tagEnd = -1;
+            int tagChecksumEnd = -1;
+            if (line.startsWith("\\")) {
+                tagEnd = line.indexOf('\\', 1);
+                if (tagEnd < 0) {
+                    return false;
+                }
+                flags |= LINE_TAG_BLOCK;
+                tagChecksumEnd = tagEnd;
+                if (hasValidChecksum(line, 1, tagEnd)) {
+                    flags |= LINE_TAG_BLOCK_CHECKSUM;
+                    tagChecksumEnd -= 3;
+                }
+            }
+            int start = tagEnd + 1;
+            int end = line.length();
+            if (end > start && hasValidChecksum(line, start + 1, end)) {
+                flags |= LINE_CHECKSUM;
+                end -= 3;
+            }
+            out.write(flags);
+            if (tagEnd >= 0) {
+                String[] fields = line.substring(1, tagChecksumEnd).split(",", -1);
+                out.writeVarint(fields.length);
+                for (String field : fields) {
+                    writeField(field, true, out);
+                }
+            }
+            String[] fields = line.substring(start, end).split(",", -1);
+            int header = Arrays.asList(HEADERS).indexOf(fields[0]);
+            if (header >= 0) {
+                out.write(header);
+            } else {
+                out.write(HEADER_OTHER);
+                writeField(fields[0], false, out);
+            }
+            out.writeVarint(fields.length - 1);
+            for (int i = 1; i < fields.length; i++) {
+                writeField(fields[i], false, out);
+            }
+        }
+        return true;
+    }
+
+    private static void decodeLine(ByteBuffer in, StringBuilder sb) {
+        int flags = in.get();
+        if ((flags & LINE_TAG_BLOCK) != 0) {
+            sb.append('\\');
+            int start = sb.length();
+            long fields = readVarint(in);
+            for (long i = 0; i < fields; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                readField(in, sb);
+            }
+            if ((flags & LINE_TAG_BLOCK_CHECKSUM) != 0) {
+                appendChecksum(sb, start);
+            }
+            sb.append('\\');
+        }
+        int start = sb.length();
+        int header = in.get() & 0xFF;
+        if (header == HEADER_OTHER) {
+            readField(in, sb);
+        } else {
+            sb.append(HEADERS[header]);
+        }
+        long fields = readVarint(in);
+        for (long i = 0; i < fields; i++) {
+            sb.append(',');
+            readField(in, sb);
+        }
+        if ((flags & LINE_CHECKSUM) != 0) {
+            appendChecksum(sb, start + 1);
+        }
+    }
+
+    private static void writeField(String field, boolean tagBlock, Output out) {
+        int length = field.length();
+        if (isNumber(field, 0)) {
+            out.writeVarint(Long.parseLong(field) << 2 | FIELD_NUMBER);
+        } else if (tagBlock && length > 2 && field.charAt(1) == ':' && isNumber(field, 2)) {
+            out.writeVarint(Long.parseLong(field.substring(2)) << 2 | FIELD_KEYED_NUMBER);
+            out.write(field.charAt(0));
+        } else if (length >= MIN_ARMORED_LENGTH && isArmored(field)) {
+            out.writeVarint((long) length << 2 | FIELD_ARMORED);
+            int bits = 0;
+            int bitCount = 0;
+            for (int i = 0; i < length; i++) {
+                char c = field.charAt(i);
+                bits = bits << 6 | (c < 96 ? c - 48 : c - 56);
+                bitCount += 6;
+                if (bitCount >= 8) {
+                    bitCount -= 8;
+                    out.write(bits >>> bitCount);
+                }
+            }
+            if (bitCount > 0) {
+                out.write(bits << (8 - bitCount));
+            }
+        } else {
+            out.writeVarint((long) length << 2 | FIELD_STRING);
+            for (int i = 0; i < length; i++) {
+                out.write(field.charAt(i));
+            }
+        }
+    }
+
+    private static void readField(ByteBuffer in, StringBuilder sb) {
+        long header = readVarint(in);
+        long value = header >>> 2;
+        switch ((int) header & 3) {
+        case FIELD_STRING:
+            for (long i = 0; i < value; i++) {
+                sb.append((char) in.get());
+            }
+            break;
+        case FIELD_NUMBER:
+            sb.append(value);
+            break;
+        case FIELD_KEYED_NUMBER:
+            sb.append((char) in.get()).append(':').append(value);
+            break;
+        default:
+            int bits = 0;
+            int bitCount = 0;
+            for (long i = 0; i < value; i++) {
+                if (bitCount < 6) {
+                    bits = bits << 8 | in.get() & 0xFF;
+                    bitCount += 8;
+                }
+                bitCount -= 6;
+                int c = bits >>> bitCount & 0x3F;
+                sb.append((char) (c < 40 ? c + 48 : c + 56));
+            }
+        }
+    }
+
+    /** Returns whether the characters from the specified index are a decimal number without leading zeros. */
+    private static boolean isNumber(String field, int from) {
+        int digits = field.length() - from;
+        if (digits == 0 || digits > MAX_NUMBER_DIGITS || digits > 1 && field.charAt(from) == '0') {
+            return false;
+        }
+        for (int i = from; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns whether all characters are valid in 6-bit ASCII armoring. */
+    private static boolean isArmored(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c < '0' || c > 'w' || c > 'W' && c < '`') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns whether the characters from start to end end with a valid checksum in upper case ({@code *hh}). */
+    private static boolean hasValidChecksum(String s, int start, int end) {
+        if (end - start < 3 || s.charAt(end - 3) != '*') {
+            return false;
+        }
+        int checksum = checksum(s, start, end - 3);
+        return s.charAt(end - 2) == HEX[checksum >>> 4] && s.charAt(end - 1) == HEX[checksum & 0xF];
+    }
+
+    /** Appends the checksum of the characters from the specified index. */
+    private static void appendChecksum(StringBuilder sb, int start) {
+        int checksum = checksum(sb, start, sb.length());
+        sb.append('*').append(HEX[checksum >>> 4]).append(HEX[checksum & 0xF]);
+    }
+
+    private static int checksum(CharSequence s, int start, int end) {
+        int checksum = 0;
+        for (int i = start; i < end; i++) {
+            checksum ^= s.charAt(i);
+        }
+        return checksum & 0xFF;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /** A growable byte array. */
+    private static final class Output {
+
+        byte[] bytes;
+
+        int size;
+
+        Output(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
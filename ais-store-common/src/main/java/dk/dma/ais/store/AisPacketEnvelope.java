@@ -0,0 +1,167 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.ByteBuffer;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A packet together with the values that are needed to store it. The packet is decoded and hashed exactly once, when
+ * the envelope is created, after which the values can be shared by all writers.
+ */
+public final class AisPacketEnvelope {
+
+    /** The packet. */
+    private final AisPacket packet;
+
+    /** The raw message of the packet. */
+    private final String rawMessage;
+
+    /** The decoded message, or null if the packet could not be decoded. */
+    private final AisMessage message;
+
+    /** The best timestamp of the packet (millis since the epoch). */
+    private final long timestamp;
+
+    /** The MMSI number, or -1 if the packet could not be decoded. */
+    private final int mmsi;
+
+    /** The message type, or -1 if the packet could not be decoded. */
+    private final int messageType;
+
+    /** The valid position reported by the message, or null. */
+    private final Position position;
+
+    /** The digest of the raw message. */
+    private final byte[] digest;
+
+    private AisPacketEnvelope(AisPacket packet) {
+        this.packet = requireNonNull(packet);
+        this.rawMessage = packet.getStringMessage();
+        this.message = packet.tryGetAisMessage();
+        this.timestamp = packet.getBestTimestamp();
+        this.mmsi = message == null ? -1 : message.getUserId();
+        this.messageType = message == null ? -1 : message.getMsgId();
+        this.position = message == null ? null : message.getValidPosition();
+        this.digest = AisStoreSchema.digest(rawMessage);
+    }
+
+    /**
+     * Returns the packet.
+     *
+     * @return the packet
+     */
+    public AisPacket getPacket() {
+        return packet;
+    }
+
+    /**
+     * Returns the raw message of the packet.
+     *
+     * @return the raw message of the packet
+     */
+    public String getStringMessage() {
+        return rawMessage;
+    }
+
+    /**
+     * Returns the decoded message.
+     *
+     * @return the decoded message, or null if the packet could not be decoded
+     */
+    public AisMessage getAisMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the best timestamp of the packet.
+     *
+     * @return the best timestamp of the packet (millis since the epoch), or a non-positive value if it is unknown
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the MMSI number of the message.
+     *
+     * @return the MMSI number of the message, or -1 if the packet could not be decoded
+     */
+    public int getMmsi() {
+        return mmsi;
+    }
+
+    /**
+     * Returns the type of the message.
+     *
+     * @return the type of the message, or -1 if the packet could not be decoded
+     */
+    public int getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * Returns the valid position reported by the message. This is not an estimated position, use a
+     * {@link PositionTracker} for that.
+     *
+     * @return the valid position reported by the message, or null if the message does not contain one
+     */
+    public Position getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the digest of the raw message. The returned array must not be modified.
+     *
+     * @return the digest of the raw message
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns the 64-bit digest of the raw message, see {@link AisStoreSchema#digest64(String)}.
+     *
+     * @return the 64-bit digest of the raw message
+     */
+    public long getDigest64() {
+        return AisStoreSchema.digest64(digest);
+    }
+
+    /**
+     * Returns a new buffer wrapping the digest of the raw message.
+     *
+     * @return a new buffer wrapping the digest of the raw message
+     */
+    public ByteBuffer getDigestBuffer() {
+        return ByteBuffer.wrap(digest);
+    }
+
+    /**
+     * Creates a new envelope for the specified packet.
+     *
+     * @param packet
+     *            the packet
+     * @return a new envelope
+     */
+    public static AisPacketEnvelope of(AisPacket packet) {
+        return new AisPacketEnvelope(packet);
+    }
+}
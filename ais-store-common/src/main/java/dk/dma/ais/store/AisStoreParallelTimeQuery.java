@@ -0,0 +1,295 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import com.datastax.driver.core.Session;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.SettableFuture;
+import dk.dma.ais.packet.AisPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMEBLOCK;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TIME;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Queries packets_time by splitting the interval into chunks of whole time blocks and fetching several chunks
+ * concurrently. Chunks are returned one after another in the order of time, so packets are returned in the same order
+ * as a single sequential query. Each running chunk buffers a bounded number of packets, so at most
+ * {@code parallelism * bufferSize} packets are held in memory.
+ * <p>
+ * The threads fetching chunks stop when the query is cancelled, when all packets have been returned, or when this
+ * iterator is garbage collected without being read to the end. They do not reference the iterator, and the queries of
+ * all chunks share the limit of concurrent queries of the whole query.
+ */
+class AisStoreParallelTimeQuery extends AbstractIterator<AisPacket> implements TimestampedIterator<AisPacket> {
+
+    static final Logger LOG = LoggerFactory.getLogger(AisStoreParallelTimeQuery.class);
+
+    /** Marks the end of a chunk. */
+    static final Object END = new Object();
+
+    /** The session used for querying. */
+    private final Session session;
+
+    /** The number of results to get at a time. */
+    private final int batchLimit;
+
+    /** The number of pages each chunk fetches ahead. */
+    private final int prefetchPages;
+
+    /** The context of the whole query. */
+    private final AisStoreQueryInnerContext inner;
+
+    /** The context of the queries of the chunks, sharing the limit of concurrent queries of the whole query. */
+    private final AisStoreQueryInnerContext chunkContext = new AisStoreQueryInnerContext();
+
+    /** Tells the threads fetching chunks to stop. */
+    private final BooleanSupplier stopped;
+
+    /** Set when all packets have been returned or a chunk failed. */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** The chunks that have not yet been started. */
+    private final Iterator<Chunk> pending;
+
+    /** The chunks that have been started, in the order they should be returned. */
+    private final ArrayDeque<Chunk> running = new ArrayDeque<>();
+
+    /** The threads fetching chunks, which time out when idle. */
+    private final ExecutorService executor;
+
+    /** The time column of the packet last computed, which is the next packet returned. */
+    private long nextTimestamp;
+
+    AisStoreParallelTimeQuery(Session session, AisStoreQueryInnerContext inner, int batchLimit, int prefetchPages, int parallelism,
+            int timeBlocksPerChunk, Instant timeStartInclusive, Instant timeStopExclusive) {
+        this.session = requireNonNull(session);
+        this.inner = requireNonNull(inner);
+        this.batchLimit = batchLimit;
+        this.prefetchPages = prefetchPages;
+        this.chunkContext.inFlightQueries = inner.inFlightQueries;
+        this.stopped = stopped(inner.inner, closed, new WeakReference<>(this));
+        this.pending = split(timeStartInclusive, timeStopExclusive, timeBlocksPerChunk, batchLimit).iterator();
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "AisStoreParallelTimeQuery");
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+        inner.queries.add(this);
+        for (int i = 0; i < parallelism && pending.hasNext(); i++) {
+            startNext();
+        }
+    }
+
+    /**
+     * Splits the interval at time block boundaries into chunks of at most the specified number of time blocks, in the
+     * order of time.
+     */
+    static List<Chunk> split(Instant timeStartInclusive, Instant timeStopExclusive, int timeBlocksPerChunk, int bufferSize) {
+        List<Chunk> chunks = new ArrayList<>();
+        int startBlock = AisStoreSchema.timeBlock(TABLE_PACKETS_TIME, timeStartInclusive);
+        int stopBlock = AisStoreSchema.timeBlock(TABLE_PACKETS_TIME, timeStopExclusive.minusMillis(1));
+        for (int block = startBlock; block <= stopBlock; block += timeBlocksPerChunk) {
+            int lastBlock = Math.min(stopBlock, block + timeBlocksPerChunk - 1);
+            Instant from = block == startBlock ? timeStartInclusive : AisStoreSchema.timeBlockStart(TABLE_PACKETS_TIME, block);
+            Instant to = lastBlock == stopBlock ? timeStopExclusive : AisStoreSchema.timeBlockStart(TABLE_PACKETS_TIME, lastBlock + 1);
+            chunks.add(new Chunk(block, lastBlock, from, to, bufferSize));
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns whether the threads fetching chunks should stop. Must not reference the iterator, or it could never be
+     * garbage collected while a thread is waiting for room in the queue of a chunk.
+     */
+    private static BooleanSupplier stopped(SettableFuture<Void> cancelled, AtomicBoolean closed,
+            WeakReference<AisStoreParallelTimeQuery> consumer) {
+        return () -> closed.get() || cancelled.isCancelled() || consumer.get() == null;
+    }
+
+    private void startNext() {
+        Chunk c = pending.next();
+        running.add(c);
+        // copied to locals so the task does not reference this iterator
+        Session session = this.session;
+        AisStoreQueryInnerContext context = this.chunkContext;
+        int batchLimit = this.batchLimit;
+        int prefetchPages = this.prefetchPages;
+        BooleanSupplier stopped = this.stopped;
+        executor.execute(() -> c.fetch(session, context, batchLimit, prefetchPages, stopped));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected AisPacket computeNext() {
+        Chunk c;
+        while ((c = running.peek()) != null) {
+            Row next;
+            try {
+                next = c.take(stopped);
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+            if (next != null) {
+                nextTimestamp = next.timestamp;
+                return next.packet;
+            } else if (stopped.getAsBoolean()) {
+                break; // cancelled
+            }
+            running.poll();
+            if (pending.hasNext()) {
+                startNext();
+            }
+        }
+        close();
+        inner.finished(this);
+        return endOfData();
+    }
+
+    /** Stops the threads fetching chunks. */
+    private void close() {
+        closed.set(true);
+        executor.shutdownNow();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long peekTimestamp() {
+        return nextTimestamp;
+    }
+
+    /** A range of time blocks that is fetched by one thread. */
+    static final class Chunk {
+
+        final int firstBlock;
+
+        final int lastBlock;
+
+        final Instant from;
+
+        final Instant to;
+
+        /** Rows fetched but not yet returned, followed by {@link #END} when the chunk is done. */
+        final BlockingQueue<Object> queue;
+
+        volatile Throwable failure;
+
+        Chunk(int firstBlock, int lastBlock, Instant from, Instant to, int bufferSize) {
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+            this.from = from;
+            this.to = to;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+        }
+
+        /** Fetches the packets of this chunk into the queue, until done or stopped. */
+        void fetch(Session session, AisStoreQueryInnerContext context, int batchLimit, int prefetchPages,
+                BooleanSupplier stopped) {
+            if (stopped.getAsBoolean()) {
+                return;
+            }
+            try {
+                AisStoreQuery q = new AisStoreQuery(session, context, batchLimit, prefetchPages, TABLE_PACKETS_TIME,
+                        COLUMN_TIMEBLOCK, firstBlock, lastBlock, from, to);
+                while (q.hasNext()) {
+                    // the time column of the packet, which packets_time is ordered by
+                    long timestamp = q.peekTimestamp();
+                    if (!put(new Row(q.next(), timestamp), stopped)) {
+                        return;
+                    }
+                }
+            } catch (Throwable t) {
+                if (stopped.getAsBoolean()) {
+                    return;
+                }
+                LOG.error("Failed to fetch packets from " + from + " to " + to, t);
+                failure = t;
+            }
+            put(END, stopped);
+        }
+
+        /** Returns false if the query was stopped while waiting for room in the queue. */
+        boolean put(Object o, BooleanSupplier stopped) {
+            try {
+                while (!queue.offer(o, 1, TimeUnit.SECONDS)) {
+                    if (stopped.getAsBoolean()) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /** Returns the next packet of this chunk, or null if there are no more or the query was stopped. */
+        Row take(BooleanSupplier stopped) {
+            Object o;
+            try {
+                while ((o = queue.poll(1, TimeUnit.SECONDS)) == null) {
+                    if (stopped.getAsBoolean()) {
+                        return null;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for packets", e);
+            }
+            if (o == END) {
+                if (failure != null) {
+                    throw new IllegalStateException("Failed to fetch packets from " + from + " to " + to, failure);
+                }
+                return null;
+            }
+            return (Row) o;
+        }
+    }
+
+    /** A packet and the time column of its row in packets_time. */
+    static final class Row {
+
+        final AisPacket packet;
+
+        final long timestamp;
+
+        Row(AisPacket packet, long timestamp) {
+            this.packet = packet;
+            this.timestamp = timestamp;
+        }
+    }
+}
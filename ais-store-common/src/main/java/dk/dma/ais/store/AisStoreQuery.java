@@ -22,24 +22,33 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.store.AisStoreSchema.Column;
 import dk.dma.ais.store.AisStoreSchema.Table;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.Position;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
 
 import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
-import static com.datastax.driver.core.querybuilder.QueryBuilder.gt;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.gte;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.in;
 import static com.datastax.driver.core.querybuilder.QueryBuilder.lt;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA_BIN;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA_DIGEST;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_MESSAGE_TYPE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_MMSI;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMEBLOCK;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMESTAMP;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_MMSI_TYPE;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TIME;
 import static java.util.Objects.requireNonNull;
 
@@ -48,23 +57,32 @@ import static java.util.Objects.requireNonNull;
  * 
  * @author Jens Tuxen
  */
-class AisStoreQuery extends AbstractIterator<AisPacket> {
+class AisStoreQuery extends AbstractIterator<AisPacket> implements TimestampedIterator<AisPacket> {
 
     static final Logger LOG = LoggerFactory.getLogger(AisStoreQuery.class);
 
-    /**
-     * AisPacket implements Comparable. But I'm to afraid someone might break
-     * the functionality someday. So we make a manual iterator
-     * */
-    static final Comparator<AisPacket> COMPARATOR = new Comparator<AisPacket>() {
-        public int compare(AisPacket p1, AisPacket p2) {
-            return Long.compare(p1.getBestTimestamp(), p2.getBestTimestamp());
-        }
-    };
+    /** The maximum number of references to packets_time that are resolved concurrently. */
+    static final int MAX_PENDING_REFERENCES = 256;
 
     /** The number of results to get at a time. */
     private final int batchLimit;
 
+    /** The number of pages to fetch ahead of the rows being read. */
+    private final int prefetchPages;
+
+    /** The page currently being fetched ahead, or null. */
+    private ListenableFuture<Void> prefetch;
+
+    /**
+     * If non-null, packets with a position outside of this area are skipped.
+     * Packets without a position are always returned, as they are stored by
+     * the estimated position of the vessel.
+     */
+    private final Area filter;
+
+    /** The message type of the packets if querying packets_mmsi_type, otherwise -1. */
+    private final int messageType;
+
     /** The session used for querying. */
     private final Session session;
 
@@ -89,15 +107,44 @@ class AisStoreQuery extends AbstractIterator<AisPacket> {
 
     /**
      * All queries are done asynchronously. This future holds the result of the
-     * last query we made.
+     * first page until it has been read on the first call to
+     * {@link #computeNext()}.
      */
     private ResultSetFuture future;
 
     /**
-     * A list of packets that we have received from AisStore but have not yet
-     * returned to the user.
+     * The timestamps of the rows that we have received from AisStore but have
+     * not yet returned to the user.
+     */
+    private final long[] bufferedTimes;
+
+    /**
+     * The raw messages of the rows that we have received from AisStore but
+     * have not yet returned to the user. Packets are only parsed when they are
+     * returned.
+     */
+    private final String[] bufferedRows;
+
+    /**
+     * The pending queries of packets_time for buffered rows that only refer to
+     * their packet, indexed like {@link #bufferedRows}.
      */
-    private LinkedList<AisPacket> packets = new LinkedList<>();
+    private final ResultSetFuture[] pendingReferences;
+
+    /** The number of non-null entries in {@link #pendingReferences}. */
+    private int pendingReferenceCount;
+
+    /** Resolves rows that refer to packets_time, created when the first such row is read. */
+    private PacketResolver resolver;
+
+    /** The time column of the packet last computed, which is the next packet returned. */
+    private long nextTimestamp;
+
+    /** The index of the next buffered row to return. */
+    private int bufferHead;
+
+    /** The number of buffered rows. */
+    private int bufferSize;
 
     /** The number of packets that was retrieved. */
     private volatile long retrievedPackets;
@@ -109,25 +156,49 @@ class AisStoreQuery extends AbstractIterator<AisPacket> {
     private Iterator<Row> it;
     private ResultSet rs;
 
+    /** Whether the table has the aisdata_bin column, which is then read along with aisdata. */
+    private boolean binary;
+
     AisStoreQuery(Session session, AisStoreQueryInnerContext inner,
-                  int batchLimit, Table table, Column rowName, int rowStart,
-                  Instant timeStartInclusive, Instant timeStopExclusive) {
-        this(session, inner, batchLimit, table, rowName, rowStart,
-                rowStart, timeStartInclusive, timeStopExclusive);
+                  int batchLimit, int prefetchPages, Table table, Column rowName, int row,
+                  Area filter, Instant timeStartInclusive, Instant timeStopExclusive) {
+        this(session, inner, batchLimit, prefetchPages, table, rowName, row,
+                row, -1, filter, timeStartInclusive, timeStopExclusive);
     }
 
     AisStoreQuery(Session session, AisStoreQueryInnerContext inner,
-                  int batchLimit, Table table, Column rowName, int rowStart,
+                  int batchLimit, int prefetchPages, Table table, Column rowName, int rowStart,
                   int rowStop, Instant timeStartInclusive, Instant timeStopExclusive) {
+        this(session, inner, batchLimit, prefetchPages, table, rowName, rowStart,
+                rowStop, -1, null, timeStartInclusive, timeStopExclusive);
+    }
+
+    /** Creates a query of packets_mmsi_type for the packets of one message type sent by a vessel. */
+    AisStoreQuery(Session session, AisStoreQueryInnerContext inner,
+                  int batchLimit, int prefetchPages, int mmsi, int messageType,
+                  Instant timeStartInclusive, Instant timeStopExclusive) {
+        this(session, inner, batchLimit, prefetchPages, TABLE_PACKETS_MMSI_TYPE, COLUMN_MMSI, mmsi,
+                mmsi, messageType, null, timeStartInclusive, timeStopExclusive);
+    }
+
+    private AisStoreQuery(Session session, AisStoreQueryInnerContext inner,
+                  int batchLimit, int prefetchPages, Table table, Column rowName, int rowStart,
+                  int rowStop, int messageType, Area filter, Instant timeStartInclusive, Instant timeStopExclusive) {
         this.session = requireNonNull(session);
         this.table = requireNonNull(table);
         this.rowName = requireNonNull(rowName);
         this.currentRow = rowStart;
         this.lastRow = rowStop;
         this.batchLimit = batchLimit;
+        this.prefetchPages = prefetchPages;
+        this.messageType = messageType;
+        this.filter = filter;
         this.timeStart = timeStartInclusive;
         this.timeStop = timeStopExclusive;
         this.inner = inner;
+        this.bufferedTimes = new long[batchLimit];
+        this.bufferedRows = new String[batchLimit];
+        this.pendingReferences = new ResultSetFuture[batchLimit];
 
         execute();
         inner.queries.add(this);
@@ -143,76 +214,162 @@ class AisStoreQuery extends AbstractIterator<AisPacket> {
     }
 
     public AisPacket computeNext() {
-        AisPacket next = packets.poll();
-        if (next != null) {
-            return next;
+        if (rs == null) {
+            rs = future.getUninterruptibly();
+            it = rs.iterator();
+            future = null;
         }
-        while (currentRow <= lastRow) {
-            Row row = null;
-            int innerReceived = 0;
-            while (it.hasNext() && innerReceived < batchLimit) {
-
-                // optimistic automatic-paging+fetch
-                if (rs.getAvailableWithoutFetching() == 100
-                        && !rs.isFullyFetched()) {
-                    rs.fetchMoreResults();
-                }
-
-                row = it.next();
-                packets.add(AisPacket.from(row.getString(1)));
-                retrievedPackets++;
-                innerReceived++;
+        for (;;) {
+            if (bufferSize == 0 && !fill()) {
+                currentRow = lastRow + 1;
+                inner.finished(this);
+                return endOfData();
+            }
+            String row = bufferedRows[bufferHead];
+            bufferedRows[bufferHead] = null;
+            nextTimestamp = bufferedTimes[bufferHead];
+            bufferHead++;
+            bufferSize--;
+            if (row == null) {
+                continue; // a reference to a packet that is missing in packets_time
             }
+            AisPacket packet = AisPacket.from(row);
+            if (filter == null || accept(packet)) {
+                return packet;
+            }
+        }
+    }
 
-            if (innerReceived > 0) {
-                lastestDateReceived = Instant.ofEpochMilli(row.getDate(0).getTime());
+    /** Returns false if the packet has a position outside of the filter area. */
+    private boolean accept(AisPacket packet) {
+        AisMessage message = packet.tryGetAisMessage();
+        Position position = message == null ? null : message.getValidPosition();
+        return position == null || filter.contains(position);
+    }
 
-                // currentRow == lastRow when packets_mmsi or packets_cell
-                if (!(currentRow == lastRow)) {
-                    currentRow = AisStoreSchema.timeBlock(table, lastestDateReceived);
-                    // System.out.println("Currently at: "+currentRow+" Last ROW is: "+lastRow);
-                }
+    /** {@inheritDoc} */
+    @Override
+    public long peekTimestamp() {
+        return nextTimestamp;
+    }
 
-                LOG.info("Currently at: " + lastestDateReceived);
+    /**
+     * Reads the next rows into the buffer.
+     *
+     * @return false if there are no more rows
+     */
+    private boolean fill() {
+        int received = 0;
+        int firstPending = 0;
+        while (received < batchLimit && it.hasNext()) {
+
+            prefetch();
+
+            Row row = it.next();
+            long time = row.getDate(0).getTime();
+            bufferedTimes[received] = time;
+            if (!row.isNull(2)) {
+                bufferedRows[received] = row.getString(2);
+            } else if (binary && !row.isNull(3)) {
+                bufferedRows[received] = AisPacketCodec.decode(row.getBytes(3));
+            } else {
+                // The row only refers to the packet in packets_time
+                if (resolver == null) {
+                    resolver = PacketResolver.of(session);
+                }
+                pendingReferences[received] = resolver.resolve(time, row.getBytesUnsafe(1));
+                if (++pendingReferenceCount >= MAX_PENDING_REFERENCES) {
+                    firstPending = resolveReferences(firstPending, received + 1);
+                }
             }
+            received++;
+        }
+        resolveReferences(firstPending, received);
+        bufferHead = 0;
+        bufferSize = received;
+        if (received == 0) {
+            return false;
+        }
+        retrievedPackets += received;
+        lastestDateReceived = Instant.ofEpochMilli(bufferedTimes[received - 1]);
 
-            if (!packets.isEmpty()) {
-                return packets.poll();
-            }
+        // currentRow == lastRow when packets_mmsi or packets_cell
+        if (!(currentRow == lastRow)) {
+            currentRow = AisStoreSchema.timeBlock(table, lastestDateReceived);
+        }
 
-            if (rs.isFullyFetched() || future.isDone()) {
-                currentRow = lastRow + 1;
-                inner.finished(this);
-                return endOfData();
-            }
+        LOG.info("Currently at: " + lastestDateReceived);
+        return true;
+    }
 
+    /**
+     * Waits for the pending references of the buffered rows in the specified
+     * range, which were all sent before waiting for the first of them.
+     *
+     * @return the end of the range
+     */
+    private int resolveReferences(int from, int to) {
+        for (int i = from; i < to && pendingReferenceCount > 0; i++) {
+            if (pendingReferences[i] != null) {
+                bufferedRows[i] = resolver.get(pendingReferences[i]);
+                pendingReferences[i] = null;
+                pendingReferenceCount--;
+            }
         }
+        return to;
+    }
 
-        inner.finished(this);
-        return endOfData();
+    /**
+     * Fetches the next page in the background if fewer than prefetchPages
+     * pages are available, so reading rows does not wait for a round trip.
+     */
+    private void prefetch() {
+        if ((prefetch == null || prefetch.isDone()) && !rs.isFullyFetched()
+                && rs.getAvailableWithoutFetching() < prefetchPages * batchLimit) {
+            prefetch = rs.fetchMoreResults();
+        }
     }
 
-    /** execute takes over from advance, which is not necessary anymore */
+    /**
+     * Sends the query without waiting for the first page, so the queries of an
+     * area or multi-MMSI query run concurrently. If the context limits the
+     * number of concurrent queries, waits until the first page of an earlier
+     * query has arrived.
+     */
     void execute() {
         Integer[] timeBlocks = AisStoreSchema.timeBlocks(table, timeStart, timeStop);
+        binary = AisStoreSchema.hasColumn(session, table, COLUMN_AISDATA_BIN);
+        String[] columns = binary
+                ? new String[] { COLUMN_TIMESTAMP.toString(), COLUMN_AISDATA_DIGEST.toString(), COLUMN_AISDATA.toString(), COLUMN_AISDATA_BIN.toString() }
+                : new String[] { COLUMN_TIMESTAMP.toString(), COLUMN_AISDATA_DIGEST.toString(), COLUMN_AISDATA.toString() };
 
         Statement select;
         switch (table) {
         case TABLE_PACKETS_TIME:
             select = QueryBuilder
-                .select(COLUMN_TIMESTAMP.toString(), COLUMN_AISDATA.toString())
+                .select(columns)
                 .from(TABLE_PACKETS_TIME.toString())
                 .where(in(COLUMN_TIMEBLOCK.toString(), timeBlocks))
-                .and(gt(COLUMN_TIMESTAMP.toString(), timeStart.toEpochMilli()))
+                .and(gte(COLUMN_TIMESTAMP.toString(), timeStart.toEpochMilli()))
+                .and(lt(COLUMN_TIMESTAMP.toString(), timeStop.toEpochMilli()));
+            break;
+        case TABLE_PACKETS_MMSI_TYPE:
+            select = QueryBuilder
+                .select(columns)
+                .from(TABLE_PACKETS_MMSI_TYPE.toString())
+                .where(eq(COLUMN_MMSI.toString(), currentRow))
+                .and(eq(COLUMN_MESSAGE_TYPE.toString(), messageType))
+                .and(in(COLUMN_TIMEBLOCK.toString(), timeBlocks))
+                .and(gte(COLUMN_TIMESTAMP.toString(), timeStart.toEpochMilli()))
                 .and(lt(COLUMN_TIMESTAMP.toString(), timeStop.toEpochMilli()));
             break;
         default:
             select = QueryBuilder
-                .select(COLUMN_TIMESTAMP.toString(), COLUMN_AISDATA.toString())
+                .select(columns)
                 .from(table.toString())
                 .where(eq(rowName.toString(), currentRow))
                 .and(in(COLUMN_TIMEBLOCK.toString(), timeBlocks))
-                .and(gt(COLUMN_TIMESTAMP.toString(), timeStart.toEpochMilli()))
+                .and(gte(COLUMN_TIMESTAMP.toString(), timeStart.toEpochMilli()))
                 .and(lt(COLUMN_TIMESTAMP.toString(), timeStop.toEpochMilli()));
             break;
         }
@@ -221,9 +378,21 @@ class AisStoreQuery extends AbstractIterator<AisPacket> {
         select.setConsistencyLevel(ConsistencyLevel.ONE);
         // select.limit(Integer.MAX_VALUE); // Sets the limit
 
-        future = session.executeAsync(select);
-        rs = future.getUninterruptibly();
-        it = rs.iterator();
+        Semaphore inFlight = inner.inFlightQueries;
+        if (inFlight != null) {
+            inFlight.acquireUninterruptibly();
+        }
+        try {
+            future = session.executeAsync(select);
+        } catch (RuntimeException e) {
+            if (inFlight != null) {
+                inFlight.release();
+            }
+            throw e;
+        }
+        if (inFlight != null) {
+            future.addListener(inFlight::release, MoreExecutors.sameThreadExecutor());
+        }
     }
 
 }
@@ -15,22 +15,24 @@
 package dk.dma.ais.store;
 
 import com.datastax.driver.core.Session;
-import com.google.common.collect.AbstractIterator;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.store.AisStoreSchema.Table;
 import dk.dma.db.cassandra.CassandraQueryBuilder;
 import dk.dma.enav.model.geometry.Area;
-import dk.dma.enav.model.geometry.grid.Cell;
-import dk.dma.enav.model.geometry.grid.Grid;
 import org.joda.time.Interval;
 
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
 
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_CELLID;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_MMSI;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMEBLOCK;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL01;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL1;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL10;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_MMSI;
@@ -51,6 +53,9 @@ public final class AisStoreQueryBuilder extends CassandraQueryBuilder<AisStoreQu
     /** The list of MMSI number to retrieve. */
     final int[] mmsi;
 
+    /** The message types an MMSI query reads from packets_mmsi_type, or null to read all of packets_mmsi. */
+    int[] messageTypes;
+
     /** The start epoch time (inclusive) */
     Instant startTimeInclusive;
 
@@ -60,6 +65,33 @@ public final class AisStoreQueryBuilder extends CassandraQueryBuilder<AisStoreQu
     /** True if queries should use packets_area_cell10 when relevant; false if always use packets_area_cell1 */
     private boolean cell10Enabled = AisStoreSchema.TABLE_PACKETS_AREA_CELL10_ENABLED;
 
+    /**
+     * The maximum number of cells of size 0.1 degree an area may cover for it to be read from packets_area_cell01,
+     * roughly an area of 2 by 2 degrees.
+     */
+    static final int MAX_CELL01_CELLS = 400;
+
+    /** True if queries should use packets_area_cell01 for small areas */
+    private boolean cell01Enabled;
+
+    /**
+     * True if area queries should choose between packets_area_cell1 and packets_area_cell10 per cell using the
+     * statistics in packets_area_cell_stats. Only used if cell10 is enabled.
+     */
+    private boolean cellStatisticsEnabled;
+
+    /** The number of pages each query fetches ahead of the packets being read. */
+    int prefetchPages = 2;
+
+    /** The maximum number of per-cell or per-MMSI queries waiting for their first page. */
+    int maxConcurrentQueries = 32;
+
+    /** The number of chunks of a time query that are fetched concurrently. */
+    int parallelism = 1;
+
+    /** The number of time blocks in each chunk of a parallel time query. */
+    int timeBlocksPerChunk = 1;
+
     private AisStoreQueryBuilder(Area area, int[] mmsi) {
         this.area = area;
         this.mmsi = mmsi;
@@ -68,52 +100,195 @@ public final class AisStoreQueryBuilder extends CassandraQueryBuilder<AisStoreQu
     protected AisStoreQueryResult execute(Session s) {
         requireNonNull(s);
         AisStoreQueryInnerContext inner = new AisStoreQueryInnerContext();
-        ArrayList<AbstractIterator<AisPacket>> queries = new ArrayList<>();
+        inner.inFlightQueries = new Semaphore(maxConcurrentQueries);
+        ArrayList<TimestampedIterator<AisPacket>> queries = new ArrayList<>();
         if (area != null) {
-            Set<Cell> cells = Grid.GRID_1_DEGREE.getCells(area);
-            Table table = TABLE_PACKETS_AREA_CELL1;
-
-            if (cell10Enabled) {
-                Set<Cell> cells10 = Grid.GRID_10_DEGREES.getCells(area);
-
-                // Determines if use the tables of size 1 degree, or size 10 degrees
-                final int factor = 10;// magic constant
-                final boolean useCell1 = cells10.size() * factor > cells.size();
-
-                if (!useCell1) {
-                    cells = cells10;
-                    table = TABLE_PACKETS_AREA_CELL10;
-                }
-            }
-
             // We create multiple queries and use a priority queue to return packets from each ship sorted by their
             // timestamp
-            for (Cell c : cells) {
-                queries.add(new AisStoreQuery(s, inner, batchLimit, table, COLUMN_CELLID, (int)c.getCellId(), startTimeInclusive, stopTimeExclusive));
+            if (cell01Enabled && AreaCoverage.maxSize(area, 0.1) <= MAX_CELL01_CELLS) {
+                // Small areas, such as a harbour, are read from the cells of size 0.1 degree
+                AreaCoverage cells01 = AreaCoverage.of(area, 0.1);
+                addAreaQueries(queries, s, inner, TABLE_PACKETS_AREA_CELL01, cells01, cells01.getCellIds());
+            } else {
+                AreaCoverage cells1 = AreaCoverage.of(area, 1);
+                AreaCoverage cells10 = cell10Enabled ? AreaCoverage.of(area, 10) : null;
+                for (Map.Entry<Table, List<Integer>> e : planArea(s, cells1, cells10).entrySet()) {
+                    AreaCoverage coverage = e.getKey() == TABLE_PACKETS_AREA_CELL10 ? cells10 : cells1;
+                    addAreaQueries(queries, s, inner, e.getKey(), coverage, e.getValue());
+                }
             }
         } else if (mmsi != null) {
             for (int m : mmsi) {
-                queries.add(new AisStoreQuery(s, inner, batchLimit, TABLE_PACKETS_MMSI, COLUMN_MMSI, m, startTimeInclusive, stopTimeExclusive));
+                if (messageTypes == null) {
+                    queries.add(new AisStoreQuery(s, inner, batchLimit, prefetchPages, TABLE_PACKETS_MMSI, COLUMN_MMSI, m, null, startTimeInclusive, stopTimeExclusive));
+                } else {
+                    // One partition per message type, merged by timestamp like the queries of several vessels
+                    for (int messageType : messageTypes) {
+                        queries.add(new AisStoreQuery(s, inner, batchLimit, prefetchPages, m, messageType, startTimeInclusive, stopTimeExclusive));
+                    }
+                }
             }
+        } else if (parallelism > 1) {
+            queries.add(new AisStoreParallelTimeQuery(s, inner, batchLimit, prefetchPages, parallelism, timeBlocksPerChunk, startTimeInclusive, stopTimeExclusive));
         } else {
             int start = AisStoreSchema.timeBlock(TABLE_PACKETS_TIME, startTimeInclusive);
             int stop = AisStoreSchema.timeBlock(TABLE_PACKETS_TIME, stopTimeExclusive.minusMillis(1));
-            queries.add(new AisStoreQuery(s, inner, batchLimit, TABLE_PACKETS_TIME, COLUMN_TIMEBLOCK, start, stop, startTimeInclusive, stopTimeExclusive));
+            queries.add(new AisStoreQuery(s, inner, batchLimit, prefetchPages, TABLE_PACKETS_TIME, COLUMN_TIMEBLOCK, start, stop, startTimeInclusive, stopTimeExclusive));
         }
         return new AisStoreQueryResult(inner, queries);
 
     }
 
+    /** Adds a query for each of the specified cells of the table. */
+    private void addAreaQueries(List<TimestampedIterator<AisPacket>> queries, Session s,
+            AisStoreQueryInnerContext inner, Table table, AreaCoverage coverage, List<Integer> cellIds) {
+        for (int cellId : cellIds) {
+            // Only packets from cells partially covered by the area need to be filtered by position
+            Area filter = coverage.isInside(cellId) ? null : area;
+            queries.add(new AisStoreQuery(s, inner, batchLimit, prefetchPages, table, COLUMN_CELLID, cellId, filter, startTimeInclusive, stopTimeExclusive));
+        }
+    }
+
+    /** Returns the cells of packets_area_cell1 and packets_area_cell10 to read for the area. */
+    private Map<Table, List<Integer>> planArea(Session s, AreaCoverage cells1, AreaCoverage cells10) {
+        if (cell10Enabled && cellStatisticsEnabled) {
+            CellStatistics statistics = CellStatistics.read(s, startTimeInclusive, stopTimeExclusive);
+            if (!statistics.isEmpty()) {
+                return AreaQueryPlanner.plan(cells1, statistics);
+            }
+        }
+
+        AreaCoverage cells = cells1;
+        Table table = TABLE_PACKETS_AREA_CELL1;
+        if (cell10Enabled) {
+            // Determines if use the tables of size 1 degree, or size 10 degrees
+            final int factor = 10;// magic constant
+            final boolean useCell1 = cells10.size() * factor > cells1.size();
+
+            if (!useCell1) {
+                cells = cells10;
+                table = TABLE_PACKETS_AREA_CELL10;
+            }
+        }
+        return Collections.singletonMap(table, cells.getCellIds());
+    }
+
     public AisStoreQueryBuilder setFetchSize(int limit) {
         this.batchLimit = limit;
         return this;
     }
 
+    /**
+     * Sets the number of pages (of the fetch size) each query fetches ahead of the packets being read. The default is
+     * 2.
+     *
+     * @param prefetchPages
+     *            the number of pages to fetch ahead, 0 to only fetch a page when the previous one has been read
+     * @return this builder
+     */
+    public AisStoreQueryBuilder setPrefetchPages(int prefetchPages) {
+        if (prefetchPages < 0) {
+            throw new IllegalArgumentException("Prefetch pages must not be negative, was " + prefetchPages);
+        }
+        this.prefetchPages = prefetchPages;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of queries that are waiting for their first page. Area and multi-MMSI queries send one
+     * query per cell or MMSI, these are sent concurrently up to this limit. The default is 32.
+     *
+     * @param maxConcurrentQueries
+     *            the maximum number of concurrent queries
+     * @return this builder
+     */
+    public AisStoreQueryBuilder setMaxConcurrentQueries(int maxConcurrentQueries) {
+        if (maxConcurrentQueries < 1) {
+            throw new IllegalArgumentException("Max concurrent queries must be at least 1, was " + maxConcurrentQueries);
+        }
+        this.maxConcurrentQueries = maxConcurrentQueries;
+        return this;
+    }
+
+    /**
+     * Sets whether area queries use the statistics in packets_area_cell_stats to choose, for each 10 degree cell,
+     * between reading packets_area_cell1 and packets_area_cell10. Only used if cell10 is enabled. If no statistics
+     * are found for the interval, a fixed heuristic is used instead.
+     *
+     * @param cellStatisticsEnabled
+     *            whether to use cell statistics
+     * @return this builder
+     */
+    public AisStoreQueryBuilder setCellStatisticsEnabled(boolean cellStatisticsEnabled) {
+        this.cellStatisticsEnabled = cellStatisticsEnabled;
+        return this;
+    }
+
+    /**
+     * Sets whether areas covering at most {@value #MAX_CELL01_CELLS} cells of size 0.1 degree are read from
+     * packets_area_cell01. The packets must have been written to packets_area_cell01 for the whole interval.
+     *
+     * @param cell01Enabled
+     *            whether to use packets_area_cell01
+     * @return this builder
+     */
+    public AisStoreQueryBuilder setCell01Enabled(boolean cell01Enabled) {
+        this.cell01Enabled = cell01Enabled;
+        return this;
+    }
+
+    /**
+     * Restricts an MMSI query ({@link #forMmsi(int...)}) to packets of the specified message types, which are read
+     * from packets_mmsi_type instead of packets_mmsi. The packets must have been written to packets_mmsi_type for the
+     * whole interval. Ignored by area and time queries.
+     *
+     * @param messageTypes
+     *            the message types to read, or null to read packets of all types from packets_mmsi
+     * @return this builder
+     */
+    public AisStoreQueryBuilder setMessageTypes(int... messageTypes) {
+        this.messageTypes = messageTypes == null ? null : IntStream.of(messageTypes).distinct().toArray();
+        return this;
+    }
+
     public AisStoreQueryBuilder setCell10Enabled(boolean cell10Enabled) {
         this.cell10Enabled = cell10Enabled;
         return this;
     }
 
+    /**
+     * Sets the number of chunks that are fetched concurrently by a time query ({@link #forTime()}). The interval is
+     * split into chunks of whole time blocks, which are returned in order. The default is 1, which fetches all time
+     * blocks with a single sequential query.
+     *
+     * @param parallelism
+     *            the number of chunks to fetch concurrently
+     * @return this builder
+     */
+    public AisStoreQueryBuilder setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive, was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the number of time blocks in each chunk of a parallel time query.
+     *
+     * @param timeBlocksPerChunk
+     *            the number of time blocks in each chunk
+     * @return this builder
+     * @see #setParallelism(int)
+     */
+    public AisStoreQueryBuilder setTimeBlocksPerChunk(int timeBlocksPerChunk) {
+        if (timeBlocksPerChunk <= 0) {
+            throw new IllegalArgumentException("Time blocks per chunk must be positive, was " + timeBlocksPerChunk);
+        }
+        this.timeBlocksPerChunk = timeBlocksPerChunk;
+        return this;
+    }
+
     public AisStoreQueryBuilder setInterval(Interval interval) {
         return setInterval(
             Instant.ofEpochMilli(interval.getStartMillis()),
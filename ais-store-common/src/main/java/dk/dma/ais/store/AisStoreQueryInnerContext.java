@@ -17,6 +17,7 @@ package dk.dma.ais.store;
 import java.util.Date;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 
 
 
@@ -42,6 +43,9 @@ class AisStoreQueryInnerContext {
 
     final CopyOnWriteArrayList<AbstractIterator<?>> queries = new CopyOnWriteArrayList<>();
 
+    /** Limits the number of queries waiting for their first page, or null if unlimited. */
+    volatile Semaphore inFlightQueries;
+
     long getTotalProcessed() {
 
         return processedPackets.sum();
@@ -14,10 +14,8 @@
  */
 package dk.dma.ais.store;
 
-import com.google.common.collect.AbstractIterator;
 import com.google.common.util.concurrent.ListenableFuture;
 import dk.dma.ais.packet.AisPacket;
-import dk.dma.commons.util.Iterators;
 import dk.dma.db.cassandra.CassandraQuery;
 
 import java.util.ArrayList;
@@ -42,13 +40,13 @@ public class AisStoreQueryResult extends CassandraQuery implements Iterable<AisP
 
     private final Object lock = new Object();
 
-    private final List<AbstractIterator<AisPacket>> queries = new ArrayList<>();
+    private final List<TimestampedIterator<AisPacket>> queries = new ArrayList<>();
 
     private Iterator<AisPacket> iterator;
 
     final AtomicLong releasedPackets = new AtomicLong();
 
-    AisStoreQueryResult(AisStoreQueryInnerContext context, List<AbstractIterator<AisPacket>> queries) {
+    AisStoreQueryResult(AisStoreQueryInnerContext context, List<TimestampedIterator<AisPacket>> queries) {
         this.context = context;
         this.queries.addAll(queries);
     }
@@ -101,7 +99,7 @@ public class AisStoreQueryResult extends CassandraQuery implements Iterable<AisP
                 if (queries.size() == 1) {
                     iterator = queries.get(0);
                 } else {
-                    iterator = Iterators.combine(queries, AisStoreQuery.COMPARATOR);
+                    iterator = new TimestampMergeIterator<>(queries);
                 }
                 return this.iterator = new WrappingIterator(iterator);
             }
@@ -14,14 +14,25 @@
  */
 package dk.dma.ais.store;
 
-import com.google.common.hash.Hashing;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.common.primitives.Ints;
 import dk.dma.ais.packet.AisPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This file contains the schema that is being used to store data in AisStore. It also contains various utility methods.
@@ -30,9 +41,12 @@ import java.util.List;
  */
 public class AisStoreSchema {
 
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(AisStoreSchema.class);
+
     /** Identifiers of the columns in use (names are shared across tables). */
     public enum Column {
-        /** Common name of column holding time block (i.e. no. of 10 minute blocks since the epoch. */
+        /** Common name of column holding time block (i.e. no. of time blocks of the table since the epoch, see {@link AisStoreSchema#timeBlockDuration}). */
         COLUMN_TIMEBLOCK("timeblock"),
 
         /** Common name of column holding timestamp with millisecond precision. */
@@ -44,11 +58,65 @@ public class AisStoreSchema {
         /** Common name of column holding MMSI no. */
         COLUMN_MMSI("mmsi"),
 
+        /** Common name of column holding the message type (message id) of the AIS message. */
+        COLUMN_MESSAGE_TYPE("messagetype"),
+
         /** Common name of column holding aisdata message digest (to avoid storing duplicates) */
         COLUMN_AISDATA_DIGEST("digest"),
 
         /** We store the actual AIS message in this column. */
-        COLUMN_AISDATA("aisdata");
+        COLUMN_AISDATA("aisdata"),
+
+        /** The AIS message encoded with {@link AisPacketCodec}, stored in this column instead of aisdata if enabled. */
+        COLUMN_AISDATA_BIN("aisdata_bin"),
+
+        /** Common name of column holding the size of a cell in degrees. */
+        COLUMN_CELLSIZE("cellsize"),
+
+        /** Common name of counter column holding a number of packets. */
+        COLUMN_PACKETS("packets"),
+
+        /** Name of column holding the name of a table in table_metadata. */
+        COLUMN_TABLE_NAME("table_name"),
+
+        /** Name of column holding the duration of the time blocks of a table in seconds. */
+        COLUMN_TIMEBLOCK_SECONDS("timeblock_seconds"),
+
+        /** Name of column holding the latitude of a position in packets_track. */
+        COLUMN_LATITUDE("lat"),
+
+        /** Name of column holding the longitude of a position in packets_track. */
+        COLUMN_LONGITUDE("lon"),
+
+        /** Name of column holding the speed over ground in knots in packets_track. */
+        COLUMN_SOG("sog"),
+
+        /** Name of column holding the course over ground in degrees in packets_track. */
+        COLUMN_COG("cog"),
+
+        /** Name of column holding the true heading in degrees in packets_track. */
+        COLUMN_HEADING("hdg"),
+
+        /** Name of column holding the position accuracy flag in packets_track. */
+        COLUMN_POSITION_ACCURACY("acc"),
+
+        /** Name of column holding the timestamp of the proprietary source tag in packets_track. */
+        COLUMN_SOURCE_TIMESTAMP("src_clk"),
+
+        /** Name of column holding the source id in packets_track. */
+        COLUMN_SOURCE_ID("src_id"),
+
+        /** Name of column holding the MMSI number of the source base station in packets_track. */
+        COLUMN_SOURCE_BASE_STATION("src_bs"),
+
+        /** Name of column holding the two letter code of the source country in packets_track. */
+        COLUMN_SOURCE_COUNTRY("src_cty"),
+
+        /** Name of column holding the source type in packets_track. */
+        COLUMN_SOURCE_TYPE("src_type"),
+
+        /** Name of column holding the source region in packets_track. */
+        COLUMN_SOURCE_REGION("src_reg");
 
         private final String columnName;
         private Column(String columnName) {
@@ -74,14 +142,41 @@ public class AisStoreSchema {
          */
         TABLE_PACKETS_MMSI("packets_mmsi"),
 
+        /**
+         * This table holds the same packets as packets_mmsi, but with the message type as part of the key. Used for
+         * reading only some message types of a vessel, such as its position reports.
+         */
+        TABLE_PACKETS_MMSI_TYPE("packets_mmsi_type"),
+
+        /**
+         * This table holds the positions reported by vessels, decoded, with the MMSI number as the key. The columns are
+         * ordered by timestamp and the digest of the packet. Used for past tracks, which then need no decoding.
+         */
+        TABLE_PACKETS_TRACK("packets_track"),
+
         /** This table contains AIS packets ordered by timeblock and geographic cells of size 1 degree. */
         TABLE_PACKETS_AREA_CELL1("packets_area_cell1"),
 
         /** This table contains AIS packets ordered by timeblock and geographic cells of size 10 degrees. */
         TABLE_PACKETS_AREA_CELL10("packets_area_cell10"),
 
+        /** This table contains AIS packets ordered by timeblock and geographic cells of size 0.1 degree. */
+        TABLE_PACKETS_AREA_CELL01("packets_area_cell01"),
+
         /** This table holds AIS packets ordered by MMSI number with an unknown position. */
-        TABLE_PACKETS_AREA_UNKNOWN("packets_area_unknown");
+        TABLE_PACKETS_AREA_UNKNOWN("packets_area_unknown"),
+
+        /**
+         * This table counts the packets written to packets_area_cell1 and packets_area_cell10 per cell and 10 minute
+         * time block. Used for choosing which of the tables to query.
+         */
+        TABLE_PACKETS_AREA_CELL_STATS("packets_area_cell_stats"),
+
+        /**
+         * This table holds metadata of the other tables, keyed by table name. It contains the duration of the time
+         * blocks of a table if it differs from the default, and is read when connecting.
+         */
+        TABLE_METADATA("table_metadata");
 
         private final String tableName;
         private Table(String tableName) {
@@ -90,33 +185,157 @@ public class AisStoreSchema {
         public String toString() {
             return this.tableName;
         }
+
+        /**
+         * Returns the table with the specified name.
+         *
+         * @param tableName the name of the table
+         * @return the table with the specified name, or null if there is no such table
+         */
+        public static Table forName(String tableName) {
+            for (Table table : values()) {
+                if (table.tableName.equals(tableName)) {
+                    return table;
+                }
+            }
+            return null;
+        }
     }
 
-    /** True if queries should use packets_area_cell10 when relevant; false if always use packets_area_cell1 */
+    /**
+     * The default for whether packets are also written to packets_area_cell10 and queries may use it. Can be changed
+     * at runtime with {@code DefaultAisStoreWriter.setCell10Enabled} and {@code AisStoreQueryBuilder.setCell10Enabled}.
+     */
     public final static boolean TABLE_PACKETS_AREA_CELL10_ENABLED = false;
 
     /**
-     * Converts a milliseconds since epoch to a 10-minute blocks since epoch.
+     * Returns whether the specified table in the keyspace of the session has the specified column. Uses the schema
+     * metadata kept by the driver, so no query is made.
+     *
+     * @param session the session connected to the keyspace
+     * @param table the table
+     * @param column the column
+     * @return whether the table has the column
+     */
+    public static boolean hasColumn(Session session, Table table, Column column) {
+        KeyspaceMetadata keyspace = session.getCluster().getMetadata().getKeyspace(session.getLoggedKeyspace());
+        TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(table.toString());
+        return tableMetadata != null && tableMetadata.getColumn(column.toString()) != null;
+    }
+
+    /** The duration of each time block per table, replaced as a whole when changed. */
+    private static volatile Map<Table, Duration> timeBlockDurations = defaultTimeBlockDurations();
+
+    /**
+     * Converts a timestamp to the number of time blocks of the specified table since epoch.
      *
      * @param timestamp the timestamp to convert
      * @return the converted value
      */
     public static final int timeBlock(Table table, Instant timestamp) {
-        int timeblock = -1;
+        return getTimeBlock(timestamp, timeBlockDuration(table));
+    }
+
+    /**
+     * Returns the duration of each time block in the specified table.
+     *
+     * @param table the table
+     * @return the duration of each time block
+     */
+    public static Duration timeBlockDuration(Table table) {
+        Duration duration = timeBlockDurations.get(table);
+        if (duration == null) {
+            throw new IllegalArgumentException(table.toString());
+        }
+        return duration;
+    }
+
+    /**
+     * Returns the default duration of each time block in the specified table, used unless the keyspace specifies
+     * otherwise in table_metadata.
+     *
+     * @param table the table
+     * @return the default duration of each time block, or null if the table is not divided into time blocks
+     */
+    static Duration defaultTimeBlockDuration(Table table) {
         switch (table) {
             case TABLE_PACKETS_TIME:
             case TABLE_PACKETS_AREA_CELL1:
             case TABLE_PACKETS_AREA_CELL10:
-                timeblock = getTimeBlock(timestamp, Duration.ofMinutes(10));
-                break;
+            case TABLE_PACKETS_AREA_CELL01:
+            case TABLE_PACKETS_AREA_CELL_STATS:
+                return Duration.ofMinutes(10);
             case TABLE_PACKETS_MMSI:
+            case TABLE_PACKETS_MMSI_TYPE:
+            case TABLE_PACKETS_TRACK:
             case TABLE_PACKETS_AREA_UNKNOWN:
-                timeblock =  getTimeBlock(timestamp, Duration.ofDays(30));
-                break;
+                return Duration.ofDays(30);
             default:
-                throw new IllegalArgumentException(table.toString());
+                return null;
+        }
+    }
+
+    /**
+     * Sets the duration of each time block in the specified table. All readers and writers of a keyspace must use the
+     * same durations, so this should only be called before anything is read from or written to the keyspace.
+     *
+     * @param table the table
+     * @param duration the duration of each time block, a positive number of whole seconds
+     * @throws IllegalArgumentException
+     *             if the table is not divided into time blocks or the duration is not a positive number of whole
+     *             seconds
+     */
+    public static synchronized void setTimeBlockDuration(Table table, Duration duration) {
+        if (defaultTimeBlockDuration(table) == null) {
+            throw new IllegalArgumentException(table + " is not divided into time blocks");
+        }
+        if (duration.isNegative() || duration.isZero() || duration.getNano() != 0) {
+            throw new IllegalArgumentException("Time blocks must be a positive number of whole seconds, was " + duration);
+        }
+        EnumMap<Table, Duration> durations = new EnumMap<>(timeBlockDurations);
+        durations.put(table, duration);
+        timeBlockDurations = durations;
+    }
+
+    /**
+     * Reads the durations of time blocks from the table_metadata table of the keyspace of the session. Tables without
+     * a duration in table_metadata keep their current duration. If the keyspace has no table_metadata table, all
+     * tables keep their current durations.
+     *
+     * @param session the session connected to the keyspace
+     */
+    public static void loadTimeBlockDurations(Session session) {
+        List<Row> rows;
+        try {
+            rows = session.execute(QueryBuilder.select(Column.COLUMN_TABLE_NAME.toString(), Column.COLUMN_TIMEBLOCK_SECONDS.toString())
+                    .from(Table.TABLE_METADATA.toString())).all();
+        } catch (InvalidQueryException e) {
+            LOG.info("No " + Table.TABLE_METADATA + " table in keyspace, using default time blocks: " + e.getMessage());
+            return;
+        }
+        for (Row row : rows) {
+            String tableName = row.getString(Column.COLUMN_TABLE_NAME.toString());
+            if (row.isNull(Column.COLUMN_TIMEBLOCK_SECONDS.toString())) {
+                continue;
+            }
+            Table table = Table.forName(tableName);
+            if (table != null) {
+                Duration duration = Duration.ofSeconds(row.getLong(Column.COLUMN_TIMEBLOCK_SECONDS.toString()));
+                setTimeBlockDuration(table, duration);
+                LOG.info("Using time blocks of " + duration + " for " + table);
+            }
         }
-        return timeblock;
+    }
+
+    /**
+     * Returns the first instant of the specified time block.
+     *
+     * @param table the table
+     * @param timeBlock the time block
+     * @return the first instant of the time block
+     */
+    public static Instant timeBlockStart(Table table, int timeBlock) {
+        return Instant.ofEpochSecond(timeBlock * timeBlockDuration(table).getSeconds());
     }
 
     public static Integer[] timeBlocks(Table table, Instant timeStart, Instant timeStop) {
@@ -132,6 +351,17 @@ public class AisStoreSchema {
 
 
 
+    private static Map<Table, Duration> defaultTimeBlockDurations() {
+        EnumMap<Table, Duration> durations = new EnumMap<>(Table.class);
+        for (Table table : Table.values()) {
+            Duration duration = defaultTimeBlockDuration(table);
+            if (duration != null) {
+                durations.put(table, duration);
+            }
+        }
+        return durations;
+    }
+
     private static final int getTimeBlock(Instant timestamp, Duration unit) {
         return Ints.checkedCast(timestamp.getEpochSecond()/unit.getSeconds());
     }
@@ -140,6 +370,53 @@ public class AisStoreSchema {
      * Calculates a message digest for the given messages (AisPackets).
      */
     public static final byte[] digest(AisPacket packet) {
-        return Hashing.murmur3_128().hashUnencodedChars(packet.getStringMessage()).asBytes();
+        return digest(packet.getStringMessage());
+    }
+
+    /**
+     * Calculates a message digest for the given raw message. The same as the murmur3_128 hash of Guava over the
+     * characters of the message, but computed without allocating anything but the returned array.
+     */
+    public static final byte[] digest(String rawMessage) {
+        byte[] digest = new byte[16];
+        Murmur3.hash128(rawMessage, digest, 0);
+        return digest;
+    }
+
+    /**
+     * Calculates the 64-bit message digest for the given raw message, which is the first 8 bytes of
+     * {@link #digest(String)} in little endian byte order. Used if the digest column is a bigint, see
+     * {@link #isDigest64(Session, Table)}.
+     */
+    public static final long digest64(String rawMessage) {
+        return Murmur3.hash64(rawMessage);
+    }
+
+    /**
+     * Converts a message digest to the 64-bit message digest, see {@link #digest64(String)}.
+     */
+    public static final long digest64(byte[] digest) {
+        long digest64 = 0;
+        for (int i = 7; i >= 0; i--) {
+            digest64 = digest64 << 8 | digest[i] & 0xFF;
+        }
+        return digest64;
+    }
+
+    /**
+     * Returns whether the digest column of the specified table in the keyspace of the session is a bigint holding the
+     * 64-bit digest, instead of a blob holding the full digest. The shorter digest saves 8 bytes per row and makes
+     * comparing clustering keys cheaper, the chance of two different packets with the same timestamp getting the same
+     * digest is still negligible.
+     *
+     * @param session the session connected to the keyspace
+     * @param table the table
+     * @return whether the digest column is a bigint
+     */
+    public static boolean isDigest64(Session session, Table table) {
+        KeyspaceMetadata keyspace = session.getCluster().getMetadata().getKeyspace(session.getLoggedKeyspace());
+        TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(table.toString());
+        ColumnMetadata column = tableMetadata == null ? null : tableMetadata.getColumn(Column.COLUMN_AISDATA_DIGEST.toString());
+        return column != null && column.getType().getName() == DataType.Name.BIGINT;
     }
 }
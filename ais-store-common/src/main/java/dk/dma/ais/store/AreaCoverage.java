@@ -0,0 +1,335 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.Polygon;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * The cells of a grid that cover an area, each classified as either completely inside the area or only partially
+ * covered by it. Packets read from partially covered cells must be filtered by position.
+ * <p>
+ * Coverage is exact for bounding boxes, circles and polygons. For other areas a number of sample points in each cell are tested,
+ * and cells of the bounding box of the area are never skipped, only classified as inside if all samples are inside.
+ */
+final class AreaCoverage {
+
+    /**
+     * A small number of degrees that areas are extended by when looking for cells. Writers and readers may round
+     * positions exactly on a cell boundary differently, so cells touching the area are included as partial.
+     */
+    static final double EPSILON = 1e-9;
+
+    /** The number of sample points along each side of a cell when testing areas that are not handled exactly. */
+    static final int SAMPLES_PER_SIDE = 5;
+
+    /** The size of the cells in degrees. */
+    private final double cellSize;
+
+    /** The covering cells by cell id, in order of latitude and longitude. */
+    private final Map<Integer, CoveredCell> cells;
+
+    AreaCoverage(double cellSize, List<CoveredCell> cells) {
+        this.cellSize = cellSize;
+        Map<Integer, CoveredCell> m = new LinkedHashMap<>();
+        for (CoveredCell c : cells) {
+            m.put(c.id, c);
+        }
+        this.cells = Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * Returns the size of the cells in degrees.
+     *
+     * @return the size of the cells in degrees
+     */
+    double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Returns the cells covering the area.
+     *
+     * @return the cells covering the area
+     */
+    Iterable<CoveredCell> getCells() {
+        return cells.values();
+    }
+
+    /**
+     * Returns the ids of the cells covering the area.
+     *
+     * @return the ids of the cells covering the area
+     */
+    List<Integer> getCellIds() {
+        return new ArrayList<>(cells.keySet());
+    }
+
+    /**
+     * Returns the number of cells covering the area.
+     *
+     * @return the number of cells covering the area
+     */
+    int size() {
+        return cells.size();
+    }
+
+    /**
+     * Returns whether the specified cell is completely inside the area.
+     *
+     * @param cellId
+     *            the id of the cell
+     * @return true if the cell is completely inside the area, false if it is partially covered or not covered at all
+     */
+    boolean isInside(int cellId) {
+        CoveredCell c = cells.get(cellId);
+        return c != null && c.inside;
+    }
+
+    /**
+     * Computes the cells of the specified size covering the specified area.
+     *
+     * @param area
+     *            the area
+     * @param cellSize
+     *            the size of the cells in degrees
+     * @return the coverage of the area
+     */
+    static AreaCoverage of(Area area, double cellSize) {
+        requireNonNull(area);
+        BoundingBox bb = area.getBoundingBox();
+        int latCells = (int) Math.round(180 / cellSize);
+        int lonCells = (int) Math.round(360 / cellSize);
+        int minLat = Math.max(-latCells / 2, index(bb.getMinLat() - EPSILON, cellSize));
+        int maxLat = Math.min(latCells / 2 - 1, index(bb.getMaxLat() + EPSILON, cellSize));
+        int minLon = Math.max(-lonCells / 2, index(bb.getMinLon() - EPSILON, cellSize));
+        int maxLon = Math.min(lonCells / 2 - 1, index(bb.getMaxLon() + EPSILON, cellSize));
+
+        List<CoveredCell> cells = new ArrayList<>();
+        for (int i = minLat; i <= maxLat; i++) {
+            for (int j = minLon; j <= maxLon; j++) {
+                Coverage coverage = coverage(area, i * cellSize, j * cellSize, cellSize);
+                if (coverage != Coverage.OUTSIDE) {
+                    // Use the same cell ids as the writers
+                    Position center = Position.create((i + 0.5) * cellSize, (j + 0.5) * cellSize);
+                    cells.add(new CoveredCell(center.getCellInt(cellSize), center.getCellInt(10),
+                            coverage == Coverage.INSIDE));
+                }
+            }
+        }
+        return new AreaCoverage(cellSize, cells);
+    }
+
+    /**
+     * Returns an upper bound of the number of cells of the specified size covering the specified area, without
+     * computing the coverage.
+     *
+     * @param area
+     *            the area
+     * @param cellSize
+     *            the size of the cells in degrees
+     * @return an upper bound of the number of cells covering the area
+     */
+    static long maxSize(Area area, double cellSize) {
+        BoundingBox bb = area.getBoundingBox();
+        long lat = index(bb.getMaxLat() + EPSILON, cellSize) - index(bb.getMinLat() - EPSILON, cellSize) + 1;
+        long lon = index(bb.getMaxLon() + EPSILON, cellSize) - index(bb.getMinLon() - EPSILON, cellSize) + 1;
+        return lat * lon;
+    }
+
+    /** Returns the index of the cell containing the specified degrees, counted from 0 degrees. */
+    private static int index(double degrees, double cellSize) {
+        return (int) Math.floor(degrees / cellSize);
+    }
+
+    /** Returns how the cell with the specified south west corner is covered by the area. */
+    static Coverage coverage(Area area, double lat, double lon, double cellSize) {
+        if (area instanceof BoundingBox) {
+            return coverage((BoundingBox) area, lat, lon, cellSize);
+        } else if (area instanceof Circle) {
+            return coverage((Circle) area, lat, lon, cellSize);
+        } else if (area instanceof Polygon) {
+            return coverage(((Polygon) area).getVertices(), lat, lon, cellSize);
+        }
+        int inside = 0;
+        for (int i = 0; i < SAMPLES_PER_SIDE; i++) {
+            for (int j = 0; j < SAMPLES_PER_SIDE; j++) {
+                double sampleLat = lat + cellSize * i / (SAMPLES_PER_SIDE - 1);
+                double sampleLon = lon + cellSize * j / (SAMPLES_PER_SIDE - 1);
+                if (area.contains(Position.create(sampleLat, sampleLon))) {
+                    inside++;
+                }
+            }
+        }
+        return inside == SAMPLES_PER_SIDE * SAMPLES_PER_SIDE ? Coverage.INSIDE : Coverage.PARTIAL;
+    }
+
+    /**
+     * A cell covers [lat, lat + cellSize) and [lon, lon + cellSize), the bounding box is closed. Cells only touching
+     * the bounding box are partial, see {@link #EPSILON}.
+     */
+    private static Coverage coverage(BoundingBox bb, double lat, double lon, double cellSize) {
+        if (lat > bb.getMaxLat() + EPSILON || lat + cellSize < bb.getMinLat() - EPSILON
+                || lon > bb.getMaxLon() + EPSILON || lon + cellSize < bb.getMinLon() - EPSILON) {
+            return Coverage.OUTSIDE;
+        } else if (lat >= bb.getMinLat() && lat + cellSize <= bb.getMaxLat() && lon >= bb.getMinLon()
+                && lon + cellSize <= bb.getMaxLon()) {
+            return Coverage.INSIDE;
+        }
+        return Coverage.PARTIAL;
+    }
+
+    /**
+     * The distance from the center of a circle increases monotonically along a parallel away from the meridian of the
+     * center, and has a single minimum along a meridian. So the farthest point of a cell is one of its corners, and the
+     * nearest point is on one of its edges at the latitude or longitude closest to the center.
+     */
+    private static Coverage coverage(Circle c, double lat, double lon, double cellSize) {
+        double lat1 = lat + cellSize;
+        double lon1 = lon + cellSize;
+        if (c.contains(Position.create(lat, lon)) && c.contains(Position.create(lat, lon1))
+                && c.contains(Position.create(lat1, lon)) && c.contains(Position.create(lat1, lon1))) {
+            return Coverage.INSIDE;
+        }
+        double centerLat = c.getCenter().getLatitude();
+        double centerLon = c.getCenter().getLongitude();
+        if (centerLat >= lat && centerLat <= lat1 && centerLon >= lon && centerLon <= lon1) {
+            return Coverage.PARTIAL;
+        }
+        double nearestLon = clamp(centerLon, lon, lon1);
+        if (c.contains(Position.create(lat, nearestLon)) || c.contains(Position.create(lat1, nearestLon))
+                || c.contains(Position.create(nearestLatitude(centerLat, centerLon, lon, lat, lat1), lon))
+                || c.contains(Position.create(nearestLatitude(centerLat, centerLon, lon1, lat, lat1), lon1))) {
+            return Coverage.PARTIAL;
+        }
+        return Coverage.OUTSIDE;
+    }
+
+    /**
+     * The vertices of a polygon are connected by straight lines in latitude and longitude. If no edge of the polygon
+     * crosses or touches the cell, the cell is either completely inside or completely outside the polygon, which is
+     * decided by its center.
+     */
+    static Coverage coverage(List<Position> vertices, double lat, double lon, double cellSize) {
+        double minLat = lat - EPSILON;
+        double maxLat = lat + cellSize + EPSILON;
+        double minLon = lon - EPSILON;
+        double maxLon = lon + cellSize + EPSILON;
+        for (int i = 0, j = vertices.size() - 1; i < vertices.size(); j = i++) {
+            Position a = vertices.get(j);
+            Position b = vertices.get(i);
+            if (intersects(a.getLatitude(), a.getLongitude(), b.getLatitude(), b.getLongitude(), minLat, maxLat,
+                    minLon, maxLon)) {
+                return Coverage.PARTIAL;
+            }
+        }
+        return contains(vertices, lat + cellSize / 2, lon + cellSize / 2) ? Coverage.INSIDE : Coverage.OUTSIDE;
+    }
+
+    /** Returns whether the line from (lat0, lon0) to (lat1, lon1) intersects the rectangle (Liang-Barsky clipping). */
+    private static boolean intersects(double lat0, double lon0, double lat1, double lon1, double minLat,
+            double maxLat, double minLon, double maxLon) {
+        double dLat = lat1 - lat0;
+        double dLon = lon1 - lon0;
+        double[] p = { -dLat, dLat, -dLon, dLon };
+        double[] q = { lat0 - minLat, maxLat - lat0, lon0 - minLon, maxLon - lon0 };
+        double t0 = 0;
+        double t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return false; // parallel to and outside of this side
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+                if (t0 > t1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns whether the point is inside the polygon (even-odd rule). */
+    private static boolean contains(List<Position> vertices, double lat, double lon) {
+        boolean inside = false;
+        for (int i = 0, j = vertices.size() - 1; i < vertices.size(); j = i++) {
+            double latI = vertices.get(i).getLatitude();
+            double lonI = vertices.get(i).getLongitude();
+            double latJ = vertices.get(j).getLatitude();
+            double lonJ = vertices.get(j).getLongitude();
+            if ((latI > lat) != (latJ > lat) && lon < (lonJ - lonI) * (lat - latI) / (latJ - latI) + lonI) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /** Returns the latitude in [minLat, maxLat] on the specified meridian that is nearest to the specified point. */
+    private static double nearestLatitude(double lat, double lon, double meridian, double minLat, double maxLat) {
+        double deltaLon = Math.toRadians(meridian - lon);
+        double cos = Math.cos(deltaLon);
+        if (cos <= 0) {
+            // More than 90 degrees away, the nearest point is towards the pole of the hemisphere of the point
+            return lat >= 0 ? maxLat : minLat;
+        }
+        double nearest = Math.toDegrees(Math.atan(Math.tan(Math.toRadians(lat)) / cos));
+        return clamp(nearest, minLat, maxLat);
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /** How a cell is covered by an area. */
+    enum Coverage {
+        OUTSIDE, PARTIAL, INSIDE;
+    }
+
+    /** A cell covering part of an area. */
+    static final class CoveredCell {
+
+        /** The id of the cell. */
+        final int id;
+
+        /** The id of the 10 degree cell containing the cell. */
+        final int cell10;
+
+        /** True if the cell is completely inside the area, false if it is partially covered. */
+        final boolean inside;
+
+        CoveredCell(int id, int cell10, boolean inside) {
+            this.id = id;
+            this.cell10 = cell10;
+            this.inside = inside;
+        }
+    }
+}
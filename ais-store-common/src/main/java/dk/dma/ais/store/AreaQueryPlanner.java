@@ -0,0 +1,73 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL1;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL10;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.dma.ais.store.AisStoreSchema.Table;
+import dk.dma.ais.store.AreaCoverage.CoveredCell;
+
+/**
+ * Chooses which cells of packets_area_cell1 and packets_area_cell10 to read for an area query. For each 10 degree
+ * cell touched by the area, either the 1 degree cells inside the area or the single 10 degree cell is read, whichever
+ * is estimated to be cheapest. Sparse regions are typically read from packets_area_cell10 and dense regions from
+ * packets_area_cell1, so a query may read from both tables.
+ */
+class AreaQueryPlanner {
+
+    /** The estimated cost of one query measured in the number of packets that could be read instead. */
+    static final long QUERY_COST = 2000;
+
+    /**
+     * Returns the cells to read from each table.
+     *
+     * @param cells1
+     *            the 1 degree cells covering the area
+     * @param statistics
+     *            the estimated number of packets in each cell
+     * @return the ids of the cells to read, per table
+     */
+    static Map<Table, List<Integer>> plan(AreaCoverage cells1, CellStatistics statistics) {
+        Map<Integer, List<Integer>> byCell10 = new LinkedHashMap<>();
+        for (CoveredCell c : cells1.getCells()) {
+            byCell10.computeIfAbsent(c.cell10, k -> new ArrayList<>()).add(c.id);
+        }
+
+        Map<Table, List<Integer>> plan = new EnumMap<>(Table.class);
+        for (Map.Entry<Integer, List<Integer>> e : byCell10.entrySet()) {
+            List<Integer> children = e.getValue();
+            long packets1 = 0;
+            for (int cellId : children) {
+                packets1 += statistics.packets(1, cellId);
+            }
+            long packets10 = statistics.packets(10, e.getKey());
+
+            // packets_area_cell10 only holds the packets written while writing to it was enabled
+            if (statistics.isComplete(e.getKey()) && QUERY_COST + packets10 < children.size() * QUERY_COST + packets1) {
+                plan.computeIfAbsent(TABLE_PACKETS_AREA_CELL10, k -> new ArrayList<>()).add(e.getKey());
+            } else {
+                plan.computeIfAbsent(TABLE_PACKETS_AREA_CELL1, k -> new ArrayList<>()).addAll(children);
+            }
+        }
+        return plan;
+    }
+}
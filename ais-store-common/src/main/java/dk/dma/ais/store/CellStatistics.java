@@ -0,0 +1,212 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.in;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_CELLID;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_CELLSIZE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_PACKETS;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMEBLOCK;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL_STATS;
+import static java.util.Objects.requireNonNull;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * The estimated number of packets in each cell of packets_area_cell1 and packets_area_cell10 for an interval, read
+ * from packets_area_cell_stats. Long intervals are estimated from a sample of evenly spaced time blocks.
+ */
+class CellStatistics {
+
+    /** The maximum number of time blocks that are read, one day of 10 minute blocks. */
+    static final int MAX_SAMPLED_TIME_BLOCKS = 144;
+
+    /** The number of packets per cell id of packets_area_cell1. */
+    private final Map<Integer, Long> cell1;
+
+    /** The number of packets per cell id of packets_area_cell10. */
+    private final Map<Integer, Long> cell10;
+
+    /** The ids of the cells of packets_area_cell10 missing packets of their 1 degree cells in some time block. */
+    private final Set<Integer> incomplete10;
+
+    /** The number of time blocks in the interval divided by the number of time blocks sampled. */
+    private final double scale;
+
+    CellStatistics(Map<Integer, Long> cell1, Map<Integer, Long> cell10, Set<Integer> incomplete10, double scale) {
+        this.cell1 = requireNonNull(cell1);
+        this.cell10 = requireNonNull(cell10);
+        this.incomplete10 = requireNonNull(incomplete10);
+        this.scale = scale;
+    }
+
+    /**
+     * Returns true if no statistics were found, in which case statistics are probably not collected.
+     *
+     * @return true if no statistics were found
+     */
+    boolean isEmpty() {
+        return cell1.isEmpty() && cell10.isEmpty();
+    }
+
+    /**
+     * Returns the estimated number of packets in the specified cell.
+     *
+     * @param cellSize
+     *            the size of the cell in degrees, 1 or 10
+     * @param cellId
+     *            the id of the cell
+     * @return the estimated number of packets in the cell
+     */
+    long packets(int cellSize, int cellId) {
+        Long packets = (cellSize == 1 ? cell1 : cell10).get(cellId);
+        return packets == null ? 0 : (long) (packets * scale);
+    }
+
+    /**
+     * Returns true if the specified cell of packets_area_cell10 holds all packets of its 1 degree cells. It does not if
+     * writing to packets_area_cell10 was disabled during part of the interval.
+     *
+     * @param cellId
+     *            the id of the 10 degree cell
+     * @return true if the cell is complete
+     */
+    boolean isComplete(int cellId) {
+        return !incomplete10.contains(cellId);
+    }
+
+    /**
+     * Reads the statistics for the specified interval.
+     *
+     * @param session
+     *            the session to read from
+     * @param timeStartInclusive
+     *            the start of the interval
+     * @param timeStopExclusive
+     *            the end of the interval
+     * @return the statistics
+     */
+    static CellStatistics read(Session session, Instant timeStartInclusive, Instant timeStopExclusive) {
+        Integer[] timeBlocks = AisStoreSchema.timeBlocks(TABLE_PACKETS_AREA_CELL_STATS, timeStartInclusive,
+                timeStopExclusive);
+        Integer[] sampled = sample(timeBlocks, MAX_SAMPLED_TIME_BLOCKS);
+
+        Statement select = QueryBuilder
+                .select(COLUMN_TIMEBLOCK.toString(), COLUMN_CELLSIZE.toString(), COLUMN_CELLID.toString(),
+                        COLUMN_PACKETS.toString())
+                .from(TABLE_PACKETS_AREA_CELL_STATS.toString())
+                .where(in(COLUMN_TIMEBLOCK.toString(), (Object[]) sampled));
+        select.setConsistencyLevel(ConsistencyLevel.ONE);
+
+        Map<Integer, Map<Integer, Long>> cell1 = new HashMap<>();
+        Map<Integer, Map<Integer, Long>> cell10 = new HashMap<>();
+        for (Row row : session.execute(select)) {
+            Map<Integer, Map<Integer, Long>> counts = row.getInt(1) == 1 ? cell1 : cell10;
+            counts.computeIfAbsent(row.getInt(0), k -> new HashMap<>()).merge(row.getInt(2), row.getLong(3), Long::sum);
+        }
+        return of(cell1, cell10, (double) timeBlocks.length / sampled.length);
+    }
+
+    /**
+     * Creates statistics from the number of packets per time block and cell id. A 10 degree cell is complete if, in
+     * every time block, it holds at least as many packets as all of its 100 1 degree cells together.
+     *
+     * @param cell1
+     *            the number of packets per cell id of packets_area_cell1, per time block
+     * @param cell10
+     *            the number of packets per cell id of packets_area_cell10, per time block
+     * @param scale
+     *            the number of time blocks in the interval divided by the number of time blocks sampled
+     * @return the statistics
+     */
+    static CellStatistics of(Map<Integer, Map<Integer, Long>> cell1, Map<Integer, Map<Integer, Long>> cell10,
+            double scale) {
+        Map<Integer, Long> total1 = new HashMap<>();
+        Map<Integer, Long> total10 = new HashMap<>();
+        Set<Integer> incomplete10 = new HashSet<>();
+        for (Map.Entry<Integer, Map<Integer, Long>> block : cell1.entrySet()) {
+            Map<Integer, Long> children = new HashMap<>();
+            for (Map.Entry<Integer, Long> e : block.getValue().entrySet()) {
+                total1.merge(e.getKey(), e.getValue(), Long::sum);
+                children.merge(cell10(e.getKey()), e.getValue(), Long::sum);
+            }
+            Map<Integer, Long> blockCell10 = cell10.getOrDefault(block.getKey(), Collections.emptyMap());
+            for (Map.Entry<Integer, Long> e : children.entrySet()) {
+                if (blockCell10.getOrDefault(e.getKey(), 0L) < e.getValue()) {
+                    incomplete10.add(e.getKey());
+                }
+            }
+        }
+        for (Map<Integer, Long> block : cell10.values()) {
+            block.forEach((cellId, packets) -> total10.merge(cellId, packets, Long::sum));
+        }
+        return new CellStatistics(total1, total10, incomplete10, scale);
+    }
+
+    /**
+     * Returns the id of the 10 degree cell containing the specified 1 degree cell.
+     *
+     * @param cell1
+     *            the id of the 1 degree cell
+     * @return the id of the 10 degree cell
+     */
+    static int cell10(int cell1) {
+        Integer cell10 = Cell10.OF_CELL1.get(cell1);
+        if (cell10 == null) {
+            throw new IllegalArgumentException("Not a 1 degree cell " + cell1);
+        }
+        return cell10;
+    }
+
+    /** Returns at most max evenly spaced time blocks. */
+    static Integer[] sample(Integer[] timeBlocks, int max) {
+        if (timeBlocks.length <= max) {
+            return timeBlocks;
+        }
+        Integer[] sampled = new Integer[max];
+        for (int i = 0; i < max; i++) {
+            sampled[i] = timeBlocks[(int) ((long) i * timeBlocks.length / max)];
+        }
+        return sampled;
+    }
+
+    /** Maps the id of each 1 degree cell to the id of the 10 degree cell containing it, computed on first use. */
+    private static final class Cell10 {
+
+        static final Map<Integer, Integer> OF_CELL1 = new HashMap<>();
+
+        static {
+            for (int lat = -90; lat < 90; lat++) {
+                for (int lon = -180; lon < 180; lon++) {
+                    Position center = Position.create(lat + 0.5, lon + 0.5);
+                    OF_CELL1.put(center.getCellInt(1), center.getCellInt(10));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The predicates of a filter expression (as parsed by {@code AisPacketFilters.parseExpressionFilter}) that can be
+ * answered by choosing what to read from AisStore. Only the MMSI numbers and message types required by the whole
+ * expression are extracted, from terms such as {@code m.mmsi = 219000001} or {@code m.id in (1,2,3)} joined by
+ * {@code &}. Anything else, including any expression with {@code |} at the top level, is ignored.
+ * <p>
+ * The analysis is conservative: every packet accepted by the expression satisfies the extracted predicates, but not
+ * the other way around. The expression must still be applied to the packets read.
+ */
+public final class FilterPushdown {
+
+    /** A term restricting the MMSI number or message type to one or more values. */
+    private static final Pattern TERM = Pattern.compile("(m\\.mmsi|m\\.id|m\\.msgid)\\s*(=|@|in|IN)\\s*(.+)");
+
+    /** An integer or a range of integers. */
+    private static final Pattern VALUE = Pattern.compile("(\\d{1,9})(?:\\s*\\.\\.\\s*(\\d{1,9}))?");
+
+    /** The maximum number of values a range may expand to. */
+    private static final int MAX_RANGE = 1000;
+
+    /** The MMSI numbers, or null if not restricted. */
+    private final int[] mmsi;
+
+    /** The message types, or null if not restricted. */
+    private final int[] messageTypes;
+
+    private FilterPushdown(int[] mmsi, int[] messageTypes) {
+        this.mmsi = mmsi;
+        this.messageTypes = messageTypes;
+    }
+
+    /**
+     * Returns the MMSI numbers a packet must have to be accepted by the expression.
+     *
+     * @return the MMSI numbers in ascending order, or null if the expression does not restrict the MMSI number
+     */
+    public int[] getMmsi() {
+        return mmsi == null ? null : mmsi.clone();
+    }
+
+    /**
+     * Returns the message types a packet must have to be accepted by the expression.
+     *
+     * @return the message types in ascending order, or null if the expression does not restrict the message type
+     */
+    public int[] getMessageTypes() {
+        return messageTypes == null ? null : messageTypes.clone();
+    }
+
+    /**
+     * Analyzes the specified filter expression.
+     *
+     * @param expression
+     *            the filter expression
+     * @return the predicates that can be pushed down
+     */
+    public static FilterPushdown analyze(String expression) {
+        TreeSet<Integer> mmsi = null;
+        TreeSet<Integer> messageTypes = null;
+        List<String> terms = new ArrayList<>();
+        addTerms(expression, terms);
+        for (String term : terms) {
+            Matcher m = TERM.matcher(term);
+            if (m.matches()) {
+                TreeSet<Integer> values = values(m.group(2).equals("=") ? m.group(3) : stripParentheses(m.group(3)));
+                if (values != null) {
+                    if (m.group(1).equals("m.mmsi")) {
+                        mmsi = intersect(mmsi, values);
+                    } else {
+                        messageTypes = intersect(messageTypes, values);
+                    }
+                }
+            }
+        }
+        return new FilterPushdown(toArray(mmsi), toArray(messageTypes));
+    }
+
+    /** Adds the terms of the expression, and of any conjunction in parentheses within it. */
+    private static void addTerms(String expression, List<String> terms) {
+        List<String> conjunction = conjunction(stripParentheses(expression.trim()));
+        if (conjunction.size() == 1) {
+            terms.add(conjunction.get(0));
+        } else {
+            for (String term : conjunction) {
+                addTerms(term, terms);
+            }
+        }
+    }
+
+    /** Splits the expression at each top-level {@code &}, or returns no terms if it has a top-level {@code |}. */
+    private static List<String> conjunction(String expression) {
+        List<String> terms = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && c == '|') {
+                return new ArrayList<>();
+            } else if (depth == 0 && c == '&') {
+                terms.add(expression.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        terms.add(expression.substring(start).trim());
+        return terms;
+    }
+
+    /** Removes parentheses enclosing the whole expression. */
+    private static String stripParentheses(String expression) {
+        while (expression.startsWith("(") && expression.endsWith(")")) {
+            int depth = 0;
+            char quote = 0;
+            for (int i = 0; i < expression.length() - 1; i++) {
+                char c = expression.charAt(i);
+                if (quote != 0) {
+                    quote = c == quote ? 0 : quote;
+                } else if (c == '\'' || c == '"') {
+                    quote = c;
+                } else {
+                    depth += c == '(' ? 1 : c == ')' ? -1 : 0;
+                    if (depth == 0) {
+                        return expression; // the first parenthesis closes before the end, such as (a) & (b)
+                    }
+                }
+            }
+            expression = expression.substring(1, expression.length() - 1).trim();
+        }
+        return expression;
+    }
+
+    /** Parses a comma separated list of integers and ranges, or returns null if anything else is in the list. */
+    private static TreeSet<Integer> values(String list) {
+        TreeSet<Integer> values = new TreeSet<>();
+        for (String value : list.split(",")) {
+            Matcher m = VALUE.matcher(value.trim());
+            if (!m.matches()) {
+                return null;
+            }
+            int from = Integer.parseInt(m.group(1));
+            int to = m.group(2) == null ? from : Integer.parseInt(m.group(2));
+            if (to < from || to - from >= MAX_RANGE) {
+                return null;
+            }
+            for (int i = from; i <= to; i++) {
+                values.add(i);
+            }
+        }
+        return values;
+    }
+
+    private static TreeSet<Integer> intersect(TreeSet<Integer> current, TreeSet<Integer> values) {
+        if (current == null) {
+            return values;
+        }
+        current.retainAll(values);
+        return current;
+    }
+
+    private static int[] toArray(TreeSet<Integer> values) {
+        return values == null ? null : values.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,141 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3 over the UTF-16LE encoding of a character sequence, with a seed of 0. Gives
+ * the same result as {@code Hashing.murmur3_128().hashUnencodedChars(chars)} in Guava, so digests of already stored
+ * packets do not change, but reads the characters directly instead of allocating a hasher and a hash code.
+ */
+final class Murmur3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {}
+
+    /**
+     * Hashes the specified characters into the specified array, in the byte order of Guava's
+     * {@code HashCode.asBytes()}.
+     *
+     * @param chars
+     *            the characters to hash
+     * @param out
+     *            the array to write the 16 byte hash to
+     * @param offset
+     *            the offset in the array to write the hash at
+     */
+    static void hash128(CharSequence chars, byte[] out, int offset) {
+        hash(chars, out, offset);
+    }
+
+    /**
+     * Hashes the specified characters and returns the first 64 bits of the hash, the same as Guava's
+     * {@code HashCode.asLong()}.
+     *
+     * @param chars
+     *            the characters to hash
+     * @return the first 64 bits of the hash
+     */
+    static long hash64(CharSequence chars) {
+        return hash(chars, null, 0);
+    }
+
+    /** Hashes the characters, writes the hash to out if it is non-null and returns the first 64 bits. */
+    private static long hash(CharSequence chars, byte[] out, int offset) {
+        long h1 = 0;
+        long h2 = 0;
+        int length = chars.length();
+
+        // Blocks of 16 bytes (8 characters)
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long k1 = chars(chars, i, 4);
+            long k2 = chars(chars, i + 4, 4);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // The remaining 0-7 characters
+        int remaining = length - i;
+        if (remaining > 0) {
+            h1 ^= mixK1(chars(chars, i, Math.min(remaining, 4)));
+            if (remaining > 4) {
+                h2 ^= mixK2(chars(chars, i + 4, remaining - 4));
+            }
+        }
+
+        long bytes = 2L * length;
+        h1 ^= bytes;
+        h2 ^= bytes;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        if (out != null) {
+            putLong(out, offset, h1);
+            putLong(out, offset + 8, h2);
+        }
+        return h1;
+    }
+
+    /** Reads the specified number of characters (at most 4) as a little endian long. */
+    private static long chars(CharSequence chars, int index, int count) {
+        long k = 0;
+        for (int j = 0; j < count; j++) {
+            k |= (long) chars.charAt(index + j) << (16 * j);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static void putLong(byte[] out, int offset, long value) {
+        for (int j = 0; j < 8; j++) {
+            out[offset + j] = (byte) (value >>> (8 * j));
+        }
+    }
+}
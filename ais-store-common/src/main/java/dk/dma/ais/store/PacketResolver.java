@@ -0,0 +1,127 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Date;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA_BIN;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA_DIGEST;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMEBLOCK;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMESTAMP;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TIME;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Resolves rows of the mmsi and area tables that only refer to a packet in packets_time, see
+ * {@code DefaultAisStoreWriter.setReferencesEnabled}. Each packet is fetched with a prepared point query on the full
+ * primary key of packets_time, which the token aware load balancing policy sends directly to a replica of the
+ * partition.
+ */
+class PacketResolver {
+
+    static final Logger LOG = LoggerFactory.getLogger(PacketResolver.class);
+
+    /** One resolver per session, so the query is only prepared once. */
+    private static final LoadingCache<Session, PacketResolver> RESOLVERS = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<Session, PacketResolver>() {
+                public PacketResolver load(Session session) {
+                    return new PacketResolver(session);
+                }
+            });
+
+    /** The session used for querying. */
+    private final Session session;
+
+    /** Whether packets_time has the aisdata_bin column. */
+    private final boolean binary;
+
+    /** The point query of packets_time. */
+    private final PreparedStatement select;
+
+    private PacketResolver(Session session) {
+        this.session = requireNonNull(session);
+        this.binary = AisStoreSchema.hasColumn(session, TABLE_PACKETS_TIME, COLUMN_AISDATA_BIN);
+        this.select = session.prepare(QueryBuilder
+                .select(binary ? new String[] { COLUMN_AISDATA.toString(), COLUMN_AISDATA_BIN.toString() }
+                        : new String[] { COLUMN_AISDATA.toString() })
+                .from(TABLE_PACKETS_TIME.toString())
+                .where(eq(COLUMN_TIMEBLOCK.toString(), bindMarker()))
+                .and(eq(COLUMN_TIMESTAMP.toString(), bindMarker()))
+                .and(eq(COLUMN_AISDATA_DIGEST.toString(), bindMarker())));
+        this.select.setConsistencyLevel(ConsistencyLevel.ONE);
+    }
+
+    /**
+     * Starts fetching the specified packet from packets_time.
+     *
+     * @param timestamp
+     *            the timestamp of the packet (millis since the epoch)
+     * @param digest
+     *            the serialized value of the digest column of the packet
+     * @return the result of the query, to be passed to {@link #get(ResultSetFuture)}
+     */
+    ResultSetFuture resolve(long timestamp, ByteBuffer digest) {
+        BoundStatement bound = select.bind();
+        bound.setInt(0, AisStoreSchema.timeBlock(TABLE_PACKETS_TIME, Instant.ofEpochMilli(timestamp)));
+        bound.setDate(1, new Date(timestamp));
+        bound.setBytesUnsafe(2, digest); // a blob or a bigint, see AisStoreSchema.isDigest64
+        return session.executeAsync(bound);
+    }
+
+    /**
+     * Waits for a packet started with {@link #resolve(long, ByteBuffer)}.
+     *
+     * @param future
+     *            the result of the query
+     * @return the raw message of the packet, or null if it is not in packets_time
+     */
+    String get(ResultSetFuture future) {
+        Row row = future.getUninterruptibly().one();
+        if (row == null) {
+            LOG.warn("Referenced packet not found in " + TABLE_PACKETS_TIME);
+            return null;
+        }
+        return binary && row.isNull(0) ? AisPacketCodec.decode(row.getBytes(1)) : row.getString(0);
+    }
+
+    /**
+     * Returns the resolver of the specified session.
+     *
+     * @param session
+     *            the session
+     * @return the resolver of the session
+     */
+    static PacketResolver of(Session session) {
+        return RESOLVERS.getUnchecked(session);
+    }
+}
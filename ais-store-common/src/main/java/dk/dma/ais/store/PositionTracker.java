@@ -0,0 +1,223 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Keeps track of the latest known position of each vessel, keyed by MMSI number. Used to estimate the position of
+ * vessels sending non-positional messages.
+ * <p>
+ * Positions are stored in flat primitive arrays using open addressing, so no objects are allocated per vessel or per
+ * update. An entry times out if it has not been updated within the timeout. Timed out entries are ignored on lookup
+ * and purged when the table grows.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class PositionTracker {
+
+    /** Marks an empty slot. */
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /** The initial capacity of the table, must be a power of 2. */
+    private static final int INITIAL_CAPACITY = 1 << 14;
+
+    /** The source of time used for timing out entries. */
+    private final LongSupplier nanoTime;
+
+    /** The timeout of an entry in nanoseconds. */
+    private final long timeoutNanos;
+
+    /** The MMSI number of each slot, or {@link #EMPTY}. */
+    private int[] keys;
+
+    /** The latitude of each slot. */
+    private double[] latitudes;
+
+    /** The longitude of each slot. */
+    private double[] longitudes;
+
+    /** The timestamp of the position of each slot (millis since the epoch). */
+    private long[] timestamps;
+
+    /** When each slot was last updated (as returned by {@link #nanoTime}). */
+    private long[] updated;
+
+    /** The number of used slots, including timed out entries. */
+    private int size;
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param timeout
+     *            the duration an entry is valid after it has been updated
+     * @param unit
+     *            the unit of the timeout
+     */
+    public PositionTracker(long timeout, TimeUnit unit) {
+        this(timeout, unit, System::nanoTime);
+    }
+
+    PositionTracker(long timeout, TimeUnit unit, LongSupplier nanoTime) {
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.nanoTime = requireNonNull(nanoTime);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the latest known position of the specified vessel.
+     *
+     * @param mmsi
+     *            the MMSI number of the vessel
+     * @return the latest known position, or null if no position has been tracked or it has timed out
+     */
+    public Position get(int mmsi) {
+        int slot = find(mmsi);
+        if (slot < 0 || isTimedOut(slot, nanoTime.getAsLong())) {
+            return null;
+        }
+        return Position.create(latitudes[slot], longitudes[slot]);
+    }
+
+    /**
+     * Updates the position of the specified vessel. If a position with a newer timestamp is already tracked for the
+     * vessel it is kept, but its timeout is reset.
+     *
+     * @param mmsi
+     *            the MMSI number of the vessel
+     * @param position
+     *            the position of the vessel
+     * @param timestamp
+     *            the time of the position (millis since the epoch)
+     */
+    public void update(int mmsi, Position position, long timestamp) {
+        update(mmsi, position.getLatitude(), position.getLongitude(), timestamp);
+    }
+
+    /**
+     * Updates the position of the specified vessel. If a position with a newer timestamp is already tracked for the
+     * vessel it is kept, but its timeout is reset.
+     *
+     * @param mmsi
+     *            the MMSI number of the vessel
+     * @param latitude
+     *            the latitude of the vessel
+     * @param longitude
+     *            the longitude of the vessel
+     * @param timestamp
+     *            the time of the position (millis since the epoch)
+     */
+    public void update(int mmsi, double latitude, double longitude, long timestamp) {
+        if (mmsi == EMPTY) {
+            throw new IllegalArgumentException("Invalid mmsi " + mmsi);
+        }
+        long now = nanoTime.getAsLong();
+        int mask = keys.length - 1;
+        int slot = mix(mmsi) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == mmsi) {
+                // the newest position wins, timed out positions are always replaced
+                if (isTimedOut(slot, now) || timestamps[slot] <= timestamp) {
+                    latitudes[slot] = latitude;
+                    longitudes[slot] = longitude;
+                    timestamps[slot] = timestamp;
+                }
+                updated[slot] = now;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = mmsi;
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        timestamps[slot] = timestamp;
+        updated[slot] = now;
+        if (++size > keys.length >>> 1) {
+            rehash(now);
+        }
+    }
+
+    /** Returns the slot of the specified vessel, or -1 if it is not tracked. */
+    private int find(int mmsi) {
+        int mask = keys.length - 1;
+        int slot = mix(mmsi) & mask;
+        int key;
+        while ((key = keys[slot]) != EMPTY) {
+            if (key == mmsi) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean isTimedOut(int slot, long now) {
+        return now - updated[slot] > timeoutNanos;
+    }
+
+    /** Purges timed out entries, and grows the table if it is still more than a quarter full. */
+    private void rehash(long now) {
+        int[] oldKeys = keys;
+        double[] oldLatitudes = latitudes;
+        double[] oldLongitudes = longitudes;
+        long[] oldTimestamps = timestamps;
+        long[] oldUpdated = updated;
+
+        int live = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && now - oldUpdated[i] <= timeoutNanos) {
+                live++;
+            }
+        }
+        allocate(live > oldKeys.length >>> 2 ? oldKeys.length << 1 : oldKeys.length);
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && now - oldUpdated[i] <= timeoutNanos) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                latitudes[slot] = oldLatitudes[i];
+                longitudes[slot] = oldLongitudes[i];
+                timestamps[slot] = oldTimestamps[i];
+                updated[slot] = oldUpdated[i];
+            }
+        }
+        size = live;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        timestamps = new long[capacity];
+        updated = new long[capacity];
+    }
+
+    /** Spreads the bits of the MMSI number, consecutive MMSI numbers are common. */
+    private static int mix(int mmsi) {
+        int h = mmsi * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,122 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.List;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Merges a number of iterators that each return elements in ascending order of time into a single iterator in
+ * ascending order of time. Elements with the same timestamp are returned in the order of the iterators.
+ * <p>
+ * The iterators are kept in a binary heap keyed by the timestamp of their next element as a primitive long, so
+ * comparisons never touch the elements themselves. Exhausted iterators are removed from the heap.
+ */
+class TimestampMergeIterator<T> extends AbstractIterator<T> {
+
+    /** The iterators to merge. */
+    private final TimestampedIterator<? extends T>[] sources;
+
+    /** The timestamp of the next element of each iterator. */
+    private final long[] heads;
+
+    /** A heap of indexes into {@link #sources}, ordered by {@link #heads}. */
+    private final int[] heap;
+
+    /** The number of iterators in the heap. */
+    private int size = -1;
+
+    @SuppressWarnings("unchecked")
+    TimestampMergeIterator(List<? extends TimestampedIterator<? extends T>> sources) {
+        this.sources = sources.toArray(new TimestampedIterator[sources.size()]);
+        for (TimestampedIterator<? extends T> source : this.sources) {
+            requireNonNull(source);
+        }
+        this.heads = new long[this.sources.length];
+        this.heap = new int[this.sources.length];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected T computeNext() {
+        if (size < 0) {
+            // Sources are not started before the first element is requested
+            size = 0;
+            for (int i = 0; i < sources.length; i++) {
+                if (sources[i].hasNext()) {
+                    heads[i] = sources[i].peekTimestamp();
+                    heap[size] = i;
+                    siftUp(size++);
+                }
+            }
+        }
+        if (size == 0) {
+            return endOfData();
+        }
+        int i = heap[0];
+        T next = sources[i].next();
+        if (sources[i].hasNext()) {
+            heads[i] = sources[i].peekTimestamp();
+        } else {
+            heap[0] = heap[--size];
+        }
+        siftDown(0);
+        return next;
+    }
+
+    /** Returns true if the source at heap position a should be returned before the source at heap position b. */
+    private boolean less(int a, int b) {
+        int i = heap[a];
+        int j = heap[b];
+        return heads[i] < heads[j] || heads[i] == heads[j] && i < j;
+    }
+
+    private void siftUp(int k) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (!less(k, parent)) {
+                return;
+            }
+            swap(k, parent);
+            k = parent;
+        }
+    }
+
+    private void siftDown(int k) {
+        for (;;) {
+            int child = 2 * k + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && less(child + 1, child)) {
+                child++;
+            }
+            if (!less(child, k)) {
+                return;
+            }
+            swap(k, child);
+            k = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+    }
+}
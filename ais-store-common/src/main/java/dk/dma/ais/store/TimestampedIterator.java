@@ -0,0 +1,32 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over elements in ascending order of time, that knows the timestamp of the next element without
+ * computing it from the element.
+ */
+interface TimestampedIterator<T> extends Iterator<T> {
+
+    /**
+     * Returns the timestamp of the element that will be returned by the next call to {@link #next()}. Must only be
+     * called after {@link #hasNext()} has returned true.
+     *
+     * @return the timestamp of the next element (millis since the epoch)
+     */
+    long peekTimestamp();
+}
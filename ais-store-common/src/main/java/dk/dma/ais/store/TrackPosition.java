@@ -0,0 +1,234 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import java.util.Date;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.message.IVesselPositionMessage;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketTags.SourceType;
+import dk.dma.ais.proprietary.IProprietarySourceTag;
+import dk.dma.enav.model.Country;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A position reported by a vessel, as stored in packets_track. Holds the values of a position message that are needed
+ * for past tracks, including the source of the packet, so they can be read without decoding the packet.
+ */
+public final class TrackPosition {
+
+    /** The MMSI number of the vessel. */
+    private final int mmsi;
+
+    /** The time of the position (millis since the epoch). */
+    private final long timestamp;
+
+    private final double latitude;
+
+    private final double longitude;
+
+    /** The speed over ground in knots, or null if the message does not contain it. */
+    private final Float sog;
+
+    /** The course over ground in degrees, or null if the message does not contain it. */
+    private final Float cog;
+
+    /** The true heading in degrees, or null if the message does not contain it. */
+    private final Integer heading;
+
+    /** The position accuracy flag. */
+    private final int positionAccuracy;
+
+    /** The timestamp of the proprietary source tag, or null. */
+    private final Date sourceTimestamp;
+
+    private final String sourceId;
+
+    private final Integer sourceBaseStation;
+
+    /** The two letter code of the source country, or null. */
+    private final String sourceCountry;
+
+    /** The name of the source type, or null. */
+    private final String sourceType;
+
+    private final String sourceRegion;
+
+    TrackPosition(int mmsi, long timestamp, double latitude, double longitude, Float sog, Float cog, Integer heading,
+            int positionAccuracy, Date sourceTimestamp, String sourceId, Integer sourceBaseStation, String sourceCountry,
+            String sourceType, String sourceRegion) {
+        this.mmsi = mmsi;
+        this.timestamp = timestamp;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.sog = sog;
+        this.cog = cog;
+        this.heading = heading;
+        this.positionAccuracy = positionAccuracy;
+        this.sourceTimestamp = sourceTimestamp;
+        this.sourceId = sourceId;
+        this.sourceBaseStation = sourceBaseStation;
+        this.sourceCountry = sourceCountry;
+        this.sourceType = sourceType;
+        this.sourceRegion = sourceRegion;
+    }
+
+    /**
+     * Returns the MMSI number of the vessel.
+     *
+     * @return the MMSI number of the vessel
+     */
+    public int getMmsi() {
+        return mmsi;
+    }
+
+    /**
+     * Returns the time of the position.
+     *
+     * @return the time of the position (millis since the epoch)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Returns the speed over ground.
+     *
+     * @return the speed over ground in knots, or null if the message does not contain it
+     */
+    public Float getSog() {
+        return sog;
+    }
+
+    /**
+     * Returns the course over ground.
+     *
+     * @return the course over ground in degrees, or null if the message does not contain it
+     */
+    public Float getCog() {
+        return cog;
+    }
+
+    /**
+     * Returns the true heading.
+     *
+     * @return the true heading in degrees (511 if not available), or null if the message does not contain it
+     */
+    public Integer getHeading() {
+        return heading;
+    }
+
+    public int getPositionAccuracy() {
+        return positionAccuracy;
+    }
+
+    /**
+     * Returns the timestamp of the proprietary source tag of the packet.
+     *
+     * @return the timestamp of the proprietary source tag, or null if the packet has none
+     */
+    public Date getSourceTimestamp() {
+        return sourceTimestamp;
+    }
+
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    public Integer getSourceBaseStation() {
+        return sourceBaseStation;
+    }
+
+    /**
+     * Returns the source country.
+     *
+     * @return the two letter code of the source country, or null if unknown
+     */
+    public String getSourceCountry() {
+        return sourceCountry;
+    }
+
+    /**
+     * Returns the source type.
+     *
+     * @return the name of the source type, or null if unknown
+     */
+    public String getSourceType() {
+        return sourceType;
+    }
+
+    public String getSourceRegion() {
+        return sourceRegion;
+    }
+
+    /**
+     * Returns the source of the packet the position was read from, for use with source filters.
+     *
+     * @return the source of the packet
+     */
+    public AisPacketSource getSource() {
+        return new AisPacketSource(sourceId, sourceBaseStation, sourceCountry == null ? null : Country.getByCode(sourceCountry),
+                sourceType == null ? null : SourceType.valueOf(sourceType), sourceRegion);
+    }
+
+    /**
+     * Returns the position of the vessel.
+     *
+     * @return the position of the vessel
+     */
+    public Position getPosition() {
+        return Position.create(latitude, longitude);
+    }
+
+    /**
+     * Creates a track position from the specified envelope.
+     *
+     * @param envelope
+     *            the envelope of the packet
+     * @return a new track position, or null if the packet does not contain a valid position or timestamp
+     */
+    public static TrackPosition from(AisPacketEnvelope envelope) {
+        AisMessage message = envelope.getAisMessage();
+        Position position = envelope.getPosition();
+        if (!(message instanceof IPositionMessage) || position == null || envelope.getTimestamp() <= 0 || envelope.getMmsi() <= 0) {
+            return null;
+        }
+        IPositionMessage pos = (IPositionMessage) message;
+        Float sog = null, cog = null;
+        Integer heading = null;
+        if (message instanceof IVesselPositionMessage) {
+            IVesselPositionMessage vessel = (IVesselPositionMessage) message;
+            sog = vessel.getSog() / 10f;
+            cog = vessel.getCog() / 10f;
+            heading = vessel.getTrueHeading();
+        }
+        IProprietarySourceTag tag = message.getSourceTag();
+        AisPacketSource source = AisPacketSource.create(envelope.getPacket());
+        return new TrackPosition(envelope.getMmsi(), envelope.getTimestamp(), position.getLatitude(), position.getLongitude(),
+                sog, cog, heading, pos.getPosAcc(), tag == null ? null : tag.getTimestamp(), source.getSourceId(),
+                source.getSourceBaseStation(), source.getSourceCountry() == null ? null : source.getSourceCountry().getTwoLetter(),
+                source.getSourceType() == null ? null : source.getSourceType().name(), source.getSourceRegion());
+    }
+}
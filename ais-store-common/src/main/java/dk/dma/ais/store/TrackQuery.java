@@ -0,0 +1,174 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.AbstractIterator;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.gte;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.lt;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_COG;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_HEADING;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_LATITUDE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_LONGITUDE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_MMSI;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_POSITION_ACCURACY;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOG;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_BASE_STATION;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_COUNTRY;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_ID;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_REGION;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_TIMESTAMP;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_TYPE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMEBLOCK;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMESTAMP;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TRACK;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads the track of a vessel from packets_track. Each time block of the interval is a partition. The next few blocks
+ * are queried concurrently while a block is being read, and are returned in the order of time.
+ */
+public final class TrackQuery {
+
+    /** One query per session, so the query is only prepared once. */
+    private static final LoadingCache<Session, TrackQuery> QUERIES = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<Session, TrackQuery>() {
+                public TrackQuery load(Session session) {
+                    return new TrackQuery(session);
+                }
+            });
+
+    /** The maximum number of time blocks that are queried ahead of the block being read. */
+    static final int MAX_PENDING_BLOCKS = 4;
+
+    /** The session used for querying. */
+    private final Session session;
+
+    /** The query of a single time block of a vessel. */
+    private final PreparedStatement select;
+
+    private TrackQuery(Session session) {
+        this.session = requireNonNull(session);
+        this.select = session.prepare(QueryBuilder
+                .select(COLUMN_TIMESTAMP.toString(), COLUMN_LATITUDE.toString(), COLUMN_LONGITUDE.toString(),
+                        COLUMN_SOG.toString(), COLUMN_COG.toString(), COLUMN_HEADING.toString(),
+                        COLUMN_POSITION_ACCURACY.toString(), COLUMN_SOURCE_TIMESTAMP.toString(),
+                        COLUMN_SOURCE_ID.toString(), COLUMN_SOURCE_BASE_STATION.toString(),
+                        COLUMN_SOURCE_COUNTRY.toString(), COLUMN_SOURCE_TYPE.toString(), COLUMN_SOURCE_REGION.toString())
+                .from(TABLE_PACKETS_TRACK.toString())
+                .where(eq(COLUMN_MMSI.toString(), bindMarker()))
+                .and(eq(COLUMN_TIMEBLOCK.toString(), bindMarker()))
+                .and(gte(COLUMN_TIMESTAMP.toString(), bindMarker()))
+                .and(lt(COLUMN_TIMESTAMP.toString(), bindMarker())));
+    }
+
+    private Iterator<TrackPosition> query(int mmsi, Instant startInclusive, Instant stopExclusive) {
+        int startBlock = AisStoreSchema.timeBlock(TABLE_PACKETS_TRACK, startInclusive);
+        int stopBlock = AisStoreSchema.timeBlock(TABLE_PACKETS_TRACK, stopExclusive.minusMillis(1));
+        Date start = Date.from(startInclusive);
+        Date stop = Date.from(stopExclusive);
+        return new AbstractIterator<TrackPosition>() {
+            /** The queries of the blocks being fetched ahead, in the order of time. */
+            private final Deque<ResultSetFuture> blocks = new ArrayDeque<>();
+
+            /** The next block to query. */
+            private int nextBlock = startBlock;
+
+            private Iterator<Row> rows = Collections.emptyIterator();
+
+            /** Queries the following blocks until MAX_PENDING_BLOCKS are outstanding. */
+            private void fetchAhead() {
+                while (blocks.size() < MAX_PENDING_BLOCKS && nextBlock <= stopBlock) {
+                    blocks.add(session.executeAsync(select.bind(mmsi, nextBlock++, start, stop)));
+                }
+            }
+
+            protected TrackPosition computeNext() {
+                while (!rows.hasNext()) {
+                    fetchAhead();
+                    if (blocks.isEmpty()) {
+                        return endOfData();
+                    }
+                    rows = blocks.poll().getUninterruptibly().iterator();
+                }
+                Row row = rows.next();
+                return new TrackPosition(mmsi, row.getDate(0).getTime(), row.getDouble(1), row.getDouble(2),
+                        row.isNull(3) ? null : row.getFloat(3), row.isNull(4) ? null : row.getFloat(4),
+                        row.isNull(5) ? null : row.getInt(5), row.getInt(6), row.getDate(7), row.getString(8),
+                        row.isNull(9) ? null : row.getInt(9), row.getString(10), row.getString(11), row.getString(12));
+            }
+        };
+    }
+
+    /**
+     * Returns the positions of the specified vessel within the specified interval, in the order of time. Positions
+     * reported by several sources are returned once for each source.
+     *
+     * @param session
+     *            the session used for querying
+     * @param mmsi
+     *            the MMSI number of the vessel
+     * @param startInclusive
+     *            the start of the interval (inclusive)
+     * @param stopExclusive
+     *            the end of the interval (exclusive)
+     * @return the positions of the vessel
+     */
+    public static List<TrackPosition> find(Session session, int mmsi, Instant startInclusive, Instant stopExclusive) {
+        List<TrackPosition> result = new ArrayList<>();
+        iterate(session, mmsi, startInclusive, stopExclusive).forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Returns the positions of the specified vessel within the specified interval, in the order of time. Positions
+     * are read page by page while iterating, so the track is never held in memory.
+     *
+     * @param session
+     *            the session used for querying
+     * @param mmsi
+     *            the MMSI number of the vessel
+     * @param startInclusive
+     *            the start of the interval (inclusive)
+     * @param stopExclusive
+     *            the end of the interval (exclusive)
+     * @return an iterator of the positions of the vessel
+     */
+    public static Iterator<TrackPosition> iterate(Session session, int mmsi, Instant startInclusive, Instant stopExclusive) {
+        if (!stopExclusive.isAfter(startInclusive)) {
+            throw new IllegalArgumentException("Start must be before stop, was " + startInclusive + " - " + stopExclusive);
+        }
+        return QUERIES.getUnchecked(session).query(mmsi, startInclusive, stopExclusive);
+    }
+}
@@ -0,0 +1,244 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Reduces the number of points of a track. The track can be downsampled to the latest point in each time bucket,
+ * simplified with the Douglas-Peucker algorithm within a tolerance in metres, and limited to a maximum number of evenly
+ * spaced points, in that order. Downsampling is done while the track is read, so only one point per bucket is kept in
+ * memory. If the track is only downsampled, points are passed on as soon as their bucket is complete.
+ * <p>
+ * Points without a position are dropped if the track is reduced in any way.
+ */
+public final class TrackSimplifier {
+
+    /** A simplifier that returns all points. */
+    public static final TrackSimplifier NONE = new TrackSimplifier(null, 0, 0);
+
+    /** The mean radius of the earth in metres. */
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    /** The duration of each time bucket in milliseconds, or 0 to not downsample. */
+    private final long bucketMillis;
+
+    /** The tolerance of the Douglas-Peucker simplification in metres, or 0 to not simplify. */
+    private final double tolerance;
+
+    /** The maximum number of points, or 0 for no limit. */
+    private final int maxPoints;
+
+    /**
+     * Creates a new simplifier.
+     *
+     * @param bucket
+     *            the duration of each time bucket, or null to not downsample
+     * @param toleranceMeters
+     *            the tolerance of the Douglas-Peucker simplification in metres, or 0 to not simplify
+     * @param maxPoints
+     *            the maximum number of points, or 0 for no limit
+     */
+    public TrackSimplifier(Duration bucket, double toleranceMeters, int maxPoints) {
+        if (bucket != null && (bucket.isNegative() || bucket.isZero())) {
+            throw new IllegalArgumentException("Bucket must be positive, was " + bucket);
+        } else if (!(toleranceMeters >= 0)) {
+            throw new IllegalArgumentException("Tolerance must not be negative, was " + toleranceMeters);
+        } else if (maxPoints < 0) {
+            throw new IllegalArgumentException("Max points must not be negative, was " + maxPoints);
+        }
+        this.bucketMillis = bucket == null ? 0 : bucket.toMillis();
+        this.tolerance = toleranceMeters;
+        this.maxPoints = maxPoints;
+    }
+
+    /**
+     * Returns whether this simplifier returns all points.
+     *
+     * @return whether this simplifier returns all points
+     */
+    public boolean isNone() {
+        return bucketMillis == 0 && tolerance == 0 && maxPoints == 0;
+    }
+
+    /**
+     * Reduces the specified track.
+     *
+     * @param track
+     *            the points of the track in the order of time
+     * @param timestamp
+     *            returns the timestamp of a point (millis since the epoch)
+     * @param position
+     *            returns the position of a point, or null if it has none
+     * @return the remaining points in the order of time
+     */
+    public <T> List<T> simplify(Iterator<T> track, ToLongFunction<? super T> timestamp, Function<? super T, Position> position) {
+        List<T> result = new ArrayList<>();
+        simplify(track, timestamp, position, result::add);
+        return result;
+    }
+
+    /**
+     * Reduces the specified track, passing the remaining points to the specified sink. Points are passed on while the
+     * track is read, unless the track is simplified or limited to a maximum number of points, which needs all points.
+     *
+     * @param track
+     *            the points of the track in the order of time
+     * @param timestamp
+     *            returns the timestamp of a point (millis since the epoch)
+     * @param position
+     *            returns the position of a point, or null if it has none
+     * @param sink
+     *            receives the remaining points in the order of time
+     */
+    public <T> void simplify(Iterator<T> track, ToLongFunction<? super T> timestamp, Function<? super T, Position> position,
+            Consumer<? super T> sink) {
+        requireNonNull(timestamp);
+        requireNonNull(position);
+        requireNonNull(sink);
+        if (isNone()) {
+            track.forEachRemaining(sink);
+            return;
+        } else if (tolerance == 0 && maxPoints == 0) {
+            // Only downsampling, pass on the latest point of a bucket when the next bucket starts
+            T pending = null;
+            long bucket = Long.MIN_VALUE;
+            while (track.hasNext()) {
+                T t = track.next();
+                if (position.apply(t) != null) {
+                    long b = Math.floorDiv(timestamp.applyAsLong(t), bucketMillis);
+                    if (pending != null && b != bucket) {
+                        sink.accept(pending);
+                    }
+                    pending = t;
+                    bucket = b;
+                }
+            }
+            if (pending != null) {
+                sink.accept(pending);
+            }
+            return;
+        }
+
+        List<T> points = new ArrayList<>();
+        List<Position> positions = new ArrayList<>();
+
+        // Keep the latest point of each bucket
+        long bucket = Long.MIN_VALUE;
+        while (track.hasNext()) {
+            T t = track.next();
+            Position p = position.apply(t);
+            if (p != null) {
+                long b = bucketMillis == 0 ? Long.MIN_VALUE : Math.floorDiv(timestamp.applyAsLong(t), bucketMillis);
+                if (bucketMillis != 0 && b == bucket) {
+                    points.set(points.size() - 1, t);
+                    positions.set(positions.size() - 1, p);
+                } else {
+                    points.add(t);
+                    positions.add(p);
+                    bucket = b;
+                }
+            }
+        }
+
+        if (tolerance > 0 && points.size() > 2) {
+            boolean[] keep = douglasPeucker(positions, tolerance);
+            List<T> kept = new ArrayList<>();
+            for (int i = 0; i < keep.length; i++) {
+                if (keep[i]) {
+                    kept.add(points.get(i));
+                }
+            }
+            points = kept;
+        }
+
+        if (maxPoints > 0 && points.size() > maxPoints) {
+            // Evenly spaced points including the latest
+            List<T> kept = new ArrayList<>(maxPoints);
+            int n = points.size();
+            for (int i = 0; i < maxPoints; i++) {
+                kept.add(points.get(maxPoints == 1 ? n - 1 : (int) ((long) i * (n - 1) / (maxPoints - 1))));
+            }
+            points = kept;
+        }
+        points.forEach(sink);
+    }
+
+    /** Returns which points to keep, the first and last are always kept. */
+    static boolean[] douglasPeucker(List<Position> positions, double tolerance) {
+        int n = positions.size();
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        // Explicit stack of segments, long tracks would overflow the call stack
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double maxDistance = 0;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = distance(positions.get(i), positions.get(first), positions.get(last));
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDistance > tolerance) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Returns the distance in metres from p to the segment from a to b, using an equirectangular projection around a
+     * which is accurate for the short segments of a track.
+     */
+    static double distance(Position p, Position a, Position b) {
+        double cos = Math.cos(Math.toRadians(a.getLatitude()));
+        double bx = Math.toRadians(longitudeDelta(a, b)) * cos * EARTH_RADIUS;
+        double by = Math.toRadians(b.getLatitude() - a.getLatitude()) * EARTH_RADIUS;
+        double px = Math.toRadians(longitudeDelta(a, p)) * cos * EARTH_RADIUS;
+        double py = Math.toRadians(p.getLatitude() - a.getLatitude()) * EARTH_RADIUS;
+        double lengthSquared = bx * bx + by * by;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * bx + py * by) / lengthSquared));
+        double dx = px - t * bx;
+        double dy = py - t * by;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /** Returns the difference in longitude from a to b in degrees, across the antimeridian if shorter. */
+    private static double longitudeDelta(Position a, Position b) {
+        double d = b.getLongitude() - a.getLongitude();
+        return d > 180 ? d - 360 : d < -180 ? d + 360 : d;
+    }
+}
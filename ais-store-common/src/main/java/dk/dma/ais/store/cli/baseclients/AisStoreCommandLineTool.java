@@ -15,6 +15,7 @@
 package dk.dma.ais.store.cli.baseclients;
 
 import com.beust.jcommander.Parameter;
+import dk.dma.ais.store.AisStoreSchema;
 import dk.dma.commons.app.AbstractCommandLineTool;
 import dk.dma.commons.management.ManagedResource;
 import dk.dma.db.cassandra.CassandraConnection;
@@ -46,12 +47,17 @@ public abstract class AisStoreCommandLineTool extends AbstractCommandLineTool {
     List<String> seeds = Arrays.asList("localhost");
 
     /**
-     * Create a new connection to AisStore and start it.
+     * Create a new connection to AisStore and start it. The time blocks of the tables are read from the keyspace.
      * @return A new and started connection to AisStore. Null if no seeds or database name are provided.
      */
     public CassandraConnection connect() {
         CassandraConnection connection = AisStoreDaemon.connect(seeds, keyspaceName, secureConnection);
-        return connection == null ? null : start(connection);
+        if (connection == null) {
+            return null;
+        }
+        start(connection);
+        AisStoreSchema.loadTimeBlockDurations(connection.getSession());
+        return connection;
     }
 
 }
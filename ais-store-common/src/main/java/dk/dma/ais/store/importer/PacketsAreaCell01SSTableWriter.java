@@ -0,0 +1,103 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.ais.store.importer;
+
+import dk.dma.ais.store.AisPacketEnvelope;
+import dk.dma.ais.store.AisStoreSchema.Table;
+import dk.dma.enav.model.geometry.Position;
+import org.apache.cassandra.exceptions.InvalidRequestException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Objects;
+
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL01;
+import static dk.dma.ais.store.AisStoreSchema.timeBlock;
+
+/**
+ * Writes packets to packets_area_cell01, partitioned by cells of 0.1 degree and time block. Packets without a position
+ * are written to the cell of the last known position of the vessel, unless it has timed out.
+ */
+public class PacketsAreaCell01SSTableWriter extends PositionTrackingSSTableWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacketsAreaCell01SSTableWriter.class);
+
+    public PacketsAreaCell01SSTableWriter(String outputDir, String keyspace) {
+        super(
+            outputDir,
+            keyspace,
+            String.format(
+                "INSERT INTO %s.%s (cellid, timeblock, time, digest, aisdata) VALUES (?, ?, ?, ?, ?)", keyspace, TABLE_PACKETS_AREA_CELL01.toString()
+            )
+        );
+    }
+
+    @Override
+    protected String schemaDefinition(String keyspace, String digestType) {
+        return String.format(
+            "CREATE TABLE %s.%s (" +
+                "cellid int," +
+                "timeblock int," +
+                "time timestamp," +
+                "digest %s," +
+                "aisdata ascii," +
+                "PRIMARY KEY ((cellid, timeblock), time, digest)" +
+            ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)"
+            , keyspace, TABLE_PACKETS_AREA_CELL01.toString(), digestType
+        );
+    }
+
+    @Override
+    public Table table() {
+        return TABLE_PACKETS_AREA_CELL01;
+    }
+
+    @Override
+    public void write(AisPacketEnvelope envelope) {
+        Objects.requireNonNull(envelope);
+        incNumberOfPacketsProcessed();
+
+        Position position = targetPosition(envelope);
+
+        if (isValid(position)) {
+            writePacket(envelope, position);
+        }
+    }
+
+    private int getGridCell(Position position) {
+        return position.getCellInt(0.1);
+    }
+
+    private void writePacket(AisPacketEnvelope envelope, Position position) {
+        final long ts = envelope.getTimestamp();
+        if (ts > 0) {
+            final int cellid = getGridCell(position);
+            try {
+                writer().addRow(cellid, timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), digest(envelope), envelope.getStringMessage());
+            } catch (InvalidRequestException e) {
+                LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            } catch (IOException e) {
+                LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        } else {
+            LOG.error("Cannot get timestamp from: " + envelope.getStringMessage());
+        }
+    }
+
+}
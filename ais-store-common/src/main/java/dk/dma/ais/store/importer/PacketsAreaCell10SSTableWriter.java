@@ -15,7 +15,7 @@
  */
 package dk.dma.ais.store.importer;
 
-import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.store.AisPacketEnvelope;
 import dk.dma.ais.store.AisStoreSchema.Table;
 import dk.dma.enav.model.geometry.Position;
 import org.apache.cassandra.exceptions.InvalidRequestException;
@@ -23,13 +23,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.Date;
 import java.util.Objects;
 
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL10;
-import static dk.dma.ais.store.AisStoreSchema.digest;
 import static dk.dma.ais.store.AisStoreSchema.timeBlock;
 
 /**
@@ -50,36 +48,40 @@ public class PacketsAreaCell10SSTableWriter extends PositionTrackingSSTableWrite
         super(
                 outputDir,
                 keyspace,
-                String.format(
-                        "CREATE TABLE %s.%s (" +
-                                "cellid int," +
-                                "timeblock int," +
-                                "time timestamp," +
-                                "digest blob," +
-                                "aisdata ascii," +
-                                "PRIMARY KEY ((cellid, timeblock), time, digest)" +
-                                ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)", keyspace, TABLE_PACKETS_AREA_CELL10.toString()
-                ),
                 String.format(
                         "INSERT INTO %s.%s (cellid, timeblock, time, digest, aisdata) VALUES (?, ?, ?, ?, ?)", keyspace, TABLE_PACKETS_AREA_CELL10.toString()
                 )
         );
     }
 
+    @Override
+    protected String schemaDefinition(String keyspace, String digestType) {
+        return String.format(
+                "CREATE TABLE %s.%s (" +
+                        "cellid int," +
+                        "timeblock int," +
+                        "time timestamp," +
+                        "digest %s," +
+                        "aisdata ascii," +
+                        "PRIMARY KEY ((cellid, timeblock), time, digest)" +
+                        ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)", keyspace, TABLE_PACKETS_AREA_CELL10.toString(), digestType
+        );
+    }
+
     @Override
     public Table table() {
         return TABLE_PACKETS_AREA_CELL10;
     }
 
     @Override
-    public void accept(AisPacket packet) {
-        Objects.requireNonNull(packet);
+    public void write(AisPacketEnvelope envelope) {
+        Objects.requireNonNull(envelope);
         incNumberOfPacketsProcessed();
 
-        Position position = targetPosition(packet);
+        Position position = targetPosition(envelope);
 
         if (isValid(position)) {
-            writePacket(packet, position);
+            writePacket(envelope, position);
         }
     }
 
@@ -87,19 +89,19 @@ public class PacketsAreaCell10SSTableWriter extends PositionTrackingSSTableWrite
         return position.getCellInt(10.0);
     }
 
-    private void writePacket(AisPacket packet, Position position) {
-        final long ts = packet.getBestTimestamp();
+    private void writePacket(AisPacketEnvelope envelope, Position position) {
+        final long ts = envelope.getTimestamp();
         if (ts > 0) {
             final int cellid = getGridCell(position);
             try {
-                writer().addRow(cellid, timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), ByteBuffer.wrap(digest(packet)), packet.getStringMessage());
+                writer().addRow(cellid, timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), digest(envelope), envelope.getStringMessage());
             } catch (InvalidRequestException e) {
                 LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
             } catch (IOException e) {
                 LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
             }
         } else {
-            LOG.error("Cannot get timestamp from: " + packet.getStringMessage());
+            LOG.error("Cannot get timestamp from: " + envelope.getStringMessage());
         }
     }
 
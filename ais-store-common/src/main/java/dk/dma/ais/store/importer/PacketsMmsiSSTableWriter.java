@@ -15,20 +15,17 @@
  */
 package dk.dma.ais.store.importer;
 
-import dk.dma.ais.message.AisMessage;
-import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.store.AisPacketEnvelope;
 import dk.dma.ais.store.AisStoreSchema.Table;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.Date;
 
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_MMSI;
-import static dk.dma.ais.store.AisStoreSchema.digest;
 import static dk.dma.ais.store.AisStoreSchema.timeBlock;
 
 /**
@@ -50,16 +47,6 @@ public class PacketsMmsiSSTableWriter extends SSTableWriter {
         super(
                 outputDir,
                 keyspace,
-                String.format(
-                        "CREATE TABLE %s.%s (" +
-                                "mmsi int," +
-                                "timeblock int," +
-                                "time timestamp," +
-                                "digest blob," +
-                                "aisdata ascii," +
-                                "PRIMARY KEY ((mmsi, timeblock), time, digest)" +
-                                ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)", keyspace, TABLE_PACKETS_MMSI.toString()
-                ),
                 String.format(
                         "INSERT INTO %s.%s (mmsi, timeblock, time, digest, aisdata) VALUES (?, ?, ?, ?, ?)", keyspace, TABLE_PACKETS_MMSI.toString()
                 )
@@ -67,33 +54,46 @@ public class PacketsMmsiSSTableWriter extends SSTableWriter {
     }
 
     @Override
-    public void accept(AisPacket packet) {
+    public void write(AisPacketEnvelope envelope) {
         incNumberOfPacketsProcessed();
 
-        final long ts = packet.getBestTimestamp();
+        final long ts = envelope.getTimestamp();
         if (ts > 0) {
-            AisMessage message = packet.tryGetAisMessage();
-            if (message != null) {
-                final int mmsi = message.getUserId();
+            if (envelope.getAisMessage() != null) {
+                final int mmsi = envelope.getMmsi();
                 if (mmsi >= 0) {
                     try {
-                        writer().addRow(mmsi, timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), ByteBuffer.wrap(digest(packet)), packet.getStringMessage());
+                        writer().addRow(mmsi, timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), digest(envelope), envelope.getStringMessage());
                     } catch (InvalidRequestException e) {
                         LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
                     } catch (IOException e) {
                         LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
                     }
                 } else {
-                    LOG.error("Cannot get MMSI from: " + packet.getStringMessage());
+                    LOG.error("Cannot get MMSI from: " + envelope.getStringMessage());
                 }
             } else {
-                LOG.error("Cannot decode: " + packet.getStringMessage());
+                LOG.error("Cannot decode: " + envelope.getStringMessage());
             }
         } else {
-            LOG.error("Cannot get timestamp from: " + packet.getStringMessage());
+            LOG.error("Cannot get timestamp from: " + envelope.getStringMessage());
         }
     }
 
+    @Override
+    protected String schemaDefinition(String keyspace, String digestType) {
+        return String.format(
+                "CREATE TABLE %s.%s (" +
+                        "mmsi int," +
+                        "timeblock int," +
+                        "time timestamp," +
+                        "digest %s," +
+                        "aisdata ascii," +
+                        "PRIMARY KEY ((mmsi, timeblock), time, digest)" +
+                        ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)", keyspace, TABLE_PACKETS_MMSI.toString(), digestType
+        );
+    }
+
     @Override
     public Table table() {
         return TABLE_PACKETS_MMSI;
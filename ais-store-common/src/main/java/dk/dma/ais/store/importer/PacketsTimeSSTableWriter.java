@@ -15,19 +15,17 @@
  */
 package dk.dma.ais.store.importer;
 
-import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.store.AisPacketEnvelope;
 import dk.dma.ais.store.AisStoreSchema.Table;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.Date;
 
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TIME;
-import static dk.dma.ais.store.AisStoreSchema.digest;
 import static dk.dma.ais.store.AisStoreSchema.timeBlock;
 
 /**
@@ -49,15 +47,6 @@ public class PacketsTimeSSTableWriter extends SSTableWriter {
         super(
                 outputDir,
                 keyspace,
-                String.format(
-                        "CREATE TABLE %s.%s (" +
-                                "timeblock int," +
-                                "time timestamp," +
-                                "digest blob," +
-                                "aisdata ascii," +
-                                "PRIMARY KEY (timeblock, time, digest)" +
-                                ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)", keyspace, TABLE_PACKETS_TIME.toString()
-                ),
                 String.format(
                         "INSERT INTO %s.%s (timeblock, time, digest, aisdata) VALUES (?, ?, ?, ?)", keyspace, TABLE_PACKETS_TIME.toString()
                 )
@@ -65,23 +54,36 @@ public class PacketsTimeSSTableWriter extends SSTableWriter {
     }
 
     @Override
-    public void accept(AisPacket packet) {
+    public void write(AisPacketEnvelope envelope) {
         incNumberOfPacketsProcessed();
 
-        final long ts = packet.getBestTimestamp();
+        final long ts = envelope.getTimestamp();
         if (ts > 0) {
             try {
-                writer().addRow(timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), ByteBuffer.wrap(digest(packet)), packet.getStringMessage());
+                writer().addRow(timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), digest(envelope), envelope.getStringMessage());
             } catch (InvalidRequestException e) {
                 LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
             } catch (IOException e) {
                 LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
             }
         } else {
-            LOG.error("Cannot get timestamp from: " + packet.getStringMessage());
+            LOG.error("Cannot get timestamp from: " + envelope.getStringMessage());
         }
     }
 
+    @Override
+    protected String schemaDefinition(String keyspace, String digestType) {
+        return String.format(
+                "CREATE TABLE %s.%s (" +
+                        "timeblock int," +
+                        "time timestamp," +
+                        "digest %s," +
+                        "aisdata ascii," +
+                        "PRIMARY KEY (timeblock, time, digest)" +
+                        ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)", keyspace, TABLE_PACKETS_TIME.toString(), digestType
+        );
+    }
+
     @Override
     public final Table table() {
         return TABLE_PACKETS_TIME;
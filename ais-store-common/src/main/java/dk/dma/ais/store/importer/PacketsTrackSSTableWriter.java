@@ -0,0 +1,103 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.ais.store.importer;
+
+import dk.dma.ais.store.AisPacketEnvelope;
+import dk.dma.ais.store.AisStoreSchema.Table;
+import dk.dma.ais.store.TrackPosition;
+import org.apache.cassandra.exceptions.InvalidRequestException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Objects;
+
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TRACK;
+import static dk.dma.ais.store.AisStoreSchema.timeBlock;
+
+/**
+ * Writes the positions of position messages to packets_track, see {@link TrackPosition}.
+ */
+public class PacketsTrackSSTableWriter extends SSTableWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacketsTrackSSTableWriter.class);
+
+    public PacketsTrackSSTableWriter(String outputDir, String keyspace) {
+        super(
+            outputDir,
+            keyspace,
+            String.format(
+                "INSERT INTO %s.%s (mmsi, timeblock, time, digest, lat, lon, sog, cog, hdg, acc, src_clk, src_id, src_bs, src_cty, src_type, src_reg) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", keyspace, TABLE_PACKETS_TRACK.toString()
+            )
+        );
+    }
+
+    @Override
+    protected String schemaDefinition(String keyspace, String digestType) {
+        return String.format(
+            "CREATE TABLE %s.%s (" +
+                "mmsi int," +
+                "timeblock int," +
+                "time timestamp," +
+                "digest %s," +
+                "lat double," +
+                "lon double," +
+                "sog float," +
+                "cog float," +
+                "hdg int," +
+                "acc int," +
+                "src_clk timestamp," +
+                "src_id text," +
+                "src_bs int," +
+                "src_cty text," +
+                "src_type text," +
+                "src_reg text," +
+                "PRIMARY KEY ((mmsi, timeblock), time, digest)" +
+            ") WITH CLUSTERING ORDER BY (time ASC, digest ASC)"
+            , keyspace, TABLE_PACKETS_TRACK.toString(), digestType
+        );
+    }
+
+    @Override
+    public Table table() {
+        return TABLE_PACKETS_TRACK;
+    }
+
+    @Override
+    public void write(AisPacketEnvelope envelope) {
+        Objects.requireNonNull(envelope);
+        incNumberOfPacketsProcessed();
+
+        TrackPosition p = TrackPosition.from(envelope);
+        if (p != null) {
+            final long ts = p.getTimestamp();
+            try {
+                writer().addRow(p.getMmsi(), timeBlock(table(), Instant.ofEpochMilli(ts)), new Date(ts), digest(envelope),
+                        p.getLatitude(), p.getLongitude(), p.getSog(), p.getCog(), p.getHeading(), p.getPositionAccuracy(),
+                        p.getSourceTimestamp(), p.getSourceId(), p.getSourceBaseStation(), p.getSourceCountry(), p.getSourceType(),
+                        p.getSourceRegion());
+            } catch (InvalidRequestException e) {
+                LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            } catch (IOException e) {
+                LOG.error("Failed to store message in " + table().toString() + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+}
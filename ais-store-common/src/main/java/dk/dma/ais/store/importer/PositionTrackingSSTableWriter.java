@@ -15,12 +15,9 @@
  */
 package dk.dma.ais.store.importer;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import dk.dma.ais.message.AisMessage;
-import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.store.AisPacketEnvelope;
+import dk.dma.ais.store.PositionTracker;
 import dk.dma.enav.model.geometry.Position;
-import dk.dma.enav.model.geometry.PositionTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,32 +39,28 @@ public abstract class PositionTrackingSSTableWriter extends SSTableWriter {
      * A position tracker used to keeping an eye on previously received
      * messages.
      */
-    private final Cache<Integer, PositionTime> tracker = CacheBuilder
-            .newBuilder()
-            .expireAfterWrite(POSITION_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-            .build();
+    private final PositionTracker tracker = new PositionTracker(POSITION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 
-    protected PositionTrackingSSTableWriter(String outputDir, String keyspace, String schemaDefinition, String insertStatement) {
-        super(outputDir, keyspace, schemaDefinition, insertStatement);
+    protected PositionTrackingSSTableWriter(String outputDir, String keyspace, String insertStatement) {
+        super(outputDir, keyspace, insertStatement);
     }
 
-    protected Position targetPosition(AisPacket packet) {
+    protected Position targetPosition(AisPacketEnvelope envelope) {
         Position targetPosition = null;
 
-        AisMessage message = packet.tryGetAisMessage();
-        if (message != null) {
-            targetPosition = message.getValidPosition();
+        if (envelope.getAisMessage() != null) {
+            targetPosition = envelope.getPosition();
 
             if (targetPosition == null) {
                 // Try to find an estimated position
                 // Use the last received position message unless the position
                 // has timed out (POSITION_TIMEOUT_MS)
-                targetPosition = tracker.asMap().getOrDefault(message.getUserId(), null);
+                targetPosition = tracker.get(envelope.getMmsi());
             } else {
-                final long ts = packet.getBestTimestamp();
+                final long ts = envelope.getTimestamp();
                 // Update the tracker with latest position
                 // but only update the tracker IF the new time is better
-                tracker.asMap().merge(message.getUserId(), targetPosition.withTime(ts), (a, b) -> a.getTime() > b.getTime() ? a : b);
+                tracker.update(envelope.getMmsi(), targetPosition, ts);
             }
         }
 
@@ -16,6 +16,7 @@
 package dk.dma.ais.store.importer;
 
 import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.store.AisPacketEnvelope;
 import dk.dma.ais.store.AisStoreSchema.Table;
 import org.apache.cassandra.dht.Murmur3Partitioner;
 import org.apache.cassandra.io.sstable.CQLSSTableWriter;
@@ -44,16 +45,23 @@ public abstract class SSTableWriter implements Consumer<AisPacket> {
 
     private static final Logger LOG = LoggerFactory.getLogger(SSTableWriter.class);
 
+    /** The default size of the buffer in MB, roughly the size of each flush to an sstable. */
+    public static final int DEFAULT_BUFFER_SIZE_MB = 256;
+
     private CQLSSTableWriter writer;
 
     private long numberOfPacketsProcessed = 0L;
 
     private final Path writePath;
-    private final String schemaDefinition;
+    private final String keyspace;
     private final String insertStatement;
+    private int bufferSizeInMB = DEFAULT_BUFFER_SIZE_MB;
+
+    /** Whether the digest column is a bigint holding the 64-bit digest, see AisStoreSchema#isDigest64. */
+    private boolean digest64;
 
-    public SSTableWriter(String outputDir, String keyspace, String schemaDefinition, String insertStatement) {
-        this.schemaDefinition = schemaDefinition;
+    public SSTableWriter(String outputDir, String keyspace, String insertStatement) {
+        this.keyspace = keyspace;
         this.insertStatement = insertStatement;
         this.writePath = writePath(outputDir, keyspace);
     }
@@ -63,6 +71,38 @@ public abstract class SSTableWriter implements Consumer<AisPacket> {
             writer.close();
     }
 
+    /**
+     * Sets the size of the buffer in MB (roughly the size of each flush to an sstable). Must be set before the first
+     * packet is written.
+     */
+    public final void setBufferSizeInMB(int bufferSizeInMB) {
+        if (writer != null) {
+            throw new IllegalStateException("Buffer size must be set before writing");
+        }
+        if (bufferSizeInMB <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive, was " + bufferSizeInMB);
+        }
+        this.bufferSizeInMB = bufferSizeInMB;
+    }
+
+    /**
+     * Sets whether the digest column is a bigint holding the 64-bit digest instead of a blob holding the full digest,
+     * must match the keyspace the sstables are loaded into. Must be set before the first packet is written.
+     */
+    public final void setDigest64(boolean digest64) {
+        if (writer != null) {
+            throw new IllegalStateException("Digest type must be set before writing");
+        }
+        this.digest64 = digest64;
+    }
+
+    /**
+     * Returns the digest of the packet of the specified envelope as a value of the digest column.
+     */
+    protected final Object digest(AisPacketEnvelope envelope) {
+        return digest64 ? (Object) envelope.getDigest64() : envelope.getDigestBuffer();
+    }
+
     public final long numberOfPacketsProcessed() {
         return numberOfPacketsProcessed;
     }
@@ -73,6 +113,28 @@ public abstract class SSTableWriter implements Consumer<AisPacket> {
 
     public abstract Table table();
 
+    /**
+     * Returns the CREATE TABLE statement of the table of this writer.
+     *
+     * @param keyspace the keyspace of the table
+     * @param digestType the type of the digest column, bigint or blob, see {@link #setDigest64(boolean)}
+     */
+    protected abstract String schemaDefinition(String keyspace, String digestType);
+
+    /**
+     * Decodes the packet and writes it, use {@link #write(AisPacketEnvelope)} to share an already decoded packet
+     * between several writers.
+     */
+    @Override
+    public final void accept(AisPacket packet) {
+        write(AisPacketEnvelope.of(packet));
+    }
+
+    /**
+     * Writes the packet of the specified envelope to the table of this writer.
+     */
+    public abstract void write(AisPacketEnvelope envelope);
+
     protected final CQLSSTableWriter writer() {
         if (writer == null) {
             createDirectories(writePath);
@@ -81,8 +143,8 @@ public abstract class SSTableWriter implements Consumer<AisPacket> {
             writer =
                 CQLSSTableWriter.builder()
                     .inDirectory(writePath.toString())
-                    .forTable(schemaDefinition)
-                    .withBufferSizeInMB(256)
+                    .forTable(schemaDefinition(keyspace, digest64 ? "bigint" : "blob"))
+                    .withBufferSizeInMB(bufferSizeInMB)
                     .using(insertStatement)
                     .withPartitioner(new Murmur3Partitioner())
                     .build();
@@ -16,8 +16,15 @@ package dk.dma.ais.store.write;
 
 import static java.util.Objects.requireNonNull;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -26,11 +33,17 @@ import org.slf4j.LoggerFactory;
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.exceptions.QueryValidationException;
-import com.datastax.driver.core.querybuilder.Batch;
-import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import dk.dma.commons.service.AbstractBatchedStage;
 import dk.dma.commons.util.DurationFormatter;
@@ -48,31 +61,71 @@ public abstract class CassandraBatchedStagedWriter<T> extends AbstractBatchedSta
     /** The connection to Cassandra. */
     private final CassandraConnection connection;
 
-    final MetricRegistry metrics = new MetricRegistry();
+    /** The domain of the metrics reported over JMX. */
+    static final String METRICS_DOMAIN = "fooo.erer.er";
 
-    final Meter persistedCount = metrics.meter(MetricRegistry.name("aistore", "cassandra",
-            "Number of persisted AIS messages"));
+    final MetricRegistry metrics;
 
-    /** greater than 0 if the last batch was slow. */
-    private int lastSlowBatch;
+    final Meter persistedCount;
+
+    /** greater than 0 if the last batch was slow, updated from the callback threads of the driver. */
+    private volatile int lastSlowBatch;
+
+    /** The default maximum number of concurrent requests when using {@link WriteMode#PARTITIONED}. */
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 256;
+
+    /** How statements are sent to Cassandra. */
+    private volatile WriteMode writeMode = WriteMode.LOGGED_BATCH;
+
+    /** The maximum number of concurrent requests. */
+    private volatile int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+    /** Limits the number of concurrent requests when using {@link WriteMode#PARTITIONED}, and of follow-ups. */
+    private volatile Semaphore inFlightRequests = new Semaphore(DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+
+    /** Follow-ups of batches that have been written, sent by the writer thread. */
+    private final Queue<Statement> followUps = new ConcurrentLinkedQueue<>();
+
+    /** The maximum number of batches that can be in flight at the same time. */
+    private volatile int maxInFlightBatches = 1;
+
+    /** Limits the number of batches in flight, or null if we wait for each batch before sending the next. */
+    private volatile Semaphore inFlightBatches;
+
+    /** Whether or not the last pipelined batch failed. */
+    private volatile boolean lastBatchFailed;
 
     /**
      * @param queueSize
      * @param maxBatchSize
      */
     public CassandraBatchedStagedWriter(CassandraConnection connection, int batchSize) {
+        this(connection, batchSize, null);
+    }
+
+    /**
+     * Creates a writer reporting to the specified registry, which is shared with other writers and reported by its
+     * owner. If the registry is null the writer reports its own metrics over JMX.
+     */
+    protected CassandraBatchedStagedWriter(CassandraConnection connection, int batchSize, MetricRegistry metrics) {
         super(Math.min(100000, batchSize * 100), batchSize);
         this.connection = requireNonNull(connection);
-        final JmxReporter reporter = JmxReporter.forRegistry(metrics).inDomain("fooo.erer.er").build();
-        reporter.start();
+        if (metrics == null) {
+            metrics = new MetricRegistry();
+            final JmxReporter reporter = JmxReporter.forRegistry(metrics).inDomain(METRICS_DOMAIN).build();
+            reporter.start();
+        }
+        this.metrics = metrics;
+        this.persistedCount = metrics.meter(MetricRegistry.name("aistore", "cassandra", "Number of persisted AIS messages"));
     }
 
     /** {@inheritDoc} */
     @Override
     protected final void handleMessages(List<T> messages) {
+        sendFollowUps();
         long start = System.nanoTime();
         // Create a batch of message that we want to write.
-        List<RegularStatement> statements = new ArrayList<>();
+        List<Statement> statements = new ArrayList<>();
         for (T t : messages) {
             try {
                 handleMessage(statements, t);
@@ -80,46 +133,296 @@ public abstract class CassandraBatchedStagedWriter<T> extends AbstractBatchedSta
                 LOG.warn("Failed to write message: " + t, e); // Just in case we cannot process a message
             }
         }
+        Statement followUp = batchPrepared(messages);
+
+        final Semaphore inFlightBatches = this.inFlightBatches;
+        if (inFlightBatches != null) {
+            sendPipelined(inFlightBatches, new ArrayList<>(messages), statements, followUp, start);
+            return;
+        }
 
         // Try writing the batch
         try {
-            Batch batch = QueryBuilder.batch(statements.toArray(new RegularStatement[statements.size()]));
-            
-            
             long beforeSend = System.nanoTime();
-            
-            ResultSetFuture f = connection.getSession().executeAsync(batch);
-            f.getUninterruptibly(); //throws QueryValidationExecption etc
-            
-            long total = System.nanoTime();
-            // Is this an abnormal slow batch?
-            boolean isSlow = TimeUnit.MILLISECONDS.convert(total - start, TimeUnit.NANOSECONDS) > 200
-                    || messages.size() >= getBatchSize();
-            if (isSlow || lastSlowBatch > 0) {
-                LOG.info("Total time: " + DurationFormatter.DEFAULT.formatNanos(total - start) + ", prepping="
-                        + DurationFormatter.DEFAULT.formatNanos(beforeSend - start) + ", sending="
-                        + DurationFormatter.DEFAULT.formatNanos(total - beforeSend) + ", size=" + messages.size());
-                // makes sure we write 10 info statements after the last slow batch we insert
-                lastSlowBatch = isSlow ? 10 : lastSlowBatch - 1;
-            }
-            persistedCount.mark(messages.size());
-            // sink.onSucces(messages);
-        } catch (QueryValidationException e) {
-            LOG.error("Could not execute query, this is an internal error", e);
+
+            ListenableFuture<?> f = send(statements);
+            getUninterruptibly(f); //throws QueryValidationExecption etc
+
+            batchWritten(messages, followUp, start, beforeSend);
+            sendFollowUps();
         } catch (Exception e) {
-            onFailure(messages, e);
+            if (batchFailed(messages, e)) {
+                backOff();
+            }
+        }
+    }
+
+    /**
+     * Sends a batch without waiting for it to complete. Blocks only if the maximum number of batches are already in
+     * flight.
+     */
+    private void sendPipelined(final Semaphore inFlightBatches, final List<T> messages, List<Statement> statements,
+            final Statement followUp, final long start) {
+        // The previous batch failed, give Cassandra some time before sending the next one
+        if (lastBatchFailed) {
+            lastBatchFailed = false;
+            backOff();
+        }
+        inFlightBatches.acquireUninterruptibly();
+        final long beforeSend = System.nanoTime();
+        final ListenableFuture<?> f;
+        try {
+            f = send(statements);
+        } catch (RuntimeException e) {
+            inFlightBatches.release();
+            lastBatchFailed = batchFailed(messages, e);
+            return;
+        }
+        Futures.addCallback(f, new FutureCallback<Object>() {
+            public void onSuccess(Object result) {
+                try {
+                    batchWritten(messages, followUp, start, beforeSend);
+                } finally {
+                    inFlightBatches.release();
+                }
+            }
+
+            public void onFailure(Throwable cause) {
+                try {
+                    lastBatchFailed = batchFailed(messages, cause);
+                } finally {
+                    inFlightBatches.release();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /** Invoked when a batch of messages has been written. */
+    private void batchWritten(List<T> messages, Statement followUp, long start, long beforeSend) {
+        if (followUp != null) {
+            followUps.add(followUp);
+        }
+        long total = System.nanoTime();
+        // Is this an abnormal slow batch?
+        boolean isSlow = TimeUnit.MILLISECONDS.convert(total - start, TimeUnit.NANOSECONDS) > 200
+                || messages.size() >= getBatchSize();
+        if (isSlow || lastSlowBatch > 0) {
+            LOG.info("Total time: " + DurationFormatter.DEFAULT.formatNanos(total - start) + ", prepping="
+                    + DurationFormatter.DEFAULT.formatNanos(beforeSend - start) + ", sending="
+                    + DurationFormatter.DEFAULT.formatNanos(total - beforeSend) + ", size=" + messages.size());
+            // makes sure we write 10 info statements after the last slow batch we insert
+            lastSlowBatch = isSlow ? 10 : lastSlowBatch - 1;
+        }
+        persistedCount.mark(messages.size());
+        // sink.onSucces(messages);
+    }
+
+    /**
+     * Invoked when a batch of messages could not be written.
+     *
+     * @return true if the failure was passed on to {@link #onFailure(List, Throwable)} and we should back off before
+     *         writing the next batch, false if the batch was dropped because of an internal error
+     */
+    private boolean batchFailed(List<T> messages, Throwable cause) {
+        if (cause instanceof QueryValidationException) {
+            LOG.error("Could not execute query, this is an internal error", cause);
+            return false;
+        }
+        onFailure(messages, cause);
+        return true;
+    }
+
+    /** Sleeps a while after a failed write. */
+    private void backOff() {
+        try {
+            sleepUntilShutdown(2, TimeUnit.SECONDS);
+        } catch (InterruptedException ignore) {
+            Thread.interrupted();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void shutDown() throws Exception {
+        // Wait for all pipelined batches to complete
+        Semaphore inFlightBatches = this.inFlightBatches;
+        if (inFlightBatches != null) {
+            inFlightBatches.acquireUninterruptibly(maxInFlightBatches);
+            inFlightBatches.release(maxInFlightBatches);
+        }
+        // Send the remaining follow-ups and wait for them to complete
+        sendFollowUps();
+        Semaphore inFlightRequests = this.inFlightRequests;
+        inFlightRequests.acquireUninterruptibly(maxInFlightRequests);
+        inFlightRequests.release(maxInFlightRequests);
+        super.shutDown();
+    }
+
+    /** Sends the statements to Cassandra according to the current write mode. */
+    private ListenableFuture<?> send(List<Statement> statements) {
+        Session session = connection.getSession();
+        if (writeMode == WriteMode.LOGGED_BATCH) {
+            BatchStatement batch = new BatchStatement();
+            batch.addAll(statements);
+            return session.executeAsync(batch);
+        }
+
+        // Group statements by partition key (routing key). Statements without a routing key are sent one by one.
+        Map<ByteBuffer, List<Statement>> partitions = new LinkedHashMap<>();
+        List<ResultSetFuture> futures = new ArrayList<>();
+        for (Statement statement : statements) {
+            ByteBuffer routingKey = statement.getRoutingKey();
+            if (routingKey == null) {
+                futures.add(executeAsync(session, statement));
+            } else {
+                partitions.computeIfAbsent(routingKey, k -> new ArrayList<>()).add(statement);
+            }
+        }
+        for (List<Statement> partition : partitions.values()) {
+            if (partition.size() == 1) {
+                futures.add(executeAsync(session, partition.get(0)));
+            } else {
+                BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                batch.addAll(partition);
+                futures.add(executeAsync(session, batch));
+            }
+        }
+        return Futures.allAsList(futures);
+    }
+
+    /**
+     * Sends the follow-ups of the batches written since the last invocation. Only invoked by the writer thread, as
+     * it may block while the maximum number of requests are in flight.
+     */
+    private void sendFollowUps() {
+        for (Statement followUp; (followUp = followUps.poll()) != null;) {
+            final ResultSetFuture f;
             try {
-                sleepUntilShutdown(2, TimeUnit.SECONDS);
-            } catch (InterruptedException ignore) {
-                Thread.interrupted();
+                f = executeAsync(connection.getSession(), followUp);
+            } catch (RuntimeException e) {
+                LOG.warn("Could not send follow-up of batch", e);
+                continue;
             }
+            Futures.addCallback(f, new FutureCallback<ResultSet>() {
+                public void onSuccess(ResultSet result) {}
+
+                public void onFailure(Throwable cause) {
+                    LOG.warn("Could not write follow-up of batch", cause);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
+    /** Executes a single request, blocking while the maximum number of requests are in flight. */
+    private ResultSetFuture executeAsync(Session session, Statement statement) {
+        final Semaphore inFlightRequests = this.inFlightRequests;
+        inFlightRequests.acquireUninterruptibly();
+        final ResultSetFuture f;
+        try {
+            f = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            inFlightRequests.release();
+            throw e;
+        }
+        f.addListener(inFlightRequests::release, MoreExecutors.sameThreadExecutor());
+        return f;
+    }
+
+    /** Waits for the specified future, rethrowing the cause of a failed write. */
+    private static void getUninterruptibly(ListenableFuture<?> f) throws Exception {
+        try {
+            Uninterruptibles.getUninterruptibly(f);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Sets how statements are sent to Cassandra. Must be set before the writer is started.
+     *
+     * @param writeMode
+     *            the write mode
+     * @return this writer
+     */
+    public CassandraBatchedStagedWriter<T> setWriteMode(WriteMode writeMode) {
+        this.writeMode = requireNonNull(writeMode);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests when using {@link WriteMode#PARTITIONED}, also limiting the
+     * follow-ups returned by {@link #batchPrepared(List)}. Must be set before the writer is started.
+     *
+     * @param maxInFlightRequests
+     *            the maximum number of concurrent requests
+     * @return this writer
+     */
+    public CassandraBatchedStagedWriter<T> setMaxInFlightRequests(int maxInFlightRequests) {
+        if (maxInFlightRequests <= 0) {
+            throw new IllegalArgumentException("maxInFlightRequests must be positive, was " + maxInFlightRequests);
+        }
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.inFlightRequests = new Semaphore(maxInFlightRequests);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of batches that can be in flight at the same time. The default is 1, in which case each
+     * batch is written before the next one is sent. With a higher value batches are pipelined, and the writer only
+     * blocks once the maximum number of batches are outstanding. Must be set before the writer is started.
+     *
+     * @param maxInFlightBatches
+     *            the maximum number of batches in flight
+     * @return this writer
+     */
+    public CassandraBatchedStagedWriter<T> setMaxInFlightBatches(int maxInFlightBatches) {
+        if (maxInFlightBatches <= 0) {
+            throw new IllegalArgumentException("maxInFlightBatches must be positive, was " + maxInFlightBatches);
         }
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.inFlightBatches = maxInFlightBatches == 1 ? null : new Semaphore(maxInFlightBatches);
+        return this;
+    }
+
+    /**
+     * Returns the connection to Cassandra that this writer is using.
+     *
+     * @return the connection to Cassandra
+     */
+    protected final CassandraConnection getConnection() {
+        return connection;
     }
 
-    protected abstract void handleMessage(List<RegularStatement> statements, T message);
+    protected abstract void handleMessage(List<Statement> statements, T message);
+
+    /**
+     * Invoked by the writer thread after {@link #handleMessage(List, Object)} has been invoked for each message of a
+     * batch, before the batch is sent. May return a follow-up, such as counter updates that cannot be batched with the
+     * other statements, which is sent once the batch has been written. The default implementation returns null.
+     *
+     * @param messages
+     *            the messages of the batch
+     * @return the follow-up of the batch, or null if there is none
+     */
+    protected Statement batchPrepared(List<T> messages) {
+        return null;
+    }
 
     public abstract void onFailure(List<T> messages, Throwable cause);
 
+    /** The ways statements can be sent to Cassandra. */
+    public enum WriteMode {
+
+        /** All statements for a batch of messages are sent as a single logged batch. */
+        LOGGED_BATCH,
+
+        /**
+         * Statements are grouped by partition key and each group is sent as an unlogged batch (or a single write), so
+         * token-aware routing can send it directly to a replica owning the partition.
+         */
+        PARTITIONED
+    }
 }
 // batch.enableTracing();
 // ExecutionInfo executionInfo = connection.getSession().execute(batch).getExecutionInfo();
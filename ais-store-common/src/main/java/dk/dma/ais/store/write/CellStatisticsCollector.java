@@ -0,0 +1,94 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.write;
+
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL_STATS;
+import static dk.dma.ais.store.AisStoreSchema.timeBlock;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Statement;
+
+/**
+ * Counts the packets written to each cell and time block of packets_area_cell1 and packets_area_cell10, so the counts
+ * can be added to packets_area_cell_stats with one counter update per cell and time block instead of one per packet.
+ * <p>
+ * This class is not thread-safe.
+ */
+class CellStatisticsCollector {
+
+    /** The number of packets per time block and cell id of packets_area_cell1. */
+    private final Map<Long, long[]> cell1 = new HashMap<>();
+
+    /** The number of packets per time block and cell id of packets_area_cell10. */
+    private final Map<Long, long[]> cell10 = new HashMap<>();
+
+    /**
+     * Counts a packet under its time block of packets_area_cell_stats, which may differ from the time blocks of the
+     * cell tables.
+     *
+     * @param cellSize
+     *            the size of the cell in degrees, 1 or 10
+     * @param cellId
+     *            the id of the cell
+     * @param timestamp
+     *            the timestamp of the packet
+     */
+    void add(int cellSize, int cellId, Instant timestamp) {
+        Map<Long, long[]> counts = cellSize == 1 ? cell1 : cell10;
+        counts.computeIfAbsent(key(timeBlock(TABLE_PACKETS_AREA_CELL_STATS, timestamp), cellId), k -> new long[1])[0]++;
+    }
+
+    /** Returns the number of packets counted for the specified cell and time block since the last drain. */
+    long count(int cellSize, int cellId, int timeBlock) {
+        long[] count = (cellSize == 1 ? cell1 : cell10).get(key(timeBlock, cellId));
+        return count == null ? 0 : count[0];
+    }
+
+    private static long key(int timeBlock, int cellId) {
+        return ((long) timeBlock << 32) | (cellId & 0xFFFFFFFFL);
+    }
+
+    /** Returns true if no packets have been counted since the last drain. */
+    boolean isEmpty() {
+        return cell1.isEmpty() && cell10.isEmpty();
+    }
+
+    /**
+     * Adds a counter update for each cell and time block to the specified list, and resets all counts.
+     *
+     * @param statements
+     *            the list to add the updates to
+     * @param update
+     *            the update statement, binding the count, time block, cell size and cell id
+     */
+    void drainTo(List<Statement> statements, PreparedStatement update) {
+        drainTo(statements, update, 1, cell1);
+        drainTo(statements, update, 10, cell10);
+    }
+
+    private static void drainTo(List<Statement> statements, PreparedStatement update, int cellSize,
+            Map<Long, long[]> counts) {
+        for (Map.Entry<Long, long[]> e : counts.entrySet()) {
+            long key = e.getKey();
+            statements.add(update.bind(e.getValue()[0], (int) (key >>> 32), cellSize, (int) key));
+        }
+        counts.clear();
+    }
+}
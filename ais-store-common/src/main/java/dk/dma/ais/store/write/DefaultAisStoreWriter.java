@@ -14,38 +14,67 @@
  */
 package dk.dma.ais.store.write;
 
-import com.datastax.driver.core.RegularStatement;
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.store.AisPacketCodec;
+import dk.dma.ais.store.AisPacketEnvelope;
 import dk.dma.ais.store.AisStoreSchema;
+import dk.dma.ais.store.AisStoreSchema.Column;
+import dk.dma.ais.store.AisStoreSchema.Table;
+import dk.dma.ais.store.PositionTracker;
+import dk.dma.ais.store.TrackPosition;
 import dk.dma.db.cassandra.CassandraConnection;
 import dk.dma.enav.model.geometry.Position;
-import dk.dma.enav.model.geometry.PositionTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
+import static com.datastax.driver.core.querybuilder.QueryBuilder.bindMarker;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA_BIN;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_AISDATA_DIGEST;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_CELLID;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_CELLSIZE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_COG;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_HEADING;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_LATITUDE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_LONGITUDE;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_MESSAGE_TYPE;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_MMSI;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_PACKETS;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_POSITION_ACCURACY;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOG;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_BASE_STATION;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_COUNTRY;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_ID;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_REGION;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_TIMESTAMP;
+import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_SOURCE_TYPE;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMEBLOCK;
 import static dk.dma.ais.store.AisStoreSchema.Column.COLUMN_TIMESTAMP;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL01;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL1;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL10;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL_STATS;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_UNKNOWN;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_MMSI;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_MMSI_TYPE;
 import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TIME;
-import static dk.dma.ais.store.AisStoreSchema.digest;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TRACK;
 import static dk.dma.ais.store.AisStoreSchema.timeBlock;
 
 /**
@@ -65,10 +94,37 @@ public abstract class DefaultAisStoreWriter extends CassandraBatchedStagedWriter
     public static final long POSITION_TIMEOUT_MS = TimeUnit.MILLISECONDS.convert(20, TimeUnit.MINUTES);
 
     /** A position tracker used to keeping an eye on previously received messages. */
-    private final Cache<Integer,PositionTime> tracker = CacheBuilder
-            .newBuilder()
-            .expireAfterWrite(POSITION_TIMEOUT_MS,TimeUnit.MILLISECONDS)
-            .build();
+    private final PositionTracker tracker = new PositionTracker(POSITION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+    /** Prepared insert statements; one per table. Prepared once when the writer is started. */
+    private PreparedStatement insertTime, insertMmsi, insertMmsiType, insertCell1, insertCell10, insertCell01, insertUnknown, insertTrack;
+
+    /** Prepared counter update of packets_area_cell_stats. */
+    private PreparedStatement updateCellStatistics;
+
+    /** Whether packets are also written to packets_area_cell10. */
+    private boolean cell10Enabled = AisStoreSchema.TABLE_PACKETS_AREA_CELL10_ENABLED;
+
+    /** Whether packets are also written to packets_area_cell01. */
+    private boolean cell01Enabled;
+
+    /** Whether packets are written to the aisdata_bin column encoded with {@link AisPacketCodec}. */
+    private boolean binaryAisDataEnabled;
+
+    /** Whether packets are also written to packets_mmsi_type. */
+    private boolean mmsiTypeEnabled;
+
+    /** Whether the positions of position messages are also written to packets_track. */
+    private boolean trackEnabled;
+
+    /** Whether the digest column is a bigint holding the 64-bit digest. */
+    private boolean digest64;
+
+    /** Whether the mmsi and area tables only refer to the packet in packets_time. */
+    private boolean referencesEnabled;
+
+    /** Counts the packets written per cell in the current batch, or null if statistics are not collected. */
+    private CellStatisticsCollector cellStatistics;
 
     /**
      * @param connection
@@ -78,109 +134,341 @@ public abstract class DefaultAisStoreWriter extends CassandraBatchedStagedWriter
         super(connection, batchSize);
     }
 
-    public void handleMessage(List<RegularStatement> batch, AisPacket packet) {
+    /**
+     * Creates a writer sharing the specified metrics with other writers, see {@link ShardedAisStoreWriter}.
+     *
+     * @param connection
+     * @param batchSize
+     * @param metrics
+     */
+    public DefaultAisStoreWriter(CassandraConnection connection, int batchSize, MetricRegistry metrics) {
+        super(connection, batchSize, metrics);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void startUp() throws Exception {
+        super.startUp();
+        prepareStatements(getConnection().getSession());
+    }
+
+    /** Prepares the insert statements so Cassandra only has to parse the CQL once per table. */
+    private void prepareStatements(Session session) {
+        digest64 = AisStoreSchema.isDigest64(session, TABLE_PACKETS_TIME);
+        if (digest64) {
+            LOG.info("Writing 64-bit digests");
+        }
+        Column data = binaryAisDataEnabled ? COLUMN_AISDATA_BIN : COLUMN_AISDATA;
+        Column indexData = referencesEnabled ? null : data;
+        insertTime = session.prepare(insert(TABLE_PACKETS_TIME, data, COLUMN_TIMEBLOCK));
+        insertMmsi = session.prepare(insert(TABLE_PACKETS_MMSI, indexData, COLUMN_MMSI, COLUMN_TIMEBLOCK));
+        insertCell1 = session.prepare(insert(TABLE_PACKETS_AREA_CELL1, indexData, COLUMN_CELLID, COLUMN_TIMEBLOCK));
+        insertUnknown = session.prepare(insert(TABLE_PACKETS_AREA_UNKNOWN, indexData, COLUMN_MMSI, COLUMN_TIMEBLOCK));
+        if (mmsiTypeEnabled) {
+            insertMmsiType = session.prepare(insert(TABLE_PACKETS_MMSI_TYPE, indexData, COLUMN_MMSI, COLUMN_MESSAGE_TYPE, COLUMN_TIMEBLOCK));
+        }
+        if (trackEnabled) {
+            insertTrack = session.prepare(QueryBuilder.insertInto(TABLE_PACKETS_TRACK.toString())
+                    .value(COLUMN_MMSI.toString(), bindMarker())
+                    .value(COLUMN_TIMEBLOCK.toString(), bindMarker())
+                    .value(COLUMN_TIMESTAMP.toString(), bindMarker())
+                    .value(COLUMN_AISDATA_DIGEST.toString(), bindMarker())
+                    .value(COLUMN_LATITUDE.toString(), bindMarker())
+                    .value(COLUMN_LONGITUDE.toString(), bindMarker())
+                    .value(COLUMN_SOG.toString(), bindMarker())
+                    .value(COLUMN_COG.toString(), bindMarker())
+                    .value(COLUMN_HEADING.toString(), bindMarker())
+                    .value(COLUMN_POSITION_ACCURACY.toString(), bindMarker())
+                    .value(COLUMN_SOURCE_TIMESTAMP.toString(), bindMarker())
+                    .value(COLUMN_SOURCE_ID.toString(), bindMarker())
+                    .value(COLUMN_SOURCE_BASE_STATION.toString(), bindMarker())
+                    .value(COLUMN_SOURCE_COUNTRY.toString(), bindMarker())
+                    .value(COLUMN_SOURCE_TYPE.toString(), bindMarker())
+                    .value(COLUMN_SOURCE_REGION.toString(), bindMarker()));
+        }
+        if (cell10Enabled) {
+            insertCell10 = session.prepare(insert(TABLE_PACKETS_AREA_CELL10, indexData, COLUMN_CELLID, COLUMN_TIMEBLOCK));
+        }
+        if (cell01Enabled) {
+            insertCell01 = session.prepare(insert(TABLE_PACKETS_AREA_CELL01, indexData, COLUMN_CELLID, COLUMN_TIMEBLOCK));
+        }
+        if (cellStatistics != null) {
+            updateCellStatistics = session.prepare(QueryBuilder.update(TABLE_PACKETS_AREA_CELL_STATS.toString())
+                    .with(QueryBuilder.incr(COLUMN_PACKETS.toString(), bindMarker()))
+                    .where(QueryBuilder.eq(COLUMN_TIMEBLOCK.toString(), bindMarker()))
+                    .and(QueryBuilder.eq(COLUMN_CELLSIZE.toString(), bindMarker()))
+                    .and(QueryBuilder.eq(COLUMN_CELLID.toString(), bindMarker())));
+        }
+    }
+
+    /**
+     * Sets whether packets are also written to packets_area_cell10. The default is
+     * {@link AisStoreSchema#TABLE_PACKETS_AREA_CELL10_ENABLED}. Must be set before the writer is started.
+     *
+     * @param cell10Enabled
+     *            whether to write to packets_area_cell10
+     * @return this writer
+     */
+    public DefaultAisStoreWriter setCell10Enabled(boolean cell10Enabled) {
+        this.cell10Enabled = cell10Enabled;
+        return this;
+    }
+
+    /**
+     * Sets whether packets are also written to packets_area_cell01, which is used by queries of small areas. Must be
+     * set before the writer is started.
+     *
+     * @param cell01Enabled
+     *            whether to write to packets_area_cell01
+     * @return this writer
+     */
+    public DefaultAisStoreWriter setCell01Enabled(boolean cell01Enabled) {
+        this.cell01Enabled = cell01Enabled;
+        return this;
+    }
+
+    /**
+     * Sets whether packets are also written to packets_mmsi_type, which is used by MMSI queries that only want some
+     * message types. Must be set before the writer is started.
+     *
+     * @param mmsiTypeEnabled
+     *            whether to write to packets_mmsi_type
+     * @return this writer
+     */
+    public DefaultAisStoreWriter setMmsiTypeEnabled(boolean mmsiTypeEnabled) {
+        this.mmsiTypeEnabled = mmsiTypeEnabled;
+        return this;
+    }
+
+    /**
+     * Sets whether the positions of position messages are also written, decoded, to packets_track. Past tracks can
+     * then be read without decoding any packets. Must be set before the writer is started.
+     *
+     * @param trackEnabled
+     *            whether to write to packets_track
+     * @return this writer
+     */
+    public DefaultAisStoreWriter setTrackEnabled(boolean trackEnabled) {
+        this.trackEnabled = trackEnabled;
+        return this;
+    }
+
+    /**
+     * Sets whether packets are written to the aisdata_bin column in the compact format of {@link AisPacketCodec}
+     * instead of to the aisdata column. All tables must have the aisdata_bin column. Queries read both columns. Must
+     * be set before the writer is started.
+     *
+     * @param binaryAisDataEnabled
+     *            whether to write to aisdata_bin
+     * @return this writer
+     */
+    public DefaultAisStoreWriter setBinaryAisDataEnabled(boolean binaryAisDataEnabled) {
+        this.binaryAisDataEnabled = binaryAisDataEnabled;
+        return this;
+    }
+
+    /**
+     * Sets whether the packet itself is only written to packets_time. The rows of packets_mmsi and the area tables
+     * then only hold the timestamp and digest of the packet, which queries use to look the packet up in packets_time.
+     * This stores each packet once instead of 3-4 times, at the cost of a point query per packet when querying by
+     * MMSI or area. Packets without a valid timestamp are not stored by MMSI, as they are not stored by time. Must be
+     * set before the writer is started.
+     *
+     * @param referencesEnabled
+     *            whether to only write references to the mmsi and area tables
+     * @return this writer
+     */
+    public DefaultAisStoreWriter setReferencesEnabled(boolean referencesEnabled) {
+        this.referencesEnabled = referencesEnabled;
+        return this;
+    }
+
+    /**
+     * Sets whether the number of packets written to each cell is counted in packets_area_cell_stats. The counts are
+     * used by queries to choose between packets_area_cell1 and packets_area_cell10. They are only updated once the batch
+     * of packets has been written, and are approximate as a failed update is not retried. Must be set before the writer is started.
+     *
+     * @param cellStatisticsEnabled
+     *            whether to collect cell statistics
+     * @return this writer
+     */
+    public DefaultAisStoreWriter setCellStatisticsEnabled(boolean cellStatisticsEnabled) {
+        this.cellStatistics = cellStatisticsEnabled ? new CellStatisticsCollector() : null;
+        return this;
+    }
+
+    /** Returns the cell statistics of the batch, counter updates cannot be batched with the inserts. */
+    @Override
+    protected Statement batchPrepared(List<AisPacket> messages) {
+        CellStatisticsCollector cellStatistics = this.cellStatistics;
+        if (cellStatistics == null || cellStatistics.isEmpty()) {
+            return null;
+        }
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.COUNTER);
+        List<Statement> updates = new ArrayList<>();
+        cellStatistics.drainTo(updates, updateCellStatistics);
+        batch.addAll(updates);
+        return batch;
+    }
+
+    /**
+     * Creates an insert statement with bind markers for the given partition key columns followed by the timestamp,
+     * digest and the given data column (which are common to all tables). If the data column is null the row only
+     * refers to the packet in packets_time.
+     */
+    private static Insert insert(Table table, Column data, Column... partitionKey) {
+        Insert i = QueryBuilder.insertInto(table.toString());
+        for (Column column : partitionKey) {
+            i.value(column.toString(), bindMarker());
+        }
+        i.value(COLUMN_TIMESTAMP.toString(), bindMarker());
+        i.value(COLUMN_AISDATA_DIGEST.toString(), bindMarker());
+        if (data != null) {
+            i.value(data.toString(), bindMarker());
+        }
+        return i;
+    }
+
+    public void handleMessage(List<Statement> batch, AisPacket packet) {
         Objects.requireNonNull(batch);
         Objects.requireNonNull(packet);
 
-        final long millisSinceEpoch = packet.getBestTimestamp();
+        // Decode and hash the packet only once
+        final AisPacketEnvelope envelope = AisPacketEnvelope.of(packet);
+
+        final long millisSinceEpoch = envelope.getTimestamp();
         if (millisSinceEpoch <= 0) {
-            LOG.warn("Invalid timestamp in packet: " + packet.getStringMessage());
+            LOG.warn("Invalid timestamp in packet: " + envelope.getStringMessage());
         }
 
-        AisMessage message = packet.tryGetAisMessage();
-        if (message == null) {
-            LOG.warn("Cannot decode packet (to obtain MMSI): " + packet.getStringMessage());
+        if (envelope.getAisMessage() == null) {
+            LOG.warn("Cannot decode packet (to obtain MMSI): " + envelope.getStringMessage());
         }
 
-        // We need to calc these values only once per packet.
-        final int mmsi = message == null ? -1 : message.getUserId();
+        final int mmsi = envelope.getMmsi();
         final Instant timestamp = Instant.ofEpochMilli(millisSinceEpoch);
-        final Position position = getPosition(packet);
-        final byte[] digest = digest(packet);
-        final String rawMessage = packet.getStringMessage();
+        final Position position = getPosition(envelope);
+        final byte[] digest = envelope.getDigest();
+        final String rawMessage = envelope.getStringMessage();
+        final byte[] encoded = binaryAisDataEnabled ? AisPacketCodec.encode(rawMessage) : null;
 
         // Store packets in Cassandra
         if (millisSinceEpoch > 0)
-            storeByTime(batch, timestamp, digest, rawMessage); // Store packet by time
+            storeByTime(batch, timestamp, digest, rawMessage, encoded); // Store packet by time
 
-        if (mmsi > 0)
-            storeByMmsi(batch, timestamp, mmsi, digest, rawMessage); // Store packet by mmsi
+        if (mmsi > 0 && (millisSinceEpoch > 0 || !referencesEnabled)) {
+            storeByMmsi(batch, timestamp, mmsi, digest, rawMessage, encoded); // Store packet by mmsi
+            if (mmsiTypeEnabled)
+                storeByMmsiType(batch, timestamp, mmsi, envelope.getMessageType(), digest, rawMessage, encoded);
+        }
 
         if (millisSinceEpoch > 0 && mmsi > 0)
-            storeByArea(batch, timestamp, mmsi, position, digest, rawMessage); // Store packet by area
+            storeByArea(batch, timestamp, mmsi, position, digest, rawMessage, encoded); // Store packet by area
+
+        if (trackEnabled)
+            storeTrack(batch, envelope); // Store the position of position messages
     }
 
     /** Stores the specified packet by position (area). */
-    private static void storeByArea(List<RegularStatement> batch, Instant timestamp, int mmsi, Position p, byte[] digest, String rawMessage) {
+    private void storeByArea(List<Statement> batch, Instant timestamp, int mmsi, Position p, byte[] digest, String rawMessage, byte[] encoded) {
         if (p == null) {
             // Okay we have no idea of the position of the ship. Store it in this table and process it later.
-            Insert i = QueryBuilder.insertInto(TABLE_PACKETS_AREA_UNKNOWN.toString());
-            i.value(COLUMN_MMSI.toString(), mmsi);
-            i.value(COLUMN_TIMEBLOCK.toString(), timeBlock(TABLE_PACKETS_AREA_UNKNOWN, timestamp));
-            i.value(COLUMN_TIMESTAMP.toString(), timestamp.toEpochMilli());
-            i.value(COLUMN_AISDATA_DIGEST.toString(), ByteBuffer.wrap(digest));
-            i.value(COLUMN_AISDATA.toString(), rawMessage);
-            batch.add(i);
+            batch.add(bindIndex(insertUnknown, timestamp, digest, rawMessage, encoded,
+                    mmsi, timeBlock(TABLE_PACKETS_AREA_UNKNOWN, timestamp)));
         } else {
             // Cells with size 1 degree
-            Insert i = QueryBuilder.insertInto(TABLE_PACKETS_AREA_CELL1.toString());
-            i.value(COLUMN_CELLID.toString(), p.getCellInt(1));
-            i.value(COLUMN_TIMEBLOCK.toString(), timeBlock(TABLE_PACKETS_AREA_CELL1, timestamp));
-            i.value(COLUMN_TIMESTAMP.toString(), timestamp.toEpochMilli());
-            i.value(COLUMN_AISDATA_DIGEST.toString(), ByteBuffer.wrap(digest));
-            i.value(COLUMN_AISDATA.toString(), rawMessage);
-            batch.add(i);
-
-            if (AisStoreSchema.TABLE_PACKETS_AREA_CELL10_ENABLED) {
+            int cell1 = p.getCellInt(1);
+            batch.add(bindIndex(insertCell1, timestamp, digest, rawMessage, encoded,
+                    cell1, timeBlock(TABLE_PACKETS_AREA_CELL1, timestamp)));
+            if (cellStatistics != null) {
+                cellStatistics.add(1, cell1, timestamp);
+            }
+
+            if (cell10Enabled) {
                 // Cells with size 10 degree
-                i = QueryBuilder.insertInto(TABLE_PACKETS_AREA_CELL10.toString());
-                i.value(COLUMN_CELLID.toString(), p.getCellInt(10));
-                i.value(COLUMN_TIMEBLOCK.toString(), timeBlock(TABLE_PACKETS_AREA_CELL10, timestamp));
-                i.value(COLUMN_TIMESTAMP.toString(), timestamp.toEpochMilli());
-                i.value(COLUMN_AISDATA_DIGEST.toString(), ByteBuffer.wrap(digest));
-                i.value(COLUMN_AISDATA.toString(), rawMessage);
-                batch.add(i);
+                int cell10 = p.getCellInt(10);
+                batch.add(bindIndex(insertCell10, timestamp, digest, rawMessage, encoded,
+                        cell10, timeBlock(TABLE_PACKETS_AREA_CELL10, timestamp)));
+                if (cellStatistics != null) {
+                    cellStatistics.add(10, cell10, timestamp);
+                }
+            }
+
+            if (cell01Enabled) {
+                // Cells with size 0.1 degree
+                batch.add(bindIndex(insertCell01, timestamp, digest, rawMessage, encoded,
+                        p.getCellInt(0.1), timeBlock(TABLE_PACKETS_AREA_CELL01, timestamp)));
             }
         }
     }
 
     /** Stores the specified packet by MMSI. */
-    private static void storeByMmsi(List<RegularStatement> batch, Instant timestamp, int mmsi, byte[] digest, String rawMessage) {
-        Insert i = QueryBuilder.insertInto(TABLE_PACKETS_MMSI.toString());
-        i.value(COLUMN_MMSI.toString(), mmsi);
-        i.value(COLUMN_TIMEBLOCK.toString(), timeBlock(TABLE_PACKETS_MMSI, timestamp));
-        i.value(COLUMN_TIMESTAMP.toString(), timestamp.toEpochMilli());
-        i.value(COLUMN_AISDATA_DIGEST.toString(), ByteBuffer.wrap(digest));
-        i.value(COLUMN_AISDATA.toString(), rawMessage);
-        batch.add(i);
+    private void storeByMmsi(List<Statement> batch, Instant timestamp, int mmsi, byte[] digest, String rawMessage, byte[] encoded) {
+        batch.add(bindIndex(insertMmsi, timestamp, digest, rawMessage, encoded,
+                mmsi, timeBlock(TABLE_PACKETS_MMSI, timestamp)));
+    }
+
+    /** Stores the specified packet by MMSI and message type. */
+    private void storeByMmsiType(List<Statement> batch, Instant timestamp, int mmsi, int messageType, byte[] digest, String rawMessage, byte[] encoded) {
+        batch.add(bindIndex(insertMmsiType, timestamp, digest, rawMessage, encoded,
+                mmsi, messageType, timeBlock(TABLE_PACKETS_MMSI_TYPE, timestamp)));
+    }
+
+    /** Stores the position of the specified packet, if it is a position message. */
+    private void storeTrack(List<Statement> batch, AisPacketEnvelope envelope) {
+        TrackPosition p = TrackPosition.from(envelope);
+        if (p != null) {
+            Instant timestamp = Instant.ofEpochMilli(p.getTimestamp());
+            batch.add(insertTrack.bind(p.getMmsi(), timeBlock(TABLE_PACKETS_TRACK, timestamp), Date.from(timestamp),
+                    digest(envelope.getDigest()), p.getLatitude(), p.getLongitude(), p.getSog(), p.getCog(),
+                    p.getHeading(), p.getPositionAccuracy(), p.getSourceTimestamp(), p.getSourceId(),
+                    p.getSourceBaseStation(), p.getSourceCountry(), p.getSourceType(), p.getSourceRegion()));
+        }
     }
 
     /** Stores the specified packet by time. */
-    private static void storeByTime(List<RegularStatement> batch, Instant timestamp, byte[] digest, String rawMessage) {
-        Insert i = QueryBuilder.insertInto(TABLE_PACKETS_TIME.toString());
-        i.value(COLUMN_TIMEBLOCK.toString(), timeBlock(TABLE_PACKETS_TIME, timestamp));
-        i.value(COLUMN_TIMESTAMP.toString(), timestamp.toEpochMilli());
-        i.value(COLUMN_AISDATA_DIGEST.toString(), ByteBuffer.wrap(digest));
-        i.value(COLUMN_AISDATA.toString(), rawMessage);
-        batch.add(i);
+    private void storeByTime(List<Statement> batch, Instant timestamp, byte[] digest, String rawMessage, byte[] encoded) {
+        batch.add(insertTime.bind(timeBlock(TABLE_PACKETS_TIME, timestamp),
+                Date.from(timestamp), digest(digest), aisData(rawMessage, encoded)));
+    }
+
+    /** Binds an insert into packets_mmsi or an area table, without the packet if only references are written. */
+    private Statement bindIndex(PreparedStatement insert, Instant timestamp, byte[] digest, String rawMessage,
+            byte[] encoded, Object... partitionKey) {
+        Object[] values = Arrays.copyOf(partitionKey, partitionKey.length + (referencesEnabled ? 2 : 3));
+        values[partitionKey.length] = Date.from(timestamp);
+        values[partitionKey.length + 1] = digest(digest);
+        if (!referencesEnabled) {
+            values[partitionKey.length + 2] = aisData(rawMessage, encoded);
+        }
+        return insert.bind(values);
+    }
+
+    /** Returns the value bound to the digest column. */
+    private Object digest(byte[] digest) {
+        return digest64 ? (Object) AisStoreSchema.digest64(digest) : ByteBuffer.wrap(digest);
+    }
+
+    /** Returns the value bound to the data column, the encoded message if aisdata_bin is written. */
+    private static Object aisData(String rawMessage, byte[] encoded) {
+        return encoded == null ? rawMessage : ByteBuffer.wrap(encoded);
     }
 
-    private Position getPosition(AisPacket packet) {
+    private Position getPosition(AisPacketEnvelope envelope) {
         Position p = null;
 
-        final AisMessage message = packet.tryGetAisMessage();
-        if (message != null) {
-            final int mmsi = message.getUserId();
-            final long timestamp = packet.getBestTimestamp();
+        if (envelope.getAisMessage() != null) {
+            final int mmsi = envelope.getMmsi();
+            final long timestamp = envelope.getTimestamp();
 
-            p = message.getValidPosition();
+            p = envelope.getPosition();
 
             if (p == null) { // Try to find an estimated position
                 // Use the last received position message unless the position has timed out (POSITION_TIMEOUT_MS)
-                p = tracker.asMap().getOrDefault(mmsi, null);
+                p = tracker.get(mmsi);
             } else { // Update the tracker with latest position
                 //but only update the tracker IF the new time is better
-                tracker.asMap().merge(mmsi, p.withTime(timestamp), (a, b) -> a.getTime() > b.getTime() ? a : b);
+                tracker.update(mmsi, p, timestamp);
             }
         }
 
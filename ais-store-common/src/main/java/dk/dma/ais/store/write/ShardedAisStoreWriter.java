@@ -0,0 +1,196 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.write;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.commons.service.AbstractBatchedStage;
+
+/**
+ * Spreads packets over a number of writer stages, each running in its own thread. Packets are assigned to a shard by
+ * the MMSI number of the vessel. So all packets from the same vessel are written by the same stage, which keeps the
+ * position tracking of each stage correct.
+ * <p>
+ * The MMSI number is read directly from the payload of the first sentence, so packets are not decoded on the thread
+ * offering them.
+ * <p>
+ * The shards share one metric registry, which is reported over JMX while the writer is running. Separate registries
+ * would register MBeans with the same names.
+ */
+public class ShardedAisStoreWriter extends AbstractIdleService {
+
+    /** The shards. */
+    private final List<AbstractBatchedStage<AisPacket>> shards;
+
+    /** The metrics shared by the shards. */
+    private final MetricRegistry metrics = new MetricRegistry();
+
+    /** Reports the metrics over JMX while running. */
+    private JmxReporter reporter;
+
+    /**
+     * Creates a new sharded writer, whose shards share a metric registry.
+     *
+     * @param numberOfShards
+     *            the number of shards
+     * @param shardFactory
+     *            creates the writer stage for a given shard index, reporting to the given registry
+     * @throws IllegalArgumentException
+     *             if the number of shards is not positive
+     */
+    public ShardedAisStoreWriter(int numberOfShards,
+            BiFunction<Integer, MetricRegistry, ? extends AbstractBatchedStage<AisPacket>> shardFactory) {
+        if (numberOfShards <= 0) {
+            throw new IllegalArgumentException("numberOfShards must be positive, was " + numberOfShards);
+        }
+        requireNonNull(shardFactory);
+        List<AbstractBatchedStage<AisPacket>> shards = new ArrayList<>(numberOfShards);
+        for (int i = 0; i < numberOfShards; i++) {
+            shards.add(requireNonNull(shardFactory.apply(i, metrics)));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Returns the shards of this writer.
+     *
+     * @return the shards of this writer
+     */
+    public List<AbstractBatchedStage<AisPacket>> getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns the total number of packets processed by all shards.
+     *
+     * @return the total number of packets processed by all shards
+     */
+    public long getNumberOfMessagesProcessed() {
+        long result = 0;
+        for (AbstractBatchedStage<AisPacket> s : shards) {
+            result += s.getNumberOfMessagesProcessed();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total number of packets waiting to be written by all shards.
+     *
+     * @return the total number of packets waiting to be written by all shards
+     */
+    public int getSize() {
+        int result = 0;
+        for (AbstractBatchedStage<AisPacket> s : shards) {
+            result += s.getSize();
+        }
+        return result;
+    }
+
+    /**
+     * Offers the specified packet to the input queue of its shard.
+     *
+     * @param packet
+     *            the packet to write
+     * @return true if the packet was accepted, false if the queue of the shard is full
+     */
+    public boolean offer(AisPacket packet) {
+        return shardOf(packet).getInputQueue().offer(packet);
+    }
+
+    /** Returns the shard the specified packet should be written by. */
+    AbstractBatchedStage<AisPacket> shardOf(AisPacket packet) {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        String message = packet.getStringMessage();
+        int mmsi = mmsi(message);
+        int hash = mmsi >= 0 ? mmsi : message.hashCode();
+        return shards.get(Math.floorMod(hash, shards.size()));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void startUp() throws Exception {
+        reporter = JmxReporter.forRegistry(metrics).inDomain(CassandraBatchedStagedWriter.METRICS_DOMAIN).build();
+        reporter.start();
+        for (AbstractBatchedStage<AisPacket> s : shards) {
+            s.startAsync();
+        }
+        for (AbstractBatchedStage<AisPacket> s : shards) {
+            s.awaitRunning();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void shutDown() throws Exception {
+        for (AbstractBatchedStage<AisPacket> s : shards) {
+            s.stopAsync();
+        }
+        for (AbstractBatchedStage<AisPacket> s : shards) {
+            s.awaitTerminated();
+        }
+        reporter.stop();
+    }
+
+    /**
+     * Extracts the MMSI number from the payload of the first AIVDM/AIVDO sentence of a raw packet. The MMSI number is
+     * located at bit 8-37 of every AIS message.
+     *
+     * @param message
+     *            the raw packet
+     * @return the MMSI number, or -1 if no sentence could be found
+     */
+    static int mmsi(String message) {
+        int i = message.indexOf('!');
+        while (i >= 0) {
+            // skip the 5 fields before the payload: !AIVDM,count,number,sequence,channel,payload
+            int p = i;
+            for (int commas = 0; commas < 5 && p >= 0; commas++) {
+                p = message.indexOf(',', p + 1);
+            }
+            if (p >= 0 && p + 7 < message.length()) {
+                long bits = 0;
+                boolean valid = true;
+                for (int j = p + 1; j <= p + 7; j++) {
+                    int c = message.charAt(j) - 48;
+                    if (c > 40) {
+                        c -= 8;
+                    }
+                    if (c < 0 || c > 63) {
+                        valid = false;
+                        break;
+                    }
+                    bits = bits << 6 | c;
+                }
+                if (valid) {
+                    return (int) (bits >>> 4 & 0x3FFFFFFF);
+                }
+            }
+            i = message.indexOf('!', i + 1);
+        }
+        return -1;
+    }
+}
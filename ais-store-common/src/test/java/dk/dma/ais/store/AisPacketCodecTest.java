@@ -0,0 +1,72 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class AisPacketCodecTest {
+
+    static final String[] MESSAGES = {
+            "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24",
+            "$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24",
+            "!AIVDM,2,1,1,A,55P5TL01VIaAL@7WKO@mBplU@<PDhh000000001S;AJ::4A80?4i@E53,0*3E\r\n"
+                    + "!AIVDM,2,2,1,A,1@0000000000000,2*55",
+            "\\s:ASM//Port=12,c:1362741600*1F\\!AIVDM,1,1,,B,177KQJ5000G?tO`K>RA1wUbN0TKH,0*5C",
+            "\\g:1-2-73874,n:157036,s:r003669945,c:1241544035*4A\\!AIVDM,1,1,,B,15N4cJ`005Jrek0H@9n`DW5608EP,0*13",
+            "!BSVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*00",
+            "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24\r\n",
+            "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24\n!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24",
+            "$PGHP,1,2013,03,13,10,39,18,375,219,,2190047,1,4a*57",
+            "\\c:0012*00\\",
+            "garbage",
+            "",
+            "\u00e6\u00f8\u00e5" };
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String message : MESSAGES) {
+            assertEquals(message, AisPacketCodec.decode(ByteBuffer.wrap(AisPacketCodec.encode(message))));
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            byte[] encoded = AisPacketCodec.encode(MESSAGES[i]);
+            assertEquals(AisPacketCodec.FORMAT_COMPACT, encoded[0]);
+            assertTrue(encoded.length < MESSAGES[i].length());
+        }
+        // the typical packet, with a proprietary timestamp sentence
+        assertEquals(58, AisPacketCodec.encode(MESSAGES[1]).length);
+    }
+
+    @Test
+    public void testRaw() throws Exception {
+        assertEquals(AisPacketCodec.FORMAT_RAW, AisPacketCodec.encode("garbage")[0]);
+        assertEquals(AisPacketCodec.FORMAT_RAW, AisPacketCodec.encode("\u00e6\u00f8\u00e5")[0]);
+    }
+
+    @Test
+    public void testDecodeDoesNotMovePosition() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(AisPacketCodec.encode(MESSAGES[0]));
+        AisPacketCodec.decode(buffer);
+        assertEquals(0, buffer.position());
+    }
+}
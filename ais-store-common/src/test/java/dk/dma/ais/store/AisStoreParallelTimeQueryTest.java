@@ -0,0 +1,113 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_TIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Test;
+
+import dk.dma.ais.store.AisStoreParallelTimeQuery.Chunk;
+
+public class AisStoreParallelTimeQueryTest {
+
+    @Test
+    public void testSplit() throws Exception {
+        // 10 minute time blocks, from the middle of one block to the middle of the 7th block after it
+        Instant start = Instant.parse("2015-03-06T05:05:00Z");
+        Instant stop = Instant.parse("2015-03-06T06:15:00Z");
+        List<Chunk> chunks = AisStoreParallelTimeQuery.split(start, stop, 3, 10);
+        assertEquals(3, chunks.size());
+
+        int first = AisStoreSchema.timeBlock(TABLE_PACKETS_TIME, start);
+        assertEquals(first, chunks.get(0).firstBlock);
+        assertEquals(first + 2, chunks.get(0).lastBlock);
+        assertEquals(start, chunks.get(0).from);
+        assertEquals(Instant.parse("2015-03-06T05:30:00Z"), chunks.get(0).to);
+
+        assertEquals(first + 3, chunks.get(1).firstBlock);
+        assertEquals(first + 5, chunks.get(1).lastBlock);
+        assertEquals(Instant.parse("2015-03-06T05:30:00Z"), chunks.get(1).from);
+        assertEquals(Instant.parse("2015-03-06T06:00:00Z"), chunks.get(1).to);
+
+        assertEquals(first + 6, chunks.get(2).firstBlock);
+        assertEquals(first + 7, chunks.get(2).lastBlock);
+        assertEquals(Instant.parse("2015-03-06T06:00:00Z"), chunks.get(2).from);
+        assertEquals(stop, chunks.get(2).to);
+    }
+
+    @Test
+    public void testSplitOrdered() throws Exception {
+        Instant start = Instant.parse("2015-03-06T05:05:00Z");
+        Instant stop = Instant.parse("2015-03-07T05:05:00Z");
+        for (int blocksPerChunk = 1; blocksPerChunk <= 200; blocksPerChunk += 7) {
+            List<Chunk> chunks = AisStoreParallelTimeQuery.split(start, stop, blocksPerChunk, 10);
+            assertEquals(start, chunks.get(0).from);
+            assertEquals(stop, chunks.get(chunks.size() - 1).to);
+            for (int i = 1; i < chunks.size(); i++) {
+                // consecutive and non-overlapping
+                assertEquals(chunks.get(i - 1).lastBlock + 1, chunks.get(i).firstBlock);
+                assertEquals(chunks.get(i - 1).to, chunks.get(i).from);
+                assertTrue(chunks.get(i).from.isBefore(chunks.get(i).to));
+            }
+        }
+    }
+
+    @Test
+    public void testSplitEndAtBlockBoundary() throws Exception {
+        // the stop time is exclusive, so the block starting at the stop time is not read
+        List<Chunk> chunks = AisStoreParallelTimeQuery.split(Instant.parse("2015-03-06T05:00:00Z"),
+                Instant.parse("2015-03-06T05:20:00Z"), 1, 10);
+        assertEquals(2, chunks.size());
+        assertEquals(chunks.get(0).firstBlock + 1, chunks.get(1).lastBlock);
+    }
+
+    @Test
+    public void testPutStopsWhenStopped() throws Exception {
+        Chunk c = new Chunk(0, 0, Instant.EPOCH, Instant.EPOCH.plusSeconds(1), 1);
+        assertTrue(c.put("first", () -> true));
+        // the queue is full
+        assertFalse(c.put("second", () -> true));
+    }
+
+    @Test
+    public void testTakeKeepsTimeColumn() throws Exception {
+        Chunk c = new Chunk(0, 0, Instant.EPOCH, Instant.EPOCH.plusSeconds(1), 2);
+        assertTrue(c.put(new AisStoreParallelTimeQuery.Row(null, 1234), () -> false));
+        assertTrue(c.put(AisStoreParallelTimeQuery.END, () -> false));
+        assertEquals(1234, c.take(() -> false).timestamp);
+        assertNull(c.take(() -> false));
+    }
+
+    @Test
+    public void testTakeReturnsNullWhenStopped() throws Exception {
+        Chunk c = new Chunk(0, 0, Instant.EPOCH, Instant.EPOCH.plusSeconds(1), 1);
+        assertNull(c.take(() -> true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTakeFailure() throws Exception {
+        Chunk c = new Chunk(0, 0, Instant.EPOCH, Instant.EPOCH.plusSeconds(1), 1);
+        c.failure = new RuntimeException();
+        c.put(AisStoreParallelTimeQuery.END, () -> false);
+        c.take(() -> false);
+    }
+}
@@ -2,10 +2,12 @@ package dk.dma.ais.store;
 
 import org.junit.Test;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class AisStoreSchemaTest {
 
@@ -35,4 +37,45 @@ public class AisStoreSchemaTest {
         for (int i=0; i<144; i++)
             assertEquals(1856448+i, timeBlocks[i].intValue());
     }
+
+    @Test
+    public void testTimeBlockStart() throws Exception {
+        assertEquals(Instant.EPOCH, AisStoreSchema.timeBlockStart(AisStoreSchema.Table.TABLE_PACKETS_TIME, 0));
+        assertEquals(Instant.parse("2005-04-19T00:00:00Z"), AisStoreSchema.timeBlockStart(AisStoreSchema.Table.TABLE_PACKETS_TIME, 1856448));
+        assertEquals(Instant.parse("2005-04-19T12:30:00Z"), AisStoreSchema.timeBlockStart(AisStoreSchema.Table.TABLE_PACKETS_TIME, 1856523));
+        assertEquals(1856523, AisStoreSchema.timeBlock(AisStoreSchema.Table.TABLE_PACKETS_TIME, AisStoreSchema.timeBlockStart(AisStoreSchema.Table.TABLE_PACKETS_TIME, 1856523)));
+        assertEquals(Instant.EPOCH.plus(30, ChronoUnit.DAYS), AisStoreSchema.timeBlockStart(AisStoreSchema.Table.TABLE_PACKETS_MMSI, 1));
+    }
+
+    @Test
+    public void testSetTimeBlockDuration() throws Exception {
+        try {
+            AisStoreSchema.setTimeBlockDuration(AisStoreSchema.Table.TABLE_PACKETS_MMSI, Duration.ofDays(1));
+            assertEquals(Duration.ofDays(1), AisStoreSchema.timeBlockDuration(AisStoreSchema.Table.TABLE_PACKETS_MMSI));
+            assertEquals(12892, AisStoreSchema.timeBlock(AisStoreSchema.Table.TABLE_PACKETS_MMSI, Instant.parse("2005-04-19T09:49:38Z")));
+            assertEquals(Instant.parse("2005-04-19T00:00:00Z"), AisStoreSchema.timeBlockStart(AisStoreSchema.Table.TABLE_PACKETS_MMSI, 12892));
+
+            // other tables are not affected
+            assertEquals(1856506, AisStoreSchema.timeBlock(AisStoreSchema.Table.TABLE_PACKETS_TIME, Instant.parse("2005-04-19T09:49:38Z")));
+        } finally {
+            AisStoreSchema.setTimeBlockDuration(AisStoreSchema.Table.TABLE_PACKETS_MMSI, AisStoreSchema.defaultTimeBlockDuration(AisStoreSchema.Table.TABLE_PACKETS_MMSI));
+        }
+        assertEquals(Duration.ofDays(30), AisStoreSchema.timeBlockDuration(AisStoreSchema.Table.TABLE_PACKETS_MMSI));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetTimeBlockDurationNotWholeSeconds() throws Exception {
+        AisStoreSchema.setTimeBlockDuration(AisStoreSchema.Table.TABLE_PACKETS_TIME, Duration.ofMillis(1500));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetTimeBlockDurationNoTimeBlocks() throws Exception {
+        AisStoreSchema.setTimeBlockDuration(AisStoreSchema.Table.TABLE_METADATA, Duration.ofDays(1));
+    }
+
+    @Test
+    public void testTableForName() throws Exception {
+        assertEquals(AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL1, AisStoreSchema.Table.forName("packets_area_cell1"));
+        assertNull(AisStoreSchema.Table.forName("packets_area_cell2"));
+    }
 }
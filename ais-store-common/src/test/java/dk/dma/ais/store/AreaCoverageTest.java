@@ -0,0 +1,122 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+
+public class AreaCoverageTest {
+
+    static int cell(double lat, double lon, double cellSize) {
+        return Position.create(lat, lon).getCellInt(cellSize);
+    }
+
+    @Test
+    public void testBoundingBox() throws Exception {
+        BoundingBox bb = BoundingBox.create(Position.create(54.5, 10.5), Position.create(56.5, 12.5),
+                CoordinateSystem.CARTESIAN);
+        AreaCoverage c = AreaCoverage.of(bb, 1);
+
+        // latitude 54 to 56 and longitude 10 to 12
+        List<Integer> expected = new ArrayList<>();
+        for (int lat = 54; lat <= 56; lat++) {
+            for (int lon = 10; lon <= 12; lon++) {
+                expected.add(cell(lat + 0.5, lon + 0.5, 1));
+            }
+        }
+        assertEquals(expected, c.getCellIds());
+
+        assertTrue(c.isInside(cell(55.5, 11.5, 1)));
+        assertFalse(c.isInside(cell(55.5, 10.5, 1)));
+        assertFalse(c.isInside(cell(54.5, 11.5, 1)));
+        assertFalse(c.isInside(cell(55.5, 12.5, 1)));
+        assertFalse(c.isInside(cell(56.5, 11.5, 1)));
+        assertFalse(c.isInside(cell(58.5, 11.5, 1)));
+    }
+
+    @Test
+    public void testBoundingBoxOnCellBoundaries() throws Exception {
+        BoundingBox bb = BoundingBox.create(Position.create(40, -10), Position.create(60, 20),
+                CoordinateSystem.CARTESIAN);
+        AreaCoverage c = AreaCoverage.of(bb, 10);
+
+        // cells only touching the edges are partial
+        assertEquals(4 * 5, c.size());
+        assertTrue(c.isInside(cell(45, 5, 10)));
+        assertTrue(c.isInside(cell(55, -5, 10)));
+        assertFalse(c.isInside(cell(65, 5, 10)));
+        assertFalse(c.isInside(cell(45, 25, 10)));
+        assertFalse(c.isInside(cell(35, -15, 10)));
+        assertFalse(c.isInside(cell(75, 5, 10)));
+    }
+
+    @Test
+    public void testBoundingBoxCell01() throws Exception {
+        // Port of Aarhus
+        BoundingBox bb = BoundingBox.create(Position.create(56.13, 10.19), Position.create(56.17, 10.26),
+                CoordinateSystem.CARTESIAN);
+        AreaCoverage c = AreaCoverage.of(bb, 0.1);
+
+        assertEquals(2, c.size());
+        assertFalse(c.isInside(cell(56.15, 10.15, 0.1)));
+        assertFalse(c.isInside(cell(56.15, 10.25, 0.1)));
+        assertEquals(2, AreaCoverage.maxSize(bb, 0.1));
+    }
+
+    static List<Position> polygon(double... latLon) {
+        List<Position> vertices = new ArrayList<>();
+        for (int i = 0; i < latLon.length; i += 2) {
+            vertices.add(Position.create(latLon[i], latLon[i + 1]));
+        }
+        return vertices;
+    }
+
+    @Test
+    public void testPolygon() throws Exception {
+        // a triangle below the line from (0, 10) to (10, 0)
+        List<Position> triangle = polygon(0, 0, 0, 10, 10, 0);
+        assertEquals(AreaCoverage.Coverage.INSIDE, AreaCoverage.coverage(triangle, 1, 1, 1));
+        assertEquals(AreaCoverage.Coverage.PARTIAL, AreaCoverage.coverage(triangle, 4, 5, 1));
+        // inside the bounding box of the triangle, but outside the triangle
+        assertEquals(AreaCoverage.Coverage.OUTSIDE, AreaCoverage.coverage(triangle, 8, 8, 1));
+        assertEquals(AreaCoverage.Coverage.OUTSIDE, AreaCoverage.coverage(triangle, 20, 20, 1));
+        // cells touching an edge are partial
+        assertEquals(AreaCoverage.Coverage.PARTIAL, AreaCoverage.coverage(triangle, 5, 5, 1));
+        assertEquals(AreaCoverage.Coverage.PARTIAL, AreaCoverage.coverage(triangle, -1, 3, 1));
+        // a polygon inside a single cell
+        assertEquals(AreaCoverage.Coverage.PARTIAL, AreaCoverage.coverage(polygon(0.2, 0.2, 0.2, 0.4, 0.4, 0.3), 0, 0, 1));
+    }
+
+    @Test
+    public void testConcavePolygon() throws Exception {
+        // a U shape from latitude 0 to 10 and longitude 0 to 9, with a notch from longitude 3 to 6 above latitude 3
+        List<Position> u = polygon(0, 0, 10, 0, 10, 3, 3, 3, 3, 6, 10, 6, 10, 9, 0, 9);
+        assertEquals(AreaCoverage.Coverage.INSIDE, AreaCoverage.coverage(u, 5, 1, 1));
+        assertEquals(AreaCoverage.Coverage.INSIDE, AreaCoverage.coverage(u, 1, 4, 1));
+        assertEquals(AreaCoverage.Coverage.OUTSIDE, AreaCoverage.coverage(u, 6, 4, 1));
+        assertEquals(AreaCoverage.Coverage.PARTIAL, AreaCoverage.coverage(u, 3, 4, 1));
+        assertEquals(AreaCoverage.Coverage.PARTIAL, AreaCoverage.coverage(u, 6, 2.5, 1));
+    }
+}
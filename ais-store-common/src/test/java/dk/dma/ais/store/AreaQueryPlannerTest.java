@@ -0,0 +1,166 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL1;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL10;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import dk.dma.ais.store.AisStoreSchema.Table;
+import dk.dma.ais.store.AreaCoverage.CoveredCell;
+import dk.dma.enav.model.geometry.Position;
+
+public class AreaQueryPlannerTest {
+
+    /** Creates a coverage of 1 degree cells, where cell id c belongs to the 10 degree cell c / 100. */
+    static AreaCoverage cells(int... ids) {
+        List<CoveredCell> cells = new ArrayList<>();
+        for (int id : ids) {
+            cells.add(new CoveredCell(id, id / 100, true));
+        }
+        return new AreaCoverage(1, cells);
+    }
+
+    @Test
+    public void testSparseUsesCell10() throws Exception {
+        AreaCoverage cells = cells(501, 502, 503, 504);
+        Map<Integer, Long> counts1 = new HashMap<>();
+        for (int c : cells.getCellIds()) {
+            counts1.put(c, 10L);
+        }
+        Map<Integer, Long> counts10 = Collections.singletonMap(5, 100L);
+
+        Map<Table, List<Integer>> plan = AreaQueryPlanner.plan(cells, new CellStatistics(counts1, counts10,
+                Collections.emptySet(), 1));
+        assertEquals(Collections.singletonMap(TABLE_PACKETS_AREA_CELL10, Arrays.asList(5)), plan);
+    }
+
+    @Test
+    public void testDenseUsesCell1() throws Exception {
+        AreaCoverage cells = cells(501, 502);
+        Map<Integer, Long> counts1 = new HashMap<>();
+        for (int c : cells.getCellIds()) {
+            counts1.put(c, 10000L);
+        }
+        // the 10 degree cell holds many packets outside of the area
+        Map<Integer, Long> counts10 = Collections.singletonMap(5, 1000000L);
+
+        Map<Table, List<Integer>> plan = AreaQueryPlanner.plan(cells, new CellStatistics(counts1, counts10,
+                Collections.emptySet(), 1));
+        assertEquals(Collections.singletonMap(TABLE_PACKETS_AREA_CELL1, Arrays.asList(501, 502)), plan);
+    }
+
+    @Test
+    public void testIncompleteCell10UsesCell1() throws Exception {
+        AreaCoverage cells = cells(501, 502, 503);
+        Map<Integer, Long> counts1 = Collections.singletonMap(501, 10L);
+
+        // packets_area_cell10 was not written during part of the interval
+        Map<Integer, Long> counts10 = Collections.singletonMap(5, 10L);
+        Map<Table, List<Integer>> plan = AreaQueryPlanner.plan(cells, new CellStatistics(counts1, counts10,
+                Collections.singleton(5), 1));
+        assertEquals(Collections.singletonMap(TABLE_PACKETS_AREA_CELL1, Arrays.asList(501, 502, 503)), plan);
+    }
+
+    @Test
+    public void testMixed() throws Exception {
+        // the area crosses two 10 degree cells, one dense and one sparse
+        AreaCoverage cells = cells(501, 502, 601, 602);
+        Map<Integer, Long> counts1 = new HashMap<>();
+        counts1.put(501, 50000L);
+        counts1.put(502, 50000L);
+        counts1.put(601, 5L);
+        Map<Integer, Long> counts10 = new HashMap<>();
+        counts10.put(5, 10000000L);
+        counts10.put(6, 500L);
+
+        Map<Table, List<Integer>> plan = AreaQueryPlanner.plan(cells, new CellStatistics(counts1, counts10,
+                Collections.emptySet(), 1));
+        assertEquals(Arrays.asList(501, 502), plan.get(TABLE_PACKETS_AREA_CELL1));
+        assertEquals(Arrays.asList(6), plan.get(TABLE_PACKETS_AREA_CELL10));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        CellStatistics statistics = new CellStatistics(Collections.singletonMap(1, 10L), Collections.emptyMap(),
+                Collections.emptySet(), 2.5);
+        assertFalse(statistics.isEmpty());
+        assertEquals(25, statistics.packets(1, 1));
+        assertEquals(0, statistics.packets(1, 2));
+        assertEquals(0, statistics.packets(10, 1));
+
+        Integer[] blocks = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        assertArrayEquals(blocks, CellStatistics.sample(blocks, 8));
+        assertArrayEquals(new Integer[] { 1, 3, 5, 7 }, CellStatistics.sample(blocks, 4));
+    }
+
+    static int cell(double lat, double lon, double cellSize) {
+        return Position.create(lat, lon).getCellInt(cellSize);
+    }
+
+    @Test
+    public void testCell10() throws Exception {
+        double[][] positions = { { 55.5, 11.5 }, { 0.5, 0.5 }, { -0.5, -0.5 }, { -89.5, -179.5 }, { 89.5, 179.5 },
+                { -33.9, 151.2 }, { 40.7, -74.0 } };
+        for (double[] p : positions) {
+            assertEquals(cell(p[0], p[1], 10), CellStatistics.cell10(cell(p[0], p[1], 1)));
+        }
+    }
+
+    @Test
+    public void testCompleteness() throws Exception {
+        int a = cell(55.5, 11.5, 1);
+        int b = cell(59.5, 19.5, 1); // same 10 degree cell as a
+        int c = cell(-33.5, 151.5, 1);
+        int a10 = cell(55.5, 11.5, 10);
+        int c10 = cell(-33.5, 151.5, 10);
+
+        Map<Integer, Map<Integer, Long>> cell1 = new HashMap<>();
+        Map<Integer, Map<Integer, Long>> cell10 = new HashMap<>();
+        cell1.computeIfAbsent(1, k -> new HashMap<>()).put(a, 10L);
+        cell1.computeIfAbsent(1, k -> new HashMap<>()).put(b, 5L);
+        cell1.computeIfAbsent(1, k -> new HashMap<>()).put(c, 7L);
+        cell10.computeIfAbsent(1, k -> new HashMap<>()).put(a10, 15L);
+        cell10.computeIfAbsent(1, k -> new HashMap<>()).put(c10, 7L);
+        // in block 2 the 10 degree cell holds more packets than a, but not all packets of a and b
+        cell1.computeIfAbsent(2, k -> new HashMap<>()).put(a, 10L);
+        cell1.computeIfAbsent(2, k -> new HashMap<>()).put(b, 10L);
+        cell10.computeIfAbsent(2, k -> new HashMap<>()).put(a10, 12L);
+
+        CellStatistics statistics = CellStatistics.of(cell1, cell10, 1);
+        assertFalse(statistics.isComplete(a10));
+        assertTrue(statistics.isComplete(c10));
+        assertEquals(20, statistics.packets(1, a));
+        assertEquals(15, statistics.packets(1, b));
+        assertEquals(27, statistics.packets(10, a10));
+
+        // only block 1
+        cell1.remove(2);
+        cell10.remove(2);
+        assertTrue(CellStatistics.of(cell1, cell10, 1).isComplete(a10));
+    }
+}
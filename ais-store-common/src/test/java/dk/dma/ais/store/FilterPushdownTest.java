@@ -0,0 +1,60 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class FilterPushdownTest {
+
+    @Test
+    public void testMmsi() throws Exception {
+        assertArrayEquals(new int[] { 219000001 }, FilterPushdown.analyze("m.mmsi = 219000001").getMmsi());
+        assertArrayEquals(new int[] { 219000001, 219000002 }, FilterPushdown.analyze("m.mmsi in (219000002, 219000001)").getMmsi());
+        assertArrayEquals(new int[] { 219000001, 219000002 }, FilterPushdown.analyze("m.mmsi @ 219000001..219000002").getMmsi());
+        assertNull(FilterPushdown.analyze("m.mmsi = 219000001").getMessageTypes());
+    }
+
+    @Test
+    public void testMessageTypes() throws Exception {
+        assertArrayEquals(new int[] { 1, 2, 3 }, FilterPushdown.analyze("m.id in (1..3)").getMessageTypes());
+        assertArrayEquals(new int[] { 5 }, FilterPushdown.analyze("m.id = 5").getMessageTypes());
+    }
+
+    @Test
+    public void testConjunction() throws Exception {
+        FilterPushdown p = FilterPushdown.analyze("(m.mmsi = 219000001 & s.country in (DNK, NOR)) & (m.id in (1,2,3) & m.id in (3,18))");
+        assertArrayEquals(new int[] { 219000001 }, p.getMmsi());
+        assertArrayEquals(new int[] { 3 }, p.getMessageTypes());
+
+        // no message type satisfies both
+        assertArrayEquals(new int[0], FilterPushdown.analyze("m.id = 1 & m.id = 2").getMessageTypes());
+    }
+
+    @Test
+    public void testNotPushedDown() throws Exception {
+        assertNull(FilterPushdown.analyze("m.mmsi = 219000001 | m.mmsi = 219000002").getMmsi());
+        assertNull(FilterPushdown.analyze("(m.mmsi = 219000001) | (m.mmsi = 219000002)").getMmsi());
+        assertNull(FilterPushdown.analyze("(m.mmsi = 219000001 | s.id = 'a') & s.country = DNK").getMmsi());
+        assertNull(FilterPushdown.analyze("m.mmsi != 219000001").getMmsi());
+        assertNull(FilterPushdown.analyze("m.mmsi > 219000001").getMmsi());
+        assertNull(FilterPushdown.analyze("m.id >= 5").getMessageTypes());
+        assertNull(FilterPushdown.analyze("m.mmsi in 200000000..299999999").getMmsi());
+        assertNull(FilterPushdown.analyze("s.id = 'm.id = 1 & (' | m.id = 2").getMessageTypes());
+        assertNull(FilterPushdown.analyze("s.country = DNK").getMmsi());
+    }
+}
@@ -0,0 +1,56 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+public class Murmur3Test {
+
+    @Test
+    public void testSameAsGuava() throws Exception {
+        Random r = new Random(1);
+        for (int length = 0; length < 200; length++) {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) (i % 3 == 0 ? r.nextInt(Character.MAX_VALUE) : 32 + r.nextInt(95));
+            }
+            String s = new String(chars);
+            HashCode expected = Hashing.murmur3_128().hashUnencodedChars(s);
+
+            byte[] actual = new byte[20];
+            Murmur3.hash128(s, actual, 2);
+            byte[] actual16 = new byte[16];
+            System.arraycopy(actual, 2, actual16, 0, 16);
+            assertArrayEquals(expected.asBytes(), actual16);
+            assertEquals(expected.asLong(), Murmur3.hash64(s));
+        }
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        String message = "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24";
+        byte[] expected = Hashing.murmur3_128().hashUnencodedChars(message).asBytes();
+        assertArrayEquals(expected, AisStoreSchema.digest(message));
+        assertEquals(Hashing.murmur3_128().hashUnencodedChars(message).asLong(), AisStoreSchema.digest64(expected));
+    }
+}
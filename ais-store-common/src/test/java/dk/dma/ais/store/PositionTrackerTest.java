@@ -0,0 +1,83 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.Position;
+
+public class PositionTrackerTest {
+
+    final AtomicLong now = new AtomicLong();
+
+    final PositionTracker tracker = new PositionTracker(20, TimeUnit.MINUTES, now::get);
+
+    @Test
+    public void testGet() throws Exception {
+        assertNull(tracker.get(219000001));
+        tracker.update(219000001, Position.create(55.5, 11.5), 1000);
+        assertEquals(Position.create(55.5, 11.5), tracker.get(219000001));
+        assertNull(tracker.get(219000002));
+    }
+
+    @Test
+    public void testNewestWins() throws Exception {
+        tracker.update(219000001, Position.create(55.5, 11.5), 2000);
+        tracker.update(219000001, Position.create(56.5, 12.5), 1000);
+        assertEquals(Position.create(55.5, 11.5), tracker.get(219000001));
+
+        tracker.update(219000001, Position.create(57.5, 13.5), 3000);
+        assertEquals(Position.create(57.5, 13.5), tracker.get(219000001));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        tracker.update(219000001, Position.create(55.5, 11.5), 2000);
+        now.addAndGet(TimeUnit.MINUTES.toNanos(19));
+        assertEquals(Position.create(55.5, 11.5), tracker.get(219000001));
+        now.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        assertNull(tracker.get(219000001));
+
+        // a timed out position is replaced even if it is newer
+        tracker.update(219000001, Position.create(56.5, 12.5), 1000);
+        assertEquals(Position.create(56.5, 12.5), tracker.get(219000001));
+    }
+
+    @Test
+    public void testMany() throws Exception {
+        for (int i = 0; i < 100000; i++) {
+            tracker.update(200000000 + i, Position.create(i % 90, i % 180), i);
+        }
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(Position.create(i % 90, i % 180), tracker.get(200000000 + i));
+        }
+
+        // timed out entries are purged when the table grows
+        now.addAndGet(TimeUnit.MINUTES.toNanos(21));
+        for (int i = 0; i < 100000; i++) {
+            tracker.update(300000000 + i, Position.create(i % 90, i % 180), i);
+        }
+        for (int i = 0; i < 100000; i++) {
+            assertNull(tracker.get(200000000 + i));
+            assertEquals(Position.create(i % 90, i % 180), tracker.get(300000000 + i));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.AbstractIterator;
+
+public class TimestampMergeIteratorTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertFalse(new TimestampMergeIterator<Long>(Collections.emptyList()).hasNext());
+        assertFalse(new TimestampMergeIterator<Long>(Arrays.asList(source(), source())).hasNext());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        TimestampMergeIterator<Long> it = new TimestampMergeIterator<>(Arrays.asList(source(1, 4, 7), source(),
+                source(2, 3, 9, 10), source(5)));
+        List<Long> result = new ArrayList<>();
+        it.forEachRemaining(result::add);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 7L, 9L, 10L), result);
+    }
+
+    @Test
+    public void testTiesInOrderOfSources() throws Exception {
+        TimestampMergeIterator<String> it = new TimestampMergeIterator<>(Arrays.asList(named("a", 1, 2), named("b",
+                1, 2), named("c", 1)));
+        List<String> result = new ArrayList<>();
+        it.forEachRemaining(result::add);
+        assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "b2"), result);
+    }
+
+    @Test
+    public void testManySources() throws Exception {
+        Random r = new Random(12345);
+        List<TimestampedIterator<Long>> sources = new ArrayList<>();
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            long[] times = new long[r.nextInt(20)];
+            for (int j = 0; j < times.length; j++) {
+                times[j] = r.nextInt(10000);
+                expected.add(times[j]);
+            }
+            Arrays.sort(times);
+            sources.add(source(times));
+        }
+        Collections.sort(expected);
+        List<Long> result = new ArrayList<>();
+        new TimestampMergeIterator<>(sources).forEachRemaining(result::add);
+        assertEquals(expected, result);
+    }
+
+    static TimestampedIterator<Long> source(long... times) {
+        return new TestSource<Long>(times) {
+            @Override
+            Long element(long time) {
+                return time;
+            }
+        };
+    }
+
+    static TimestampedIterator<String> named(String name, long... times) {
+        return new TestSource<String>(times) {
+            @Override
+            String element(long time) {
+                return name + time;
+            }
+        };
+    }
+
+    abstract static class TestSource<T> extends AbstractIterator<T> implements TimestampedIterator<T> {
+        final long[] times;
+
+        int index = -1;
+
+        TestSource(long[] times) {
+            this.times = times;
+        }
+
+        abstract T element(long time);
+
+        @Override
+        protected T computeNext() {
+            if (++index == times.length) {
+                return endOfData();
+            }
+            return element(times[index]);
+        }
+
+        @Override
+        public long peekTimestamp() {
+            return times[index];
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import dk.dma.ais.packet.AisPacket;
+
+public class TrackPositionTest {
+
+    @Test
+    public void testPositionMessage() throws Exception {
+        TrackPosition p = TrackPosition.from(AisPacketEnvelope.of(AisPacket.from("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+                + "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24")));
+        assertNotNull(p);
+        assertEquals(265547250, p.getMmsi());
+        assertEquals(1363171158375L, p.getTimestamp());
+        assertEquals(57.66035, p.getLatitude(), 0.00001);
+        assertEquals(11.83298, p.getLongitude(), 0.00001);
+        assertEquals(13.9f, p.getSog(), 0.001f);
+        assertEquals(40.4f, p.getCog(), 0.001f);
+        assertEquals(Integer.valueOf(41), p.getHeading());
+        assertEquals(0, p.getPositionAccuracy());
+        assertNotNull(p.getSourceTimestamp());
+    }
+
+    @Test
+    public void testStaticData() throws Exception {
+        assertNull(TrackPosition.from(AisPacketEnvelope.of(AisPacket.from("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+                + "!AIVDM,2,1,1,A,55P5TL01VIaAL@7WKO@mBplU@<PDhh000000001S;AJ::4A80?4i@E53,0*3E\r\n"
+                + "!AIVDM,2,2,1,A,1@0000000000000,2*55"))));
+    }
+}
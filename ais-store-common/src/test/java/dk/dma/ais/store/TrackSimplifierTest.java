@@ -0,0 +1,117 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.Position;
+
+public class TrackSimplifierTest {
+
+    /** A vessel sailing north at 0.001 degrees (~111 m) per minute, with a position every 10 seconds. */
+    static List<Position> straight(int minutes) {
+        List<Position> track = new ArrayList<>();
+        for (int i = 0; i < minutes * 6; i++) {
+            track.add(Position.create(55 + i / 6000d, 11));
+        }
+        return track;
+    }
+
+    static List<Position> simplify(TrackSimplifier s, List<Position> track) {
+        // the timestamp of a point is its index times 10 seconds
+        return s.simplify(track.iterator(), p -> track.indexOf(p) * 10000L, p -> p);
+    }
+
+    @Test
+    public void testNone() throws Exception {
+        List<Position> track = straight(10);
+        assertEquals(track, simplify(TrackSimplifier.NONE, track));
+    }
+
+    @Test
+    public void testBucket() throws Exception {
+        List<Position> track = straight(10);
+        List<Position> result = simplify(new TrackSimplifier(Duration.ofMinutes(1), 0, 0), track);
+        assertEquals(10, result.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(track.get(i * 6 + 5), result.get(i)); // the latest of each bucket
+        }
+    }
+
+    @Test
+    public void testBucketStreaming() throws Exception {
+        List<Position> track = straight(10);
+        Iterator<Position> iterator = track.iterator();
+        List<Integer> readWhenReceived = new ArrayList<>();
+        AtomicInteger read = new AtomicInteger();
+        Iterator<Position> counting = new Iterator<Position>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public Position next() {
+                read.incrementAndGet();
+                return iterator.next();
+            }
+        };
+        new TrackSimplifier(Duration.ofMinutes(1), 0, 0).simplify(counting, p -> track.indexOf(p) * 10000L, p -> p,
+                p -> readWhenReceived.add(read.get()));
+        // each point is received as soon as the first point of the next bucket is read
+        assertEquals(Arrays.asList(7, 13, 19, 25, 31, 37, 43, 49, 55, 60), readWhenReceived);
+    }
+
+    @Test
+    public void testDouglasPeucker() throws Exception {
+        List<Position> track = straight(10);
+        assertEquals(Arrays.asList(track.get(0), track.get(59)), simplify(new TrackSimplifier(null, 10, 0), track));
+
+        // a turn to the east is kept
+        Position corner = track.get(59);
+        for (int i = 1; i <= 60; i++) {
+            track.add(Position.create(corner.getLatitude(), 11 + i / 6000d));
+        }
+        assertEquals(Arrays.asList(track.get(0), corner, track.get(119)), simplify(new TrackSimplifier(null, 10, 0), track));
+    }
+
+    @Test
+    public void testDistance() throws Exception {
+        Position a = Position.create(55, 11);
+        Position b = Position.create(55, 12);
+        assertEquals(1111.95, TrackSimplifier.distance(Position.create(55.01, 11.5), a, b), 0.1);
+        assertEquals(0, TrackSimplifier.distance(Position.create(55, 11.5), a, b), 0.001);
+    }
+
+    @Test
+    public void testMaxPoints() throws Exception {
+        List<Position> track = straight(10);
+        assertEquals(Arrays.asList(track.get(0), track.get(29), track.get(59)), simplify(new TrackSimplifier(null, 0, 3), track));
+        assertEquals(Arrays.asList(track.get(59)), simplify(new TrackSimplifier(null, 0, 1), track));
+        assertEquals(track, simplify(new TrackSimplifier(null, 0, 100), track));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBucket() throws Exception {
+        new TrackSimplifier(Duration.ZERO, 0, 0);
+    }
+}
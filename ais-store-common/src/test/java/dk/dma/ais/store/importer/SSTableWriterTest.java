@@ -0,0 +1,56 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.importer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.junit.Test;
+
+public class SSTableWriterTest {
+
+    static final Pattern DIGEST_COLUMN = Pattern.compile("digest (\\w+),");
+
+    static List<SSTableWriter> writers() {
+        return Arrays.asList(new PacketsTimeSSTableWriter("out", "aisdata"), new PacketsMmsiSSTableWriter("out", "aisdata"),
+                new PacketsAreaCell1SSTableWriter("out", "aisdata"), new PacketsAreaCell10SSTableWriter("out", "aisdata"),
+                new PacketsAreaCell01SSTableWriter("out", "aisdata"), new PacketsAreaUnknownSSTableWriter("out", "aisdata"),
+                new PacketsTrackSSTableWriter("out", "aisdata"));
+    }
+
+    @Test
+    public void testSchemaDefinitionsParse() throws Exception {
+        for (SSTableWriter w : writers()) {
+            for (String digestType : Arrays.asList("blob", "bigint")) {
+                String ddl = w.schemaDefinition("aisdata", digestType);
+                assertNotNull(ddl, QueryProcessor.parseStatement(ddl));
+
+                Matcher m = DIGEST_COLUMN.matcher(ddl);
+                assertTrue(ddl, m.find());
+                assertEquals(ddl, digestType, m.group(1));
+                assertFalse(ddl, m.find());
+                assertTrue(ddl, ddl.startsWith("CREATE TABLE aisdata." + w.table() + " ("));
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.write;
+
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL1;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL10;
+import static dk.dma.ais.store.AisStoreSchema.Table.TABLE_PACKETS_AREA_CELL_STATS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Test;
+
+import dk.dma.ais.store.AisStoreSchema;
+
+public class CellStatisticsCollectorTest {
+
+    @Test
+    public void testCountsByCellStatsTimeBlock() throws Exception {
+        Instant t1 = Instant.parse("2005-04-19T09:49:38Z");
+        Instant t2 = Instant.parse("2005-04-19T13:10:00Z");
+        Duration duration = AisStoreSchema.timeBlockDuration(TABLE_PACKETS_AREA_CELL_STATS);
+        try {
+            AisStoreSchema.setTimeBlockDuration(TABLE_PACKETS_AREA_CELL_STATS, Duration.ofHours(1));
+            CellStatisticsCollector c = new CellStatisticsCollector();
+            assertTrue(c.isEmpty());
+            c.add(1, 100, t1);
+            c.add(1, 100, t1.plusSeconds(60));
+            c.add(1, 100, t2);
+            c.add(10, 7, t1);
+            assertFalse(c.isEmpty());
+
+            int block1 = AisStoreSchema.timeBlock(TABLE_PACKETS_AREA_CELL_STATS, t1);
+            int block2 = AisStoreSchema.timeBlock(TABLE_PACKETS_AREA_CELL_STATS, t2);
+            assertEquals(4, block2 - block1);
+            assertEquals(2, c.count(1, 100, block1));
+            assertEquals(1, c.count(1, 100, block2));
+            assertEquals(1, c.count(10, 7, block1));
+            assertEquals(0, c.count(10, 100, block1));
+
+            // not counted under the time blocks of the cell tables
+            assertEquals(0, c.count(1, 100, AisStoreSchema.timeBlock(TABLE_PACKETS_AREA_CELL1, t1)));
+            assertEquals(0, c.count(10, 7, AisStoreSchema.timeBlock(TABLE_PACKETS_AREA_CELL10, t1)));
+        } finally {
+            AisStoreSchema.setTimeBlockDuration(TABLE_PACKETS_AREA_CELL_STATS, duration);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.write;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ShardedAisStoreWriterTest {
+
+    @Test
+    public void testMmsi() throws Exception {
+        assertEquals(265547250, ShardedAisStoreWriter.mmsi("!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24"));
+        assertEquals(477553000, ShardedAisStoreWriter.mmsi("!AIVDM,1,1,,B,177KQJ5000G?tO`K>RA1wUbN0TKH,0*5C"));
+        assertEquals(369190000, ShardedAisStoreWriter.mmsi("!AIVDM,2,1,1,A,55P5TL01VIaAL@7WKO@mBplU@<PDhh000000001S;AJ::4A80?4i@E53,0*3E\r\n"
+                + "!AIVDM,2,2,1,A,1@0000000000000,2*55"));
+        assertEquals(265547250, ShardedAisStoreWriter.mmsi("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+                + "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24"));
+    }
+
+    @Test
+    public void testNoMmsi() throws Exception {
+        assertEquals(-1, ShardedAisStoreWriter.mmsi(""));
+        assertEquals(-1, ShardedAisStoreWriter.mmsi("!AIVDM,1,1,,A"));
+        assertEquals(-1, ShardedAisStoreWriter.mmsi("!AIVDM,1,1,,A,13u,0*24"));
+    }
+}
@@ -15,21 +15,33 @@
 package dk.dma.ais.store.repository;
 
 import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.store.AisPacketEnvelope;
 import dk.dma.ais.store.AisStoreQueryBuilder;
 import dk.dma.ais.store.AisStoreQueryResult;
+import dk.dma.ais.store.TrackPosition;
+import dk.dma.ais.store.TrackQuery;
+import dk.dma.ais.store.TrackSimplifier;
 import dk.dma.db.cassandra.CassandraConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 /**
@@ -40,12 +52,22 @@ import java.util.stream.StreamSupport;
 @Repository
 public class AisPastTrackRepository {
 
+    /** The types of the messages that may implement {@link IPositionMessage}. */
+    private static final int[] POSITION_MESSAGE_TYPES = { 1, 2, 3, 4, 9, 11, 18, 19, 21, 27 };
+
     private static final Logger LOG = LoggerFactory.getLogger(AisPastTrackRepository.class);
     { LOG.info("AisPastTrackRepository created.");  }
 
     @Inject
     private CassandraConnection cassandraConnection;
 
+    @Inject
+    private PastTrackCache pastTrackCache;
+
+    /** Whether to read only position messages from packets_mmsi_type instead of all messages from packets_mmsi. */
+    @Value("${dk.dma.ais.store.rest.mmsiTypeTable:false}")
+    private boolean mmsiTypeTable;
+
     /**
      * Query the database for packets from the supplied mmsi numbers and with transmission
      * timestamps at or after t0 and at or before t1.
@@ -59,23 +81,80 @@ public class AisPastTrackRepository {
      * @return
      */
     public List<IPositionMessage> findByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Instant t0, Instant t1, int mmsi) {
+        return findByMmsi(sourceFilterPredicate, t0, t1, mmsi, TrackSimplifier.NONE);
+    }
+
+    /**
+     * Query the database for packets from the supplied mmsi numbers and with transmission
+     * timestamps at or after t0 and before t1, and reduce the track with the supplied simplifier
+     * while it is read.
+     *
+     * @param sourceFilterPredicate
+     * @param t0
+     * @param t1
+     * @param mmsi
+     * @param simplifier
+     * @return
+     */
+    public List<IPositionMessage> findByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Instant t0, Instant t1, int mmsi, TrackSimplifier simplifier) {
+        List<IPositionMessage> pastPositionMessages = new ArrayList<>();
+        forEachByMmsi(sourceFilterPredicate, t0, t1, mmsi, simplifier, pastPositionMessages::add);
+        return pastPositionMessages;
+    }
+
+    /**
+     * Query the database for packets from the supplied mmsi numbers and with transmission
+     * timestamps at or after t0 and before t1, and pass the position messages to the sink
+     * while they are read. Nothing but the current page of the query result is kept in memory,
+     * unless the simplifier needs the whole track.
+     *
+     * If the sink throws an exception the query is cancelled.
+     *
+     * @param sourceFilterPredicate
+     * @param t0
+     * @param t1
+     * @param mmsi
+     * @param simplifier
+     * @param sink
+     */
+    public void forEachByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Instant t0, Instant t1, int mmsi, TrackSimplifier simplifier, Consumer<? super IPositionMessage> sink) {
+        // The part of the interval inside the hot window is read from memory, the rest from Cassandra
+        Instant cachedFrom = cachedFrom(pastTrackCache, t0, t1, mmsi);
 
-        AisStoreQueryBuilder query = AisStoreQueryBuilder
-            .forMmsi(mmsi)
-            .setInterval(t0, t1)
-            .setFetchSize(1000);
+        AisStoreQueryResult result = null;
+        Stream<AisPacket> packets = Stream.empty();
+        if (t0.isBefore(cachedFrom)) {
+            AisStoreQueryBuilder query = AisStoreQueryBuilder
+                .forMmsi(mmsi)
+                .setInterval(t0, cachedFrom)
+                .setFetchSize(1000);
 
-        AisStoreQueryResult result = cassandraConnection.execute(query);
+            if (mmsiTypeTable) {
+                query.setMessageTypes(POSITION_MESSAGE_TYPES);
+            }
 
-        List<IPositionMessage> pastPositionMessages = StreamSupport.stream(result.spliterator(), false)
-            .filter(packet -> sourceFilterPredicate.test(AisPacketSource.create(packet)))
-            .map(packet -> packet.tryGetAisMessage())
-            .filter(msg -> msg instanceof IPositionMessage)
-            .map(msg -> (IPositionMessage) msg)
-            .collect(Collectors.toList());
+            result = cassandraConnection.execute(query);
+            packets = StreamSupport.stream(result.spliterator(), false);
+        }
+        if (cachedFrom.isBefore(t1)) {
+            packets = Stream.concat(packets, pastTrackCache.find(mmsi, cachedFrom.toEpochMilli(), t1.toEpochMilli() - 1).stream());
+        }
 
-        return pastPositionMessages;
+        Iterator<AisPacket> positionPackets = packets
+            .filter(packet -> sourceFilterPredicate.test(AisPacketSource.create(packet)))
+            .filter(packet -> packet.tryGetAisMessage() instanceof IPositionMessage)
+            .iterator();
 
+        boolean completed = false;
+        try {
+            simplifier.simplify(positionPackets, AisPacket::getBestTimestamp, packet -> packet.tryGetAisMessage().getValidPosition(),
+                packet -> sink.accept((IPositionMessage) packet.tryGetAisMessage()));
+            completed = true;
+        } finally {
+            if (result != null && !completed) {
+                result.cancel(false);
+            }
+        }
     }
 
     /**
@@ -90,7 +169,94 @@ public class AisPastTrackRepository {
      * @return
      */
     public List<IPositionMessage> findByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Duration maxAge, int mmsi) {
-        return findByMmsi(sourceFilterPredicate, Instant.now().minus(maxAge), Instant.now(),  mmsi);
+        return findByMmsi(sourceFilterPredicate, maxAge, mmsi, TrackSimplifier.NONE);
+    }
+
+    /**
+     * Query the database for packets from the supplied mmsi number no older than maxAge, and
+     * reduce the track with the supplied simplifier.
+     *
+     * @param sourceFilterPredicate
+     * @param maxAge
+     * @param mmsi
+     * @param simplifier
+     * @return
+     */
+    public List<IPositionMessage> findByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Duration maxAge, int mmsi, TrackSimplifier simplifier) {
+        Instant now = Instant.now();
+        return findByMmsi(sourceFilterPredicate, now.minus(maxAge), now, mmsi, simplifier);
+    }
+
+    /**
+     * Query packets_track for the positions of the supplied mmsi number with timestamps at
+     * or after t0 and before t1. Unlike findByMmsi no packets are decoded.
+     *
+     * @param sourceFilterPredicate
+     * @param t0
+     * @param t1
+     * @param mmsi
+     * @param simplifier
+     * @return
+     */
+    public List<TrackPosition> findTrackByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Instant t0, Instant t1, int mmsi, TrackSimplifier simplifier) {
+        List<TrackPosition> track = new ArrayList<>();
+        forEachTrackByMmsi(sourceFilterPredicate, t0, t1, mmsi, simplifier, track::add);
+        return track;
+    }
+
+    /**
+     * Query packets_track for the positions of the supplied mmsi number with timestamps at
+     * or after t0 and before t1, and pass them to the sink while they are read.
+     *
+     * @param sourceFilterPredicate
+     * @param t0
+     * @param t1
+     * @param mmsi
+     * @param simplifier
+     * @param sink
+     */
+    public void forEachTrackByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Instant t0, Instant t1, int mmsi, TrackSimplifier simplifier, Consumer<? super TrackPosition> sink) {
+        Instant cachedFrom = cachedFrom(pastTrackCache, t0, t1, mmsi);
+
+        Stream<TrackPosition> positions = Stream.empty();
+        if (t0.isBefore(cachedFrom)) {
+            positions = StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                TrackQuery.iterate(cassandraConnection.getSession(), mmsi, t0, cachedFrom), Spliterator.ORDERED), false);
+        }
+        if (cachedFrom.isBefore(t1)) {
+            positions = Stream.concat(positions, pastTrackCache.find(mmsi, cachedFrom.toEpochMilli(), t1.toEpochMilli() - 1).stream()
+                .map(packet -> TrackPosition.from(AisPacketEnvelope.of(packet)))
+                .filter(Objects::nonNull));
+        }
+
+        Iterator<TrackPosition> track = positions
+            .filter(position -> sourceFilterPredicate.test(position.getSource()))
+            .iterator();
+
+        simplifier.simplify(track, TrackPosition::getTimestamp, TrackPosition::getPosition, sink);
+    }
+
+    /**
+     * Query packets_track for the positions of the supplied mmsi number no older than maxAge.
+     *
+     * @param sourceFilterPredicate
+     * @param maxAge
+     * @param mmsi
+     * @param simplifier
+     * @return
+     */
+    public List<TrackPosition> findTrackByMmsi(Predicate<AisPacketSource> sourceFilterPredicate, Duration maxAge, int mmsi, TrackSimplifier simplifier) {
+        Instant now = Instant.now();
+        return findTrackByMmsi(sourceFilterPredicate, now.minus(maxAge), now, mmsi, simplifier);
+    }
+
+    /** Returns the time from which the interval is read from the hot window cache, t1 if none of it is. */
+    static Instant cachedFrom(PastTrackCache pastTrackCache, Instant t0, Instant t1, int mmsi) {
+        long coveredFrom = pastTrackCache.coveredFrom(mmsi);
+        if (coveredFrom >= t1.toEpochMilli()) {
+            return t1;
+        }
+        return coveredFrom <= t0.toEpochMilli() ? t0 : Instant.ofEpochMilli(coveredFrom);
     }
 
 }
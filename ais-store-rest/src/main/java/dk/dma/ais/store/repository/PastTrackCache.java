@@ -0,0 +1,306 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.repository;
+
+import com.google.common.util.concurrent.Service;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds the position messages received within a recent window of time (the hot window) in memory, in a ring buffer
+ * per MMSI number. Past track requests that fall inside the window are answered from memory, and only the older part
+ * of a request is read from Cassandra.
+ *
+ * The cache is fed packets through {@link #accept(AisPacket)}, normally by an AIS reader of the live feed. It only
+ * knows all positions received after it was started, see {@link #coveredFrom(int)}. If more positions are received
+ * for a vessel than fit in its ring buffer, the oldest are dropped and the vessel is no longer covered by the cache
+ * for that part of the window.
+ */
+@ThreadSafe
+public class PastTrackCache implements Consumer<AisPacket> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PastTrackCache.class);
+
+    /** The duration for which positions are held. */
+    private final long windowMillis;
+
+    /** The maximum number of positions held per vessel. */
+    private final int capacity;
+
+    /** The source of the current time (millis since the epoch). */
+    private final LongSupplier clock;
+
+    /** The ring buffers, keyed by MMSI number. */
+    private final ConcurrentHashMap<Integer, Ring> rings = new ConcurrentHashMap<>();
+
+    /** Purges vessels that have not reported a position within the window. */
+    private ScheduledExecutorService purger;
+
+    /** The service feeding packets to the cache, stopped together with the cache, or null. */
+    private Service feed;
+
+    /** When the cache started receiving packets (millis since the epoch), or Long.MAX_VALUE if it is not started. */
+    private volatile long startedAt = Long.MAX_VALUE;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param window
+     *            the duration for which positions are held, the cache is disabled if it is zero
+     * @param capacity
+     *            the maximum number of positions held per vessel
+     */
+    public PastTrackCache(Duration window, int capacity) {
+        this(window, capacity, System::currentTimeMillis);
+    }
+
+    PastTrackCache(Duration window, int capacity, LongSupplier clock) {
+        if (window.isNegative()) {
+            throw new IllegalArgumentException("Window must not be negative, was " + window);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        this.windowMillis = window.toMillis();
+        this.capacity = capacity;
+        this.clock = requireNonNull(clock);
+    }
+
+    /**
+     * Returns whether the cache holds any positions, that is whether the window is not zero.
+     *
+     * @return whether the cache is enabled
+     */
+    public boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    /**
+     * Marks the cache as started, packets received from now on are held in memory. Should be called when the
+     * source of packets is started.
+     */
+    public synchronized void start() {
+        if (isEnabled() && purger == null) {
+            startedAt = clock.getAsLong();
+            purger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "PastTrackCache");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1000, windowMillis / 10);
+            purger.scheduleWithFixedDelay(this::purge, period, period, TimeUnit.MILLISECONDS);
+            LOG.info("Holding positions of the last " + Duration.ofMillis(windowMillis) + " in memory, at most " + capacity + " per vessel");
+        }
+    }
+
+    /**
+     * Marks the cache as started and starts the service feeding it packets, such as an AIS reader group. The service
+     * is stopped when the cache is stopped.
+     *
+     * @param feed
+     *            the service feeding packets to the cache
+     */
+    public synchronized void start(Service feed) {
+        start();
+        this.feed = requireNonNull(feed);
+        feed.startAsync();
+    }
+
+    /** Stops the service feeding the cache, if any, and stops purging the cache. */
+    public synchronized void stop() {
+        if (feed != null) {
+            feed.stopAsync();
+            feed = null;
+        }
+        if (purger != null) {
+            purger.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds the position message of the specified packet. Other messages, and packets without a timestamp or older
+     * than the window, are ignored.
+     *
+     * @param packet
+     *            the packet
+     */
+    @Override
+    public void accept(AisPacket packet) {
+        if (startedAt == Long.MAX_VALUE) {
+            return;
+        }
+        AisMessage message = packet.tryGetAisMessage();
+        long timestamp = packet.getBestTimestamp();
+        if (message instanceof IPositionMessage && timestamp > 0 && timestamp >= clock.getAsLong() - windowMillis) {
+            rings.compute(message.getUserId(), (mmsi, ring) -> {
+                if (ring == null) {
+                    ring = new Ring(Math.min(capacity, 16));
+                }
+                ring.add(timestamp, packet, capacity);
+                return ring;
+            });
+        }
+    }
+
+    /**
+     * Returns the time from which all positions of the specified vessel are held in memory. Positions at or after the
+     * returned time can be read with {@link #find(int, long, long)}, older positions must be read from Cassandra.
+     *
+     * @param mmsi
+     *            the MMSI number of the vessel
+     * @return the time from which the vessel is covered by the cache (millis since the epoch), or Long.MAX_VALUE if
+     *         the cache is not started
+     */
+    public long coveredFrom(int mmsi) {
+        long startedAt = this.startedAt;
+        if (startedAt == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        long from = Math.max(startedAt, clock.getAsLong() - windowMillis);
+        Ring ring = rings.get(mmsi);
+        return ring == null ? from : Math.max(from, ring.droppedUpTo() + 1);
+    }
+
+    /**
+     * Returns the packets of the position messages of the specified vessel with timestamps within the specified
+     * interval, in the order of time.
+     *
+     * @param mmsi
+     *            the MMSI number of the vessel
+     * @param from
+     *            the start of the interval (inclusive, millis since the epoch)
+     * @param to
+     *            the end of the interval (inclusive, millis since the epoch)
+     * @return the packets
+     */
+    public List<AisPacket> find(int mmsi, long from, long to) {
+        Ring ring = rings.get(mmsi);
+        return ring == null ? new ArrayList<>() : ring.find(from, to);
+    }
+
+    /** Removes positions that are older than the window, and vessels without any positions. */
+    void purge() {
+        long cutoff = clock.getAsLong() - windowMillis;
+        for (Integer mmsi : rings.keySet()) {
+            rings.computeIfPresent(mmsi, (k, ring) -> ring.purge(cutoff) ? null : ring);
+        }
+    }
+
+    /** The positions of a single vessel, ordered by timestamp. */
+    static final class Ring {
+
+        private long[] timestamps;
+
+        private AisPacket[] packets;
+
+        /** The index of the oldest entry. */
+        private int head;
+
+        private int size;
+
+        /** The newest timestamp dropped because the ring was full, or Long.MIN_VALUE. */
+        private long droppedUpTo = Long.MIN_VALUE;
+
+        Ring(int initialCapacity) {
+            timestamps = new long[initialCapacity];
+            packets = new AisPacket[initialCapacity];
+        }
+
+        synchronized void add(long timestamp, AisPacket packet, int capacity) {
+            if (size == packets.length) {
+                if (size < capacity) {
+                    grow(Math.min(capacity, size * 2));
+                } else if (timestamp <= timestamps[head]) {
+                    droppedUpTo = Math.max(droppedUpTo, timestamp);
+                    return;
+                } else {
+                    droppedUpTo = Math.max(droppedUpTo, timestamps[head]);
+                    packets[head] = null;
+                    head = (head + 1) % packets.length;
+                    size--;
+                }
+            }
+            // Packets mostly arrive in order, otherwise move newer entries one slot towards the tail
+            int i = size;
+            while (i > 0 && timestamps[index(i - 1)] > timestamp) {
+                timestamps[index(i)] = timestamps[index(i - 1)];
+                packets[index(i)] = packets[index(i - 1)];
+                i--;
+            }
+            timestamps[index(i)] = timestamp;
+            packets[index(i)] = packet;
+            size++;
+        }
+
+        synchronized List<AisPacket> find(long from, long to) {
+            List<AisPacket> result = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                long t = timestamps[index(i)];
+                if (t > to) {
+                    break;
+                } else if (t >= from) {
+                    result.add(packets[index(i)]);
+                }
+            }
+            return result;
+        }
+
+        synchronized long droppedUpTo() {
+            return droppedUpTo;
+        }
+
+        /** Removes entries older than the cutoff, returns true if the ring is empty afterwards. */
+        synchronized boolean purge(long cutoff) {
+            while (size > 0 && timestamps[head] < cutoff) {
+                packets[head] = null;
+                head = (head + 1) % packets.length;
+                size--;
+            }
+            return size == 0;
+        }
+
+        private int index(int i) {
+            return (head + i) % packets.length;
+        }
+
+        private void grow(int newCapacity) {
+            long[] newTimestamps = new long[newCapacity];
+            AisPacket[] newPackets = new AisPacket[newCapacity];
+            for (int i = 0; i < size; i++) {
+                newTimestamps[i] = timestamps[index(i)];
+                newPackets[i] = packets[index(i)];
+            }
+            timestamps = newTimestamps;
+            packets = newPackets;
+            head = 0;
+        }
+    }
+}
@@ -15,6 +15,10 @@
 package dk.dma.ais.store.rest;
 
 import com.google.common.util.concurrent.Service;
+import dk.dma.ais.reader.AisReaderGroup;
+import dk.dma.ais.reader.AisReaders;
+import dk.dma.ais.store.AisStoreSchema;
+import dk.dma.ais.store.repository.PastTrackCache;
 import dk.dma.db.cassandra.CassandraConnection;
 import dk.dma.db.cassandra.PasswordProtectedCassandraConnection;
 import org.slf4j.Logger;
@@ -23,7 +27,10 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
@@ -50,6 +57,18 @@ public class BeanConfiguration {
     @Value("${dk.dma.ais.store.rest.cassandra.password}")
     private String cassandraPassword;
 
+    /** The duration of the hot window of past tracks held in memory (ISO-8601). Zero to disable. */
+    @Value("${dk.dma.ais.store.rest.hotWindow:PT0S}")
+    private String hotWindow;
+
+    /** The maximum number of positions held in memory per vessel. */
+    @Value("${dk.dma.ais.store.rest.hotWindow.capacity:4096}")
+    private int hotWindowCapacity;
+
+    /** The AIS sources (host:port) feeding the hot window, comma separated. */
+    @Value("${dk.dma.ais.store.rest.hotWindow.sources:}")
+    private String hotWindowSources;
+
     @Bean
     public CassandraConnection provideCassandraConnection() {
         CassandraConnection cassandraConnection = null;
@@ -64,6 +83,7 @@ public class BeanConfiguration {
 
             cassandraConnection.startAsync();
             cassandraConnection.awaitRunning();
+            AisStoreSchema.loadTimeBlockDurations(cassandraConnection.getSession());
 
             LOG.info("Connected to Cassandra cluster: \"" + cassandraConnection.getSession().getCluster().getClusterName() + "\" using " + cassandraConnection.getClass().getSimpleName());
         } catch (Exception e) {
@@ -75,4 +95,19 @@ public class BeanConfiguration {
         return cassandraConnection;
     }
 
+    @Bean(destroyMethod = "stop")
+    public PastTrackCache providePastTrackCache() {
+        PastTrackCache cache = new PastTrackCache(Duration.parse(hotWindow), hotWindowCapacity);
+        List<String> sources = Arrays.stream(hotWindowSources.split(",")).map(String::trim).filter(source -> !isBlank(source)).collect(Collectors.toList());
+        if (cache.isEnabled() && !sources.isEmpty()) {
+            AisReaderGroup g = AisReaders.createGroup("AisStoreRestHotWindow", sources);
+            g.stream().subscribe(cache);
+            cache.start(g.asService());
+            LOG.info("Feeding past track cache from " + sources);
+        } else if (cache.isEnabled()) {
+            LOG.warn("No sources for the past track cache, all past tracks are read from Cassandra");
+        }
+        return cache;
+    }
+
 }
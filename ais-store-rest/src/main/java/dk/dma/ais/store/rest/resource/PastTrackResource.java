@@ -15,13 +15,17 @@
 
 package dk.dma.ais.store.rest.resource;
 
-import dk.dma.ais.message.IPositionMessage;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import dk.dma.ais.packet.AisPacketSource;
 import dk.dma.ais.packet.AisPacketSourceFilters;
+import dk.dma.ais.store.TrackSimplifier;
 import dk.dma.ais.store.repository.AisPastTrackRepository;
 import dk.dma.ais.store.rest.resource.exceptions.CannotParseFilterExpressionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -30,10 +34,15 @@ import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -50,6 +59,13 @@ public class PastTrackResource {
     @Inject
     private AisPastTrackRepository pastTrackRepository;
 
+    @Inject
+    private ObjectMapper objectMapper;
+
+    /** Whether past tracks are read from packets_track instead of decoding the packets of packets_mmsi. */
+    @Value("${dk.dma.ais.store.rest.trackTable:false}")
+    private boolean trackTable;
+
     @PostConstruct
     private void init() {
     }
@@ -78,15 +94,80 @@ public class PastTrackResource {
 
 
     /**
+     * Show the past track of a vessel.
+     *
+     * Example URL:
+     * - http://localhost:8080/pastTrack/219000001?duration=PT24H&bucket=PT1M&tolerance=25&maxPoints=1000
+     *
+     * @param mmsi
+     * @param sourceFilterExpression
+     * @param iso8601Duration
+     * @param iso8601Bucket keep only the latest position in each time bucket of this duration
+     * @param tolerance simplify the track with the Douglas-Peucker algorithm within this tolerance in metres
+     * @param maxPoints return at most this number of evenly spaced positions
+     * @return
      */
     @RequestMapping(value = "/pastTrack/{mmsi}", produces = MediaType.APPLICATION_JSON_VALUE)
-    List<IPositionMessage> track(@PathVariable int mmsi, @RequestParam(value = "sourceFilter", required = false) String sourceFilterExpression, @RequestParam(value = "duration", required = true) String iso8601Duration) {
+    List<?> track(@PathVariable int mmsi, @RequestParam(value = "sourceFilter", required = false) String sourceFilterExpression, @RequestParam(value = "duration", required = true) String iso8601Duration,
+                  @RequestParam(value = "bucket", required = false) String iso8601Bucket, @RequestParam(value = "tolerance", defaultValue = "0") double tolerance, @RequestParam(value = "maxPoints", defaultValue = "0") int maxPoints) {
         Objects.requireNonNull(iso8601Duration);
-        List<IPositionMessage> pastTrack = pastTrackRepository.findByMmsi(createSourceFilterPredicate(sourceFilterExpression), Duration.parse(iso8601Duration), mmsi);
+        Predicate<AisPacketSource> sourceFilter = createSourceFilterPredicate(sourceFilterExpression);
+        TrackSimplifier simplifier = createSimplifier(iso8601Bucket, tolerance, maxPoints);
+        List<?> pastTrack = trackTable
+            ? pastTrackRepository.findTrackByMmsi(sourceFilter, Duration.parse(iso8601Duration), mmsi, simplifier)
+            : pastTrackRepository.findByMmsi(sourceFilter, Duration.parse(iso8601Duration), mmsi, simplifier);
         LOG.debug("Found " + pastTrack.size() + " past track entries for MMSI " + mmsi);
         return pastTrack;
     }
 
+    /**
+     * Show the past track of a vessel like /pastTrack/{mmsi}, but write the JSON array while
+     * the track is read instead of collecting it first. Memory use does not grow with the
+     * duration, and the first positions are sent before the last are read.
+     *
+     * Example URL:
+     * - http://localhost:8080/pastTrack/219000001/stream?duration=PT999H
+     *
+     * @param mmsi
+     * @param sourceFilterExpression
+     * @param iso8601Duration
+     * @param iso8601Bucket
+     * @param tolerance
+     * @param maxPoints
+     * @param response
+     * @throws IOException
+     */
+    @RequestMapping(value = "/pastTrack/{mmsi}/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    void streamTrack(@PathVariable int mmsi, @RequestParam(value = "sourceFilter", required = false) String sourceFilterExpression, @RequestParam(value = "duration", required = true) String iso8601Duration,
+                     @RequestParam(value = "bucket", required = false) String iso8601Bucket, @RequestParam(value = "tolerance", defaultValue = "0") double tolerance, @RequestParam(value = "maxPoints", defaultValue = "0") int maxPoints,
+                     HttpServletResponse response) throws IOException {
+        Objects.requireNonNull(iso8601Duration);
+        Predicate<AisPacketSource> sourceFilter = createSourceFilterPredicate(sourceFilterExpression);
+        TrackSimplifier simplifier = createSimplifier(iso8601Bucket, tolerance, maxPoints);
+        Instant t1 = Instant.now();
+        Instant t0 = t1.minus(Duration.parse(iso8601Duration));
+
+        // Nothing is written before the first position is read, so a failing query still gets an error response
+        try (JsonArrayWriter writer = new JsonArrayWriter(objectMapper, response)) {
+            try {
+                if (trackTable) {
+                    pastTrackRepository.forEachTrackByMmsi(sourceFilter, t0, t1, mmsi, simplifier, writer);
+                } else {
+                    pastTrackRepository.forEachByMmsi(sourceFilter, t0, t1, mmsi, simplifier, writer);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause(); // most likely the client went away
+            }
+            writer.finish();
+            LOG.debug("Streamed " + writer.count + " past track entries for MMSI " + mmsi);
+        }
+    }
+
+    /** Create a TrackSimplifier out of the user supplied parameters */
+    static TrackSimplifier createSimplifier(String iso8601Bucket, double tolerance, int maxPoints) {
+        return new TrackSimplifier(isBlank(iso8601Bucket) ? null : Duration.parse(iso8601Bucket), tolerance, maxPoints);
+    }
+
     /** Create a Predicate<AisPacketSource> out of a user supplied expression string */
     static Predicate<AisPacketSource> createSourceFilterPredicate(String sourceFilterExpression) {
         Predicate<AisPacketSource> sourceFilter;
@@ -104,4 +185,60 @@ public class PastTrackResource {
         return sourceFilter;
     }
 
+    /**
+     * Writes the elements of a JSON array to the response. The response is not committed until the first element, or
+     * the end of an empty array, is written. If the array is not finished it is left unterminated, so the client can
+     * tell that the response is incomplete.
+     */
+    private static final class JsonArrayWriter implements Consumer<Object>, Closeable {
+
+        private final ObjectMapper objectMapper;
+
+        private final HttpServletResponse response;
+
+        private JsonGenerator jg;
+
+        long count;
+
+        JsonArrayWriter(ObjectMapper objectMapper, HttpServletResponse response) {
+            this.objectMapper = objectMapper;
+            this.response = response;
+        }
+
+        @Override
+        public void accept(Object element) {
+            try {
+                start();
+                jg.writeObject(element);
+                count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /** Ends the array. */
+        void finish() throws IOException {
+            start();
+            jg.writeEndArray();
+        }
+
+        private void start() throws IOException {
+            if (jg == null) {
+                response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+                jg = objectMapper.getFactory().createGenerator(response.getOutputStream());
+                jg.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                if (objectMapper.isEnabled(SerializationFeature.INDENT_OUTPUT)) {
+                    jg.useDefaultPrettyPrinter();
+                }
+                jg.writeStartArray();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (jg != null) {
+                jg.close();
+            }
+        }
+    }
 }
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import dk.dma.ais.message.IVesselPositionMessage;
 import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.store.TrackPosition;
 import dk.dma.enav.model.geometry.Position;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
@@ -22,6 +23,7 @@ public class CustomJacksonMapper extends ObjectMapper {
         module.addSerializer(AisPacketSource.class, new AisPacketSourceSerializer());
        // module.addSerializer(AisMessage18.class, new IPositionMessageSerializer());
         module.addSerializer(IVesselPositionMessage.class, new IVesselPositionMessageSerializer());
+        module.addSerializer(TrackPosition.class, new TrackPositionSerializer());
         module.addSerializer(Position.class, new PositionSerializer());
         module.addSerializer(Date.class, new DateSerializer());
         this.registerModule(module);
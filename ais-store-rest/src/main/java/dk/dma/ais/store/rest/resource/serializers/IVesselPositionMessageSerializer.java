@@ -18,8 +18,6 @@ public class IVesselPositionMessageSerializer extends JsonSerializer<IVesselPosi
 
     @Override
     public void serialize(IVesselPositionMessage pos, JsonGenerator jg, SerializerProvider serializerProvider) throws IOException, JsonProcessingException {
-        jg.useDefaultPrettyPrinter();
-
         jg.writeStartObject();
 
         if (pos instanceof AisMessage) {
@@ -0,0 +1,40 @@
+package dk.dma.ais.store.rest.resource.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import dk.dma.ais.store.TrackPosition;
+
+import java.io.IOException;
+
+/**
+ * Writes a position read from packets_track in the same format as IVesselPositionMessageSerializer.
+ */
+public class TrackPositionSerializer extends JsonSerializer<TrackPosition> {
+
+    @Override
+    public void serialize(TrackPosition pos, JsonGenerator jg, SerializerProvider serializerProvider) throws IOException, JsonProcessingException {
+        jg.writeStartObject();
+
+        if (pos.getSourceTimestamp() != null)
+            jg.writeObjectField("src.clk", pos.getSourceTimestamp());
+        if (pos.getSourceBaseStation() != null)
+            jg.writeObjectField("src.id", pos.getSourceBaseStation());
+        if (pos.getSourceRegion() != null)
+            jg.writeObjectField("src.reg", pos.getSourceRegion());
+        if (pos.getSourceCountry() != null)
+            jg.writeObjectField("src.cty", pos.getSourceCountry());
+
+        jg.writeObjectField("lat", pos.getLatitude());
+        jg.writeObjectField("lon", pos.getLongitude());
+        jg.writeObjectField("acc", pos.getPositionAccuracy());
+        if (pos.getHeading() != null)
+            jg.writeObjectField("hdg", pos.getHeading());
+        if (pos.getSog() != null)
+            jg.writeObjectField("sog", pos.getSog());
+        if (pos.getCog() != null)
+            jg.writeObjectField("cog", pos.getCog());
+        jg.writeEndObject();
+    }
+}
@@ -0,0 +1,98 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.repository;
+
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.store.TrackSimplifier;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static dk.dma.ais.store.repository.PastTrackCacheTest.MMSI1;
+import static dk.dma.ais.store.repository.PastTrackCacheTest.T;
+import static dk.dma.ais.store.repository.PastTrackCacheTest.VDM1;
+import static dk.dma.ais.store.repository.PastTrackCacheTest.packet;
+import static org.junit.Assert.assertEquals;
+
+public class AisPastTrackRepositoryTest {
+
+    final AtomicLong now = new AtomicLong(T);
+
+    PastTrackCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new PastTrackCache(Duration.ofHours(1), 4, now::get);
+    }
+
+    static Instant at(long millis) {
+        return Instant.ofEpochMilli(millis);
+    }
+
+    @Test
+    public void testCachedFromNotStarted() throws Exception {
+        // everything is read from Cassandra
+        assertEquals(at(T + 2000), AisPastTrackRepository.cachedFrom(cache, at(T - 2000), at(T + 2000), MMSI1));
+    }
+
+    @Test
+    public void testCachedFrom() throws Exception {
+        cache.start();
+        now.set(T + 10000);
+
+        // the part before the cache was started is read from Cassandra
+        assertEquals(at(T), AisPastTrackRepository.cachedFrom(cache, at(T - 2000), at(T + 2000), MMSI1));
+        // only from the cache
+        assertEquals(at(T + 1000), AisPastTrackRepository.cachedFrom(cache, at(T + 1000), at(T + 2000), MMSI1));
+        assertEquals(at(T), AisPastTrackRepository.cachedFrom(cache, at(T), at(T + 2000), MMSI1));
+        // only from Cassandra
+        assertEquals(at(T - 1000), AisPastTrackRepository.cachedFrom(cache, at(T - 2000), at(T - 1000), MMSI1));
+        assertEquals(at(T), AisPastTrackRepository.cachedFrom(cache, at(T - 2000), at(T), MMSI1));
+    }
+
+    @Test
+    public void testCachedFromAfterOverflow() throws Exception {
+        cache.start();
+        now.set(T + 10000);
+        for (int i = 1; i <= 5; i++) {
+            cache.accept(packet(VDM1, T + i * 1000));
+        }
+        // the oldest position was dropped, so it must be read from Cassandra
+        assertEquals(at(T + 1001), AisPastTrackRepository.cachedFrom(cache, at(T), at(T + 6000), MMSI1));
+    }
+
+    @Test
+    public void testFindFromCacheOnly() throws Exception {
+        cache.start();
+        now.set(T + 10000);
+        for (int i = 1; i <= 3; i++) {
+            cache.accept(packet(VDM1, T + i * 1000));
+        }
+
+        // no connection to Cassandra, which must not be used
+        AisPastTrackRepository repository = new AisPastTrackRepository();
+        ReflectionTestUtils.setField(repository, "pastTrackCache", cache);
+
+        List<IPositionMessage> positions = new ArrayList<>();
+        repository.forEachByMmsi(source -> true, at(T), at(T + 3000), MMSI1, TrackSimplifier.NONE, positions::add);
+        assertEquals(2, positions.size());
+    }
+}
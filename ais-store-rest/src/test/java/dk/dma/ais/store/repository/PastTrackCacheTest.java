@@ -0,0 +1,178 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.store.repository;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Service;
+import dk.dma.ais.packet.AisPacket;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoField;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PastTrackCacheTest {
+
+    /** A position report of MMSI 265547250. */
+    static final String VDM1 = "!AIVDM,1,1,,A,13u?etPv2;0n:dDPwUM1U1Cb069D,0*24";
+
+    static final int MMSI1 = 265547250;
+
+    /** A position report of MMSI 477553000. */
+    static final String VDM2 = "!AIVDM,1,1,,B,177KQJ5000G?tO`K>RA1wUbN0TKH,0*5C";
+
+    static final int MMSI2 = 477553000;
+
+    static final long T = Instant.parse("2015-04-01T12:00:00Z").toEpochMilli();
+
+    final AtomicLong now = new AtomicLong(T);
+
+    PastTrackCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new PastTrackCache(Duration.ofHours(1), 4, now::get);
+    }
+
+    /** Creates a packet with the specified sentence, timestamped by a proprietary GHP sentence. */
+    static AisPacket packet(String vdm, long timestamp) {
+        ZonedDateTime t = Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC);
+        String ghp = String.format("PGHP,1,%d,%d,%d,%d,%d,%d,%d,219,,2190047,1,4A", t.getYear(), t.getMonthValue(),
+                t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond(), t.get(ChronoField.MILLI_OF_SECOND));
+        int checksum = 0;
+        for (char c : ghp.toCharArray()) {
+            checksum ^= c;
+        }
+        return AisPacket.from(String.format("$%s*%02X\r\n%s", ghp, checksum, vdm));
+    }
+
+    static List<Long> timestamps(List<AisPacket> packets) {
+        return packets.stream().map(AisPacket::getBestTimestamp).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testPacketTimestamp() throws Exception {
+        assertEquals(T + 1234, packet(VDM1, T + 1234).getBestTimestamp());
+    }
+
+    @Test
+    public void testNotStarted() throws Exception {
+        cache.accept(packet(VDM1, T));
+        assertEquals(Long.MAX_VALUE, cache.coveredFrom(MMSI1));
+        assertTrue(cache.find(MMSI1, 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        cache = new PastTrackCache(Duration.ZERO, 4, now::get);
+        assertFalse(cache.isEnabled());
+        cache.start();
+        cache.accept(packet(VDM1, T));
+        assertEquals(Long.MAX_VALUE, cache.coveredFrom(MMSI1));
+        assertTrue(cache.find(MMSI1, 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        cache.start();
+        now.set(T + 10000);
+        cache.accept(packet(VDM1, T + 3000));
+        cache.accept(packet(VDM1, T + 1000));
+        cache.accept(packet(VDM2, T + 1500));
+        cache.accept(packet(VDM1, T + 2000));
+        assertEquals(Arrays.asList(T + 1000, T + 2000, T + 3000), timestamps(cache.find(MMSI1, 0, Long.MAX_VALUE)));
+        assertEquals(Arrays.asList(T + 2000), timestamps(cache.find(MMSI1, T + 1001, T + 2999)));
+        assertEquals(Arrays.asList(T + 1500), timestamps(cache.find(MMSI2, 0, Long.MAX_VALUE)));
+        assertEquals(T, cache.coveredFrom(MMSI1));
+    }
+
+    @Test
+    public void testOverflowAdvancesCoveredFrom() throws Exception {
+        cache.start();
+        now.set(T + 10000);
+        for (int i = 1; i <= 6; i++) {
+            cache.accept(packet(VDM1, T + i * 1000));
+        }
+        assertEquals(Arrays.asList(T + 3000, T + 4000, T + 5000, T + 6000), timestamps(cache.find(MMSI1, 0, Long.MAX_VALUE)));
+        assertEquals(T + 2001, cache.coveredFrom(MMSI1));
+
+        // older than all positions held, dropped
+        cache.accept(packet(VDM1, T + 2500));
+        assertEquals(T + 2501, cache.coveredFrom(MMSI1));
+        assertEquals(Arrays.asList(T + 3000, T + 4000, T + 5000, T + 6000), timestamps(cache.find(MMSI1, 0, Long.MAX_VALUE)));
+
+        // out of order but newer than the oldest position
+        cache.accept(packet(VDM1, T + 4500));
+        assertEquals(T + 3001, cache.coveredFrom(MMSI1));
+        assertEquals(Arrays.asList(T + 4000, T + 4500, T + 5000, T + 6000), timestamps(cache.find(MMSI1, 0, Long.MAX_VALUE)));
+
+        // other vessels are not affected
+        assertEquals(T, cache.coveredFrom(MMSI2));
+    }
+
+    @Test
+    public void testWindowAdvancesCoveredFrom() throws Exception {
+        cache.start();
+        now.set(T + Duration.ofHours(2).toMillis());
+        assertEquals(T + Duration.ofHours(1).toMillis(), cache.coveredFrom(MMSI1));
+
+        // older than the window
+        cache.accept(packet(VDM1, T + 1000));
+        assertTrue(cache.find(MMSI1, 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        cache.start();
+        now.set(T + 3000);
+        cache.accept(packet(VDM1, T + 1000));
+        cache.accept(packet(VDM1, T + 2000));
+        cache.accept(packet(VDM2, T + 1000));
+
+        now.set(T + Duration.ofHours(1).toMillis() + 1500);
+        cache.purge();
+        assertEquals(Arrays.asList(T + 2000), timestamps(cache.find(MMSI1, 0, Long.MAX_VALUE)));
+        assertTrue(cache.find(MMSI2, 0, Long.MAX_VALUE).isEmpty());
+
+        now.set(T + Duration.ofHours(2).toMillis());
+        cache.purge();
+        assertTrue(cache.find(MMSI1, 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void testStopStopsFeed() throws Exception {
+        Service feed = new AbstractIdleService() {
+            protected void startUp() {}
+
+            protected void shutDown() {}
+        };
+        cache.start(feed);
+        feed.awaitRunning(10, TimeUnit.SECONDS);
+        cache.stop();
+        feed.awaitTerminated(10, TimeUnit.SECONDS);
+    }
+}